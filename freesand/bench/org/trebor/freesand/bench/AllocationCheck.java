@@ -0,0 +1,314 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand.bench;
+
+import static org.trebor.freesand.World.Element.*;
+
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+
+import org.trebor.freesand.World;
+
+   /**
+    * AllocationCheck verifies that updating a world allocates nothing
+    * on the heap, using the per thread allocated byte counters of the
+    * JVM.  Large scenes of burning oil, growing plant and spouting
+    * sources are updated serially and in bands.  Updated serially, the
+    * updating thread must allocate nothing at all.  Updated in bands,
+    * the fork join pool which runs them allocates a little on its own
+    * each time the updating thread waits for them, by an amount which
+    * varies with timing.  So the bytes allocated by every thread are
+    * summed, the same number of bands is first measured updating a
+    * world of rock kept awake, in which every row is scanned but no
+    * rule runs, and a scene may allocate no more than {@link #SLACK}
+    * bytes per update beyond that pool allocation.  Each is measured
+    * {@link #REPEATS} times and the least kept, as the pool's
+    * allocation comes and goes while a rule's would show every time.
+    * The burning scene is refilled with oil and set alight again
+    * before each measurement, and fails if the fire has gone out by
+    * the end of it.  The check
+    * exits with a non zero status if any case fails.
+    */
+
+public class AllocationCheck
+{
+         // globals
+
+
+         /** size of the worlds checked */
+
+      public static final int  SIZE    = 800;
+
+         /** number of updates run before measuring */
+
+      public static final int  WARMUP  = 200;
+
+         /** number of updates measured */
+
+      public static final int  TICKS   = 100;
+
+         /** number of times each case is measured */
+
+      public static final int  REPEATS = 5;
+
+         /** bytes which may be allocated per update beyond the fork
+          * join pool when updating in bands, less than the smallest
+          * object so that any object allocated on every update fails
+          * the check */
+
+      public static final long SLACK   = 8;
+
+         /** the elements a fire is made of */
+
+      static final World.Element[] FIRES = {
+         FIRE1_EL, FIRE2_EL, FIRE3_EL, FIRE4_EL, FIRE5_EL, FIRE6_EL};
+
+         /** thread counters of the JVM */
+
+      static com.sun.management.ThreadMXBean threads;
+
+         /**
+          * Run the check.
+          *
+          * @param args currently ignored
+          */
+
+      public static void main(String[] args)
+      {
+         threads = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+         if (!threads.isThreadAllocatedMemorySupported())
+         {
+            System.out.println("thread allocation counters not supported");
+            return;
+         }
+         threads.setThreadAllocatedMemoryEnabled(true);
+
+         boolean ok = true;
+         System.out.printf(
+            "bytes allocated per update, by all threads, by the pool%n" +
+            "alone and by the updating thread%n  %-28s %10s %10s %10s%n",
+            "", "all", "pool", "updater");
+         for (int bands: new int[] {1, 4})
+         {
+            Measure pool = measure(rock(), bands, true, false);
+            String suffix = ", " + bands + " band(s)";
+            ok &= check("fire" + suffix,    fire(),    bands, pool, true);
+            ok &= check("plant" + suffix,   plant(),   bands, pool, false);
+            ok &= check("sources" + suffix, sources(), bands, pool, false);
+         }
+         if (!ok)
+         {
+            System.out.println("FAILED: updates allocate memory");
+            System.exit(1);
+         }
+      }
+         /**
+          * Check one scene.  Updated serially the updating thread must
+          * allocate nothing, and updated in bands all threads together
+          * must allocate no more than {@link #SLACK} bytes per update
+          * beyond the pool.
+          *
+          * @param name name of the scene
+          * @param world world to update
+          * @param bands number of bands to update the world in
+          * @param pool allocation of the pool with this many bands
+          * @param burn set the scene alight before each measurement,
+          *  and fail if it has stopped burning by the end of it
+          * @return True if the scene passed.
+          */
+
+      static boolean check(String name, World world, int bands,
+                           Measure pool, boolean burn)
+      {
+         Measure m = measure(world, bands, false, burn);
+         String result = "ok";
+         if (bands == 1 && m.updater > 0)
+            result = "FAILED, updating thread allocates";
+         else if (m.all - pool.all > SLACK)
+            result = "FAILED, " + (m.all - pool.all) + " beyond the pool";
+         else if (burn && m.fires == 0)
+            result = "FAILED, fire went out";
+         System.out.printf("  %-28s %10.1f %10.1f %10.1f  %s%n", name,
+                           m.all, pool.all, m.updater, result);
+         return result.equals("ok");
+      }
+         /**
+          * Measure the bytes allocated per update of a world, the least
+          * of {@link #REPEATS} measurements.
+          *
+          * @param world world to update
+          * @param bands number of bands to update the world in
+          * @param wake wake the whole world before each update, so
+          *  every row is scanned even if nothing happens
+          * @param burn refill the world with burning oil before each
+          *  measurement
+          * @return The bytes allocated per update.
+          */
+
+      static Measure measure(World world, int bands, boolean wake,
+                             boolean burn)
+      {
+         world.setBands(bands);
+         for (int i = 0; i < WARMUP; ++i)
+            update(world, wake);
+
+         long self = Thread.currentThread().getId();
+         int[] counts = null;
+         Measure m = new Measure();
+         m.all = m.updater = Double.MAX_VALUE;
+         m.fires = Integer.MAX_VALUE;
+         for (int r = 0; r < REPEATS; ++r)
+         {
+            if (burn)
+               ignite(world);
+            long before = allocatedBytes();
+            long selfBefore = threads.getThreadAllocatedBytes(self);
+            for (int i = 0; i < TICKS; ++i)
+               update(world, wake);
+            long selfAfter = threads.getThreadAllocatedBytes(self);
+            long after = allocatedBytes();
+            m.all = Math.min(m.all, (double)(after - before) / TICKS);
+            m.updater = Math.min(m.updater,
+                                 (double)(selfAfter - selfBefore) / TICKS);
+
+               // fire only comes from fire, so if any is left it burned
+               // throughout
+
+            counts = world.countCells(counts);
+            int fires = 0;
+            for (World.Element el: FIRES)
+               fires += counts[el.getId()];
+            m.fires = Math.min(m.fires, fires);
+         }
+         return m;
+      }
+         /**
+          * Update a world once.
+          *
+          * @param world world to update
+          * @param wake wake the whole world before the update
+          */
+
+      static void update(World world, boolean wake)
+      {
+         if (wake)
+            world.wake(0, 0, SIZE, SIZE);
+         world.update();
+      }
+         /**
+          * Return the bytes allocated so far by all live threads, less
+          * the bytes allocated by the measuring itself.
+          *
+          * @return The total bytes allocated.
+          */
+
+      static long allocatedBytes()
+      {
+         long[] ids = threads.getAllThreadIds();
+         long self = threads.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+         long[] bytes = threads.getThreadAllocatedBytes(ids);
+         long after = threads.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+
+         long sum = 0;
+         for (long b: bytes)
+            if (b > 0)
+               sum += b;
+         return sum - (after - self);
+      }
+         /** @return A world of rock, in which no rule runs, to be kept
+          * awake so that the bands take about as long as a scene. */
+
+      static World rock()
+      {
+         return new World(SIZE, SIZE, ROCK_EL, 1);
+      }
+         /** @return A world of oil with rows of fire through it. */
+
+      static World fire()
+      {
+         World world = new World(SIZE, SIZE, OIL_EL, 1);
+         ignite(world);
+         return world;
+      }
+         /**
+          * Fill a world with fresh oil and set rows of fire through it,
+          * which burns for well over {@link #TICKS} updates.
+          *
+          * @param world world to set alight
+          */
+
+      static void ignite(World world)
+      {
+         world.fill(OIL_EL);
+         for (int y = SIZE / 8; y < SIZE; y += SIZE / 8)
+            world.fill(new Rectangle(0, y, SIZE, 2), FIRE1_EL);
+         world.fill(new Rectangle(0, 0, SIZE, SIZE / 16), FIRE_SOURCE_EL);
+      }
+         /** @return A world of water over a bed of plant. */
+
+      static World plant()
+      {
+         World world = new World(SIZE, SIZE, AIR_EL, 1);
+         world.fill(new Rectangle(0, 0, SIZE, SIZE / 2), WATER_EL);
+         world.fill(new Rectangle(0, SIZE - 40, SIZE, 20), PLANT_EL);
+         return world;
+      }
+         /** @return A world sprinkled with each kind of source. */
+
+      static World sources()
+      {
+         World world = new World(SIZE, SIZE, AIR_EL, 1);
+         World.Element[] sources = {
+            AIR_SOURCE_EL, WATER_SOURCE_EL, OIL_SOURCE_EL,
+            SAND_SOURCE_EL, FIRE_SOURCE_EL};
+         int i = 0;
+         for (int y = 20; y < SIZE; y += 80)
+            for (int x = 20; x < SIZE; x += 40)
+               world.fill(new Rectangle(x, y, 4, 4), sources[i++ % sources.length]);
+         return world;
+      }
+         /**
+          * What a case allocated per update, the least of the
+          * measurements, and the fewest fire cells at the end of one.
+          */
+
+      static class Measure
+      {
+            /** bytes allocated by all threads */
+
+         double all;
+
+            /** bytes allocated by the updating thread */
+
+         double updater;
+
+            /** fire cells left burning */
+
+         int    fires;
+      }
+}
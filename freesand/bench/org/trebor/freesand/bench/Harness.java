@@ -0,0 +1,238 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+   /**
+    * Harness runs benchmark cases in the manner of JMH: each case is
+    * run for a number of untimed warmup iterations, then for a number
+    * of measured iterations.  Each iteration is set up afresh outside
+    * the timed region.  The throughput of each case is reported as
+    * the mean and standard deviation over the measured iterations.
+    *
+    * <p>Command line options, shared by all benchmarks:
+    *
+    * <pre>
+    *   -wi N     number of warmup iterations
+    *   -i N      number of measured iterations
+    *   REGEX     only run cases whose names contain a match
+    * </pre>
+    */
+
+public class Harness
+{
+         // globals
+
+
+         /** default number of warmup iterations */
+
+      public static final int DEFAULT_WARMUPS    = 3;
+
+         /** default number of measured iterations */
+
+      public static final int DEFAULT_ITERATIONS = 5;
+
+         /** number of warmup iterations */
+
+      protected int     warmups    = DEFAULT_WARMUPS;
+
+         /** number of measured iterations */
+
+      protected int     iterations = DEFAULT_ITERATIONS;
+
+         /** only cases whose names match this are run, null runs all */
+
+      protected Pattern filter;
+
+         /** sink for values so they are not optimized away */
+
+      public static volatile long sink;
+
+         /**
+          * Construct a harness from command line arguments.
+          *
+          * @param args command line arguments
+          * @throws IllegalArgumentException if the arguments are bad
+          */
+
+      public Harness(String[] args)
+      {
+         for (int i = 0; i < args.length; ++i)
+         {
+            if (args[i].equals("-wi"))
+               warmups = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i"))
+               iterations = Math.max(1, Integer.parseInt(args[++i]));
+            else if (filter == null)
+               filter = Pattern.compile(args[i]);
+            else
+               throw new IllegalArgumentException("unexpected " + args[i]);
+         }
+      }
+         /**
+          * Run a list of cases, printing a result line for each.
+          *
+          * @param title title printed above the results
+          * @param cases cases to run
+          * @return The results of the cases which were run.
+          */
+
+      public List<Result> run(String title, List<Case> cases) throws Exception
+      {
+         List<Result> results = new ArrayList<Result>();
+         boolean first = true;
+
+         for (Case c: cases)
+         {
+            if (filter != null && !filter.matcher(c.name).find())
+               continue;
+            if (first)
+            {
+               System.out.println(title + " (" + warmups + " warmup, " +
+                                  iterations + " measured iterations)");
+               System.out.printf("  %-36s %12s    %8s  %s%n",
+                                 "Benchmark", "Score", "Error", "Units");
+               first = false;
+            }
+            Result result = measure(c);
+            results.add(result);
+            System.out.println("  " + result);
+         }
+         if (!first)
+            System.out.println();
+         return results;
+      }
+         /**
+          * Measure a single case.
+          *
+          * @param c case to measure
+          * @return The result of the case.
+          */
+
+      public Result measure(Case c) throws Exception
+      {
+         double[] scores = new double[iterations];
+
+         for (int i = 0; i < warmups + iterations; ++i)
+         {
+            c.setup();
+            long start = System.nanoTime();
+            double ops = c.run();
+            long nanos = System.nanoTime() - start;
+            if (i >= warmups)
+               scores[i - warmups] = ops * 1e9 / Math.max(1, nanos) / c.scale;
+         }
+         c.tearDown();
+         return new Result(c, scores);
+      }
+         /**
+          * A single benchmark case.  A case reports the number of
+          * operations run by each iteration, the harness turns this
+          * into operations per second.
+          */
+
+      public abstract static class Case
+      {
+            /** name of the case */
+
+         public final String name;
+
+            /** units the score is reported in */
+
+         public final String units;
+
+            /** operations per second are divided by this for
+             * reporting */
+
+         public final double scale;
+
+         protected Case(String name, String units, double scale)
+         {
+            this.name = name;
+            this.units = units;
+            this.scale = scale;
+         }
+            /**
+             * Prepare for an iteration, this is not timed.  This
+             * implementation does nothing.
+             */
+
+         public void setup() throws Exception
+         {
+         }
+            /**
+             * Run one timed iteration.
+             *
+             * @return The number of operations performed.
+             */
+
+         public abstract double run() throws Exception;
+
+            /**
+             * Release resources after the last iteration.  This
+             * implementation does nothing.
+             */
+
+         public void tearDown() throws Exception
+         {
+         }
+      }
+         /**
+          * The result of a case: the mean and standard deviation of
+          * its measured iteration scores.
+          */
+
+      public static class Result
+      {
+         public final Case   c;
+         public final double mean;
+         public final double deviation;
+
+         Result(Case c, double[] scores)
+         {
+            double sum = 0;
+            for (double s: scores)
+               sum += s;
+            double mean = sum / scores.length;
+            double squares = 0;
+            for (double s: scores)
+               squares += (s - mean) * (s - mean);
+
+            this.c = c;
+            this.mean = mean;
+            this.deviation = scores.length > 1
+               ? Math.sqrt(squares / (scores.length - 1))
+               : 0;
+         }
+         public String toString()
+         {
+            return String.format("%-36s %12.3f +- %8.3f  %s",
+                                 c.name, mean, deviation, c.units);
+         }
+      }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.trebor.freesand.World;
+import org.trebor.freesand.XorShiftRandom;
+
+   /**
+    * RandomBenchmark compares {@link java.util.Random} with {@link
+    * XorShiftRandom}, both on their own and as the random number
+    * generator used to update a {@link World}.
+    */
+
+public class RandomBenchmark
+{
+         // globals
+
+
+         /** number of random numbers drawn per thread per iteration */
+
+      public static final int  DRAWS       = 5000000;
+
+         /** number of world updates per iteration */
+
+      public static final int  UPDATES     = 50;
+
+         /** size of the world used to measure updates */
+
+      public static final int  WORLD_SIZE  = 800;
+
+         /**
+          * Run the benchmark.
+          *
+          * @param args harness arguments, see {@link Harness}
+          */
+
+      public static void main(String[] args) throws Exception
+      {
+         new Harness(args).run("Random", createCases());
+      }
+         /**
+          * Create the random number generator cases.
+          *
+          * @return The list of cases.
+          */
+
+      public static List<Harness.Case> createCases()
+      {
+         int threads = Runtime.getRuntime().availableProcessors();
+         List<Harness.Case> cases = new ArrayList<Harness.Case>();
+
+         cases.add(new DrawCase("draw/Random-1", new Random(1), 1));
+         cases.add(new DrawCase("draw/XorShiftRandom-1", new XorShiftRandom(1), 1));
+         cases.add(new DrawCase("draw/Random-shared-" + threads,
+                                new Random(1), threads));
+         cases.add(new DrawCase("draw/XorShiftRandom-" + threads, null, threads));
+         cases.add(new UpdateCase("update/Random", false));
+         cases.add(new UpdateCase("update/XorShiftRandom", true));
+         return cases;
+      }
+         /**
+          * A case which draws random numbers in the way that element
+          * rules draw them, nextInt(23) + nextBoolean().
+          */
+
+      static class DrawCase extends Harness.Case
+      {
+         final Random shared;
+         final int    threads;
+
+            /**
+             * @param name name of the case
+             * @param shared generator shared by all threads, or null
+             *  to give each thread its own {@link XorShiftRandom}
+             * @param threads number of threads drawing numbers
+             */
+
+         DrawCase(String name, Random shared, int threads)
+         {
+            super(name, "Mdraws/s", 1e6);
+            this.shared = shared;
+            this.threads = threads;
+         }
+         public double run() throws InterruptedException
+         {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; ++t)
+            {
+               final long seed = t;
+               workers[t] = new Thread()
+                  {
+                     public void run()
+                     {
+                        Random rnd = shared != null
+                           ? shared
+                           : new XorShiftRandom(seed);
+                        long sum = 0;
+                        for (int i = 0; i < DRAWS; ++i)
+                           sum += rnd.nextInt(23) + (rnd.nextBoolean() ? 1 : 0);
+                        Harness.sink += sum;
+                     }
+                  };
+            }
+            for (Thread worker: workers)
+               worker.start();
+            for (Thread worker: workers)
+               worker.join();
+            return (double)DRAWS * threads;
+         }
+      }
+         /**
+          * A case which updates a mixed world serially, with kernels
+          * using either generator.
+          */
+
+      static class UpdateCase extends Harness.Case
+      {
+         final boolean xorShift;
+         World world;
+
+            /**
+             * @param name name of the case
+             * @param xorShift use {@link XorShiftRandom} if true,
+             *  otherwise use {@link java.util.Random}
+             */
+
+         UpdateCase(String name, boolean xorShift)
+         {
+            super(name, "Mcells/s", 1e6);
+            this.xorShift = xorShift;
+         }
+         public void setup()
+         {
+            world = UpdateBenchmark.mixed(
+               new World(WORLD_SIZE, WORLD_SIZE, UpdateBenchmark.SEED)
+               {
+                  protected Random createRandom()
+                  {
+                     return xorShift
+                        ? super.createRandom()
+                        : new Random(rnd.nextLong());
+                  }
+               });
+         }
+         public double run()
+         {
+            for (int i = 0; i < UPDATES; ++i)
+               world.update();
+            return (double)WORLD_SIZE * WORLD_SIZE * UPDATES;
+         }
+      }
+}
@@ -0,0 +1,171 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand.bench;
+
+import static org.trebor.freesand.World.Element.*;
+
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+
+import org.trebor.freesand.InputLog;
+import org.trebor.freesand.World;
+
+   /**
+    * ReplayCheck verifies that an {@link InputLog} replays a run cell
+    * for cell.  A mixed scene is left to settle until parts of it are
+    * asleep, then recorded while strokes are made on it, and the live
+    * world is compared with a replay of the log after every update.
+    * The check exits with a non zero status if any seed diverges.
+    */
+
+public class ReplayCheck
+{
+         // globals
+
+
+         /** width of the worlds checked */
+
+      public static final int WIDTH  = 320;
+
+         /** height of the worlds checked */
+
+      public static final int HEIGHT = 256;
+
+         /** number of updates run before recording, so that the
+          * settled parts of the scene fall asleep */
+
+      public static final int SETTLE = 400;
+
+         /** number of updates recorded and replayed */
+
+      public static final int TICKS  = 300;
+
+         /** number of seeds checked */
+
+      public static final int SEEDS  = 12;
+
+         /** number of bands the worlds are updated in */
+
+      public static final int BANDS  = 3;
+
+         /**
+          * Run the check.
+          *
+          * @param args currently ignored
+          */
+
+      public static void main(String[] args)
+      {
+         boolean ok = true;
+         System.out.println("cells differing after replay");
+         for (int seed = 1; seed <= SEEDS; ++seed)
+            ok &= check(seed);
+         if (!ok)
+         {
+            System.out.println("FAILED: replay differs from live run");
+            System.exit(1);
+         }
+      }
+         /**
+          * Check one seed.
+          *
+          * @param seed seed to record the run with
+          * @return True if the replay matched the live run.
+          */
+
+      static boolean check(long seed)
+      {
+            // settle the scene, then start recording
+
+         World live = scene();
+         live.setBands(BANDS);
+         for (int i = 0; i < SETTLE; ++i)
+            live.update();
+         int asleep = live.getChunkCount() - live.getAwakeChunkCount();
+         live.reseed(seed);
+         InputLog log = new InputLog(live);
+         World replay = log.createWorld();
+
+            // run both side by side, stroking the live world now and
+            // then, and stop at the first difference
+
+         int differ = 0;
+         for (int i = 0; i < TICKS && differ == 0; ++i)
+         {
+            if (i % 50 == 25)
+            {
+               Ellipse2D.Double dot = new Ellipse2D.Double(
+                  (i * 7) % WIDTH, HEIGHT / 4, 12, 12);
+               live.fill(dot, SAND_EL);
+               log.record(live.getTick(), dot, SAND_EL);
+            }
+            log.replay(replay);
+            live.update();
+            replay.update();
+            differ = compare(live, replay);
+         }
+
+         boolean ok = differ == 0;
+         System.out.printf("  seed %2d, %3d chunks asleep %10d  %s%n",
+                           seed, asleep, differ, ok ? "ok" : "FAILED");
+         return ok;
+      }
+         /**
+          * Count the cells which differ between two worlds of the same
+          * size.
+          *
+          * @param a first world
+          * @param b second world
+          * @return The number of differing cells.
+          */
+
+      static int compare(World a, World b)
+      {
+         a.render();
+         b.render();
+         int[] ra = a.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+         int[] rb = b.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+         int differ = 0;
+         for (int i = 0; i < ra.length; ++i)
+            if (ra[i] != rb[i])
+               ++differ;
+         return differ;
+      }
+         /** @return A world of settled sand and water beneath a
+          * shelf of burning oil and a spouting water source. */
+
+      static World scene()
+      {
+         World world = new World(WIDTH, HEIGHT, AIR_EL, 1);
+         world.fill(new Rectangle(0, HEIGHT / 2, WIDTH, HEIGHT / 2), SAND_EL);
+         world.fill(new Rectangle(0, HEIGHT / 2 - 20, WIDTH, 20), WATER_EL);
+         world.fill(new Rectangle(WIDTH / 4, 60, WIDTH / 2, 4), ROCK_EL);
+         world.fill(new Rectangle(WIDTH / 4, 50, WIDTH / 2, 10), OIL_EL);
+         world.fill(new Rectangle(WIDTH / 2, 46, 4, 4), FIRE_SOURCE_EL);
+         world.fill(new Rectangle(WIDTH / 4 + 10, 30, 4, 4),
+                    WATER_SOURCE_EL);
+         return world;
+      }
+}
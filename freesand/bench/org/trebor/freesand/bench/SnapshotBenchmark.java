@@ -0,0 +1,198 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.trebor.freesand.Game;
+import org.trebor.freesand.Snapshot;
+import org.trebor.freesand.World;
+
+   /**
+    * SnapshotBenchmark compares saving and loading a large world as a
+    * png image, the way the game has always done it, with saving and
+    * loading it as a {@link Snapshot}.  Loading a png includes
+    * matching each pixel to the nearest element, as the game does.
+    * Scores are in cells per second.
+    */
+
+public class SnapshotBenchmark
+{
+         // globals
+
+
+         /** size of the world saved and loaded */
+
+      public static final int SIZE  = 4096;
+
+         /** number of updates run on the world before it is saved, so
+          * that it is not made only of rectangles */
+
+      public static final int TICKS = 20;
+
+         /** world saved by every case */
+
+      static World world;
+
+         /**
+          * Run the benchmark.
+          *
+          * @param args harness arguments, see {@link Harness}
+          */
+
+      public static void main(String[] args) throws Exception
+      {
+         new Harness(args).run("Snapshot", createCases());
+      }
+         /**
+          * Create the save and load cases.
+          *
+          * @return The list of cases.
+          */
+
+      public static List<Harness.Case> createCases()
+      {
+         List<Harness.Case> cases = new ArrayList<Harness.Case>();
+
+         cases.add(new FileCase("save/png", ".png")
+            {
+               void save(World world, File file) throws Exception
+               {
+                  world.render();
+                  ImageIO.write(world, "png", file);
+               }
+               public double run() throws Exception
+               {
+                  save(getWorld(), file);
+                  return (double)SIZE * SIZE;
+               }
+            });
+         cases.add(new FileCase("save/snapshot", "." + Snapshot.FILE_EXTENSION)
+            {
+               void save(World world, File file) throws Exception
+               {
+                  Snapshot.write(world, file);
+               }
+               public double run() throws Exception
+               {
+                  save(getWorld(), file);
+                  return (double)SIZE * SIZE;
+               }
+            });
+         cases.add(new FileCase("load/png", ".png")
+            {
+               void save(World world, File file) throws Exception
+               {
+                  world.render();
+                  ImageIO.write(world, "png", file);
+               }
+               public double run() throws Exception
+               {
+                  BufferedImage raw = ImageIO.read(file);
+                  BufferedImage image = new BufferedImage(
+                     raw.getWidth(), raw.getHeight(),
+                     BufferedImage.TYPE_INT_ARGB);
+                  image.getGraphics().drawImage(raw, 0, 0, null);
+                  Harness.sink += new World(Game.convertToElements(image))
+                     .getWidth();
+                  return (double)SIZE * SIZE;
+               }
+            });
+         cases.add(new FileCase("load/snapshot", "." + Snapshot.FILE_EXTENSION)
+            {
+               void save(World world, File file) throws Exception
+               {
+                  Snapshot.write(world, file);
+               }
+               public double run() throws Exception
+               {
+                  Harness.sink += Snapshot.read(file).getWidth();
+                  return (double)SIZE * SIZE;
+               }
+            });
+         return cases;
+      }
+         /**
+          * Return the world saved by every case, creating it the first
+          * time.
+          *
+          * @return The world to save.
+          */
+
+      static World getWorld()
+      {
+         if (world == null)
+         {
+            world = UpdateBenchmark.mixed(
+               new World(SIZE, SIZE, UpdateBenchmark.SEED));
+            for (int i = 0; i < TICKS; ++i)
+               world.update();
+         }
+         return world;
+      }
+         /**
+          * A case which saves and loads a temporary file.  Load cases
+          * save the file in setup, and print its size once.
+          */
+
+      abstract static class FileCase extends Harness.Case
+      {
+         final String suffix;
+         File file;
+
+         FileCase(String name, String suffix)
+         {
+            super(name, "Mcells/s", 1e6);
+            this.suffix = suffix;
+         }
+            /**
+             * Save a world to a file.
+             *
+             * @param world world to save
+             * @param file file to save to
+             */
+
+         abstract void save(World world, File file) throws Exception;
+
+         public void setup() throws Exception
+         {
+            if (file == null)
+            {
+               file = File.createTempFile("freesand-bench", suffix);
+               save(getWorld(), file);
+               System.out.printf("  %-36s %12d    bytes%n", name, file.length());
+            }
+         }
+         public void tearDown()
+         {
+            file.delete();
+         }
+      }
+}
@@ -0,0 +1,280 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand.bench;
+
+import static org.trebor.freesand.World.Element.*;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.trebor.freesand.Recorder;
+import org.trebor.freesand.Runner;
+import org.trebor.freesand.World;
+import org.trebor.freesand.World.Element;
+
+   /**
+    * UpdateBenchmark measures {@link World#update()} in cells per
+    * second, where every cell of the world counts on every update.
+    * Cases cover each element on its own, the sample worlds, a mixed
+    * world at several sizes and a mixed world split into bands.  Every
+    * world is seeded, so each iteration runs the same updates.
+    */
+
+public class UpdateBenchmark
+{
+         // globals
+
+
+         /** number of updates per iteration */
+
+      public static final int    TICKS        = 50;
+
+         /** size of the worlds used to measure single elements */
+
+      public static final int    ELEMENT_SIZE = 400;
+
+         /** sizes of the mixed worlds */
+
+      public static final int[]  SIZES        = {200, 400, 800, 1600};
+
+         /** size of the mixed world split into bands */
+
+      public static final int    BAND_SIZE    = 800;
+
+         /** numbers of bands to split the mixed world into */
+
+      public static final int[]  BANDS        = {1, 2, 4};
+
+         /** record a frame every this many ticks when recording */
+
+      public static final int    EVERY        =
+         Integer.getInteger("freesand.record.every", 1);
+
+         /** size of the blocks of element laid out in element worlds */
+
+      public static final int    BLOCK        = 16;
+
+         /** seed of every world */
+
+      public static final long   SEED         = 1;
+
+         /** directory holding the sample worlds, overridden by the
+          * freesand.samples system property */
+
+      public static final String SAMPLES      =
+         System.getProperty("freesand.samples", "resources/samples");
+
+         /**
+          * Run the benchmark.
+          *
+          * @param args harness arguments, see {@link Harness}
+          */
+
+      public static void main(String[] args) throws Exception
+      {
+         new Harness(args).run("World.update", createCases());
+      }
+         /**
+          * Create the update cases.
+          *
+          * @return The list of cases.
+          */
+
+      public static List<Harness.Case> createCases()
+      {
+         List<Harness.Case> cases = new ArrayList<Harness.Case>();
+
+            // each element on its own
+
+         for (final Element el: Element.values())
+            cases.add(new UpdateCase("element/" + el.name())
+               {
+                  World create()
+                  {
+                     return element(el, ELEMENT_SIZE, ELEMENT_SIZE);
+                  }
+               });
+
+            // sample worlds
+
+         File[] samples = new File(SAMPLES).listFiles();
+         if (samples != null)
+         {
+            Arrays.sort(samples);
+            for (final File sample: samples)
+               if (sample.getName().toLowerCase().endsWith(".png"))
+                  cases.add(new UpdateCase("sample/" + sample.getName())
+                     {
+                        World create() throws Exception
+                        {
+                           World world = Runner.readWorld(sample);
+                           world.reseed(SEED);
+                           return world;
+                        }
+                     });
+         }
+            // mixed worlds of various sizes
+
+         for (final int size: SIZES)
+            cases.add(new UpdateCase("size/mixed-" + size)
+               {
+                  World create()
+                  {
+                     return mixed(new World(size, size, SEED));
+                  }
+               });
+
+            // mixed world in bands
+
+         for (final int bands: BANDS)
+            cases.add(new UpdateCase("bands/mixed-" + BAND_SIZE + "-" + bands)
+               {
+                  World create()
+                  {
+                     World world = mixed(new World(BAND_SIZE, BAND_SIZE, SEED));
+                     world.setBands(bands);
+                     return world;
+                  }
+               });
+
+            // mixed world recorded every EVERY ticks, the recorder is
+            // closed in the timed region so frames left to write count
+
+         cases.add(new UpdateCase("record/mixed-" + BAND_SIZE)
+            {
+               File     file;
+               Recorder recorder;
+
+               World create() throws Exception
+               {
+                  if (file == null)
+                     file = File.createTempFile(
+                        "freesand-bench", "." + Recorder.FILE_EXTENSION);
+                  World world = mixed(new World(BAND_SIZE, BAND_SIZE, SEED));
+                  recorder = new Recorder(
+                     file, BAND_SIZE, BAND_SIZE, EVERY,
+                     Recorder.DEFAULT_KEYFRAME_INTERVAL);
+                  world.setRecorder(recorder);
+                  return world;
+               }
+               public double run()
+               {
+                  double cells = super.run();
+                  try
+                  {
+                     recorder.close();
+                  }
+                  catch (IOException e)
+                  {
+                     throw new IllegalStateException(e);
+                  }
+                  return cells;
+               }
+               public void tearDown()
+               {
+                  System.out.printf("  %-36s %12d    frames dropped%n",
+                                    name, recorder.getDropped());
+                  file.delete();
+               }
+            });
+
+         return cases;
+      }
+         /**
+          * Create a world of blocks of a single element, checkered with
+          * blocks of the element it most readily acts on: water for
+          * plant, oil for fire and air for the rest.
+          *
+          * @param el element to fill world with
+          * @param w width of the world
+          * @param h height of the world
+          * @return The new world.
+          */
+
+      public static World element(Element el, int w, int h)
+      {
+         Element partner = AIR_EL;
+         if (el == PLANT_EL)
+            partner = WATER_EL;
+         else if (el.name().startsWith("FIRE") && el != FIRE_SOURCE_EL)
+            partner = OIL_EL;
+
+         World world = new World(w, h, partner, SEED);
+         for (int y = 0; y < h; y += BLOCK)
+            for (int x = (y / BLOCK % 2) * BLOCK; x < w; x += 2 * BLOCK)
+               world.fill(new Rectangle(x, y, BLOCK, BLOCK), el);
+         return world;
+      }
+         /**
+          * Fill a world with a mix of sand, water, oil, fire and plant.
+          *
+          * @param world world to fill
+          * @return The provided world.
+          */
+
+      public static World mixed(World world)
+      {
+         int w = world.getWidth();
+         int h = world.getHeight();
+         world.fill(new Rectangle(0,     0,     w,     h / 3), SAND_EL);
+         world.fill(new Rectangle(0,     h / 3, w / 2, h / 3), WATER_EL);
+         world.fill(new Rectangle(w / 2, h / 3, w / 2, h / 6), OIL_EL);
+         world.fill(new Rectangle(w / 2, h / 2, w / 4, 5),     FIRE1_EL);
+         world.fill(new Rectangle(0,     h - 10, w,    5),     PLANT_EL);
+         return world;
+      }
+         /**
+          * A case which creates a world in setup, then updates it
+          * {@link #TICKS} times.
+          */
+
+      abstract static class UpdateCase extends Harness.Case
+      {
+         World world;
+
+         UpdateCase(String name)
+         {
+            super(name, "Mcells/s", 1e6);
+         }
+            /** @return A new world to update. */
+
+         abstract World create() throws Exception;
+
+         public void setup() throws Exception
+         {
+            world = create();
+         }
+         public double run()
+         {
+            for (int i = 0; i < TICKS; ++i)
+               world.update();
+            return (double)world.getWidth() * world.getHeight() * TICKS;
+         }
+      }
+}
@@ -0,0 +1,464 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.CHUNK_SHIFT;
+import static org.trebor.freesand.World.CHUNK_SIZE;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+   /**
+    * CellExchange hands copies of the cells of a world from the thread
+    * which updates it to the thread which renders it, in the same way
+    * that a {@link TripleBuffer} hands frames on.  The updating thread
+    * copies the cells into the back copy between updates and publishes
+    * it, the rendering thread takes the latest copy when it is ready
+    * for one, and neither waits on the other.  Each copy is of a
+    * single tick, so rendering never sees a world half updated.
+    *
+    * <p>Only the cells in a {@link Viewport} are copied, along with
+    * the viewport, so copying and painting cost as much as the view
+    * shows however big the world is.  Only the chunks of a copy which
+    * changed since it was last filled are copied into it, unless the
+    * view moved.  Each copy also carries the chunks which changed
+    * since the copy published before it, so that the rendering thread
+    * can paint only those, so long as it took that copy too.</p>
+    */
+
+public class CellExchange
+{
+         // globals
+
+
+         /** bits of the exchange state holding the index of the
+          * latest copy */
+
+      protected static final int INDEX = 3;
+
+         /** bit of the exchange state set when the latest copy has not
+          * been taken yet */
+
+      protected static final int FRESH = 4;
+
+         /** color of the screen beyond the edges of the world */
+
+      public static final int    OUTSIDE = 0xff404040;
+
+         /** width of the world copied */
+
+      protected final int           width;
+
+         /** height of the world copied */
+
+      protected final int           height;
+
+         /** the three copies, each of the cells of its region row by
+          * row */
+
+      protected final byte[][]      cells = new byte[3][0];
+
+         /** region of the world held by each copy */
+
+      protected final Rectangle[]   regions =
+         {new Rectangle(), new Rectangle(), new Rectangle()};
+
+         /** view each copy was taken for */
+
+      protected final Viewport[]    views = new Viewport[3];
+
+         /** number of chunk columns */
+
+      protected final int           cols;
+
+         /** number of chunk rows */
+
+      protected final int           rows;
+
+         /** tick of the world each copy was taken at */
+
+      protected final long[]        ticks = new long[3];
+
+         /** number of each copy in the order they were published */
+
+      protected final long[]        sequences = new long[3];
+
+         /** chunks of each copy which are out of date */
+
+      protected final boolean[][]   stale = new boolean[3][];
+
+         /** chunks which changed in each copy since the copy
+          * published before it */
+
+      protected final boolean[][]   changed = new boolean[3][];
+
+         /** number of copies published */
+
+      protected long                published;
+
+         /** chunks found dirty when publishing, reused */
+
+      protected final boolean[]     dirty;
+
+         /** index of the latest copy, and whether it is fresh */
+
+      protected final AtomicInteger latest = new AtomicInteger(2);
+
+         /** index of the copy being filled, owned by the updating
+          * thread */
+
+      protected int                 back = 0;
+
+         /** index of the copy being rendered, owned by the rendering
+          * thread */
+
+      protected int                 front = 1;
+
+         /**
+          * Construct an exchange of cells for a world of a given size.
+          *
+          * @param width width of world
+          * @param height height of world
+          */
+
+      public CellExchange(int width, int height)
+      {
+         this.width = width;
+         this.height = height;
+         cols = (width  + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         rows = (height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         dirty = new boolean[cols * rows];
+         for (int i = 0; i < cells.length; ++i)
+         {
+            stale[i] = new boolean[cols * rows];
+            changed[i] = new boolean[cols * rows];
+         }
+      }
+         /**
+          * Copy the cells of a world in view into the back copy and
+          * publish it as the latest.  Only the chunks which are out of
+          * date in the back copy are copied, or all those in view if
+          * the view moved since the back copy was filled.  Only the
+          * updating thread may call this, and only between updates.
+          * This collects the dirty chunks of the world, so nothing
+          * else may.
+          *
+          * @param world world to copy, of the size of the exchange
+          * @param view view to copy the cells of
+          */
+
+      public void publish(World world, Viewport view)
+      {
+            // note what changed in every copy
+
+         boolean[] dirty = this.dirty;
+         Arrays.fill(dirty, false);
+         world.chunks.collectDirty(dirty);
+         for (boolean[] s: stale)
+            for (int c = 0; c < dirty.length; ++c)
+               s[c] |= dirty[c];
+
+            // the cells in view, and the chunks they lie in
+
+         int left = Math.max(0, Math.min(width, view.getX()));
+         int top = Math.max(0, Math.min(height, view.getY()));
+         int right = Math.max(left, Math.min(width, view.getX() + view.getColumns()));
+         int bottom = Math.max(top, Math.min(height, view.getY() + view.getRows()));
+         int colLeft = left >> CHUNK_SHIFT;
+         int colRight = (right + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         int rowTop = top >> CHUNK_SHIFT;
+         int rowBottom = (bottom + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+
+            // if the view moved the back copy holds none of it
+
+         Rectangle region = regions[back];
+         boolean[] s = stale[back];
+         if (region.x != left || region.y != top ||
+             region.width != right - left || region.height != bottom - top)
+         {
+            region.setBounds(left, top, right - left, bottom - top);
+            if (cells[back].length < region.width * region.height)
+               cells[back] = new byte[region.width * region.height];
+            for (int cy = rowTop; cy < rowBottom; ++cy)
+               Arrays.fill(s, cy * cols + colLeft, cy * cols + colRight, true);
+         }
+            // bring the back copy up to date
+
+         byte[] from = world.cells;
+         byte[] to = cells[back];
+         for (int cy = rowTop; cy < rowBottom; ++cy)
+            for (int cx = colLeft; cx < colRight; )
+            {
+               int c = cy * cols + cx;
+               if (!s[c])
+               {
+                  ++cx;
+                  continue;
+               }
+               int run = 0;
+               while (cx + run < colRight && s[c + run])
+                  s[c + run++] = false;
+               int x0 = Math.max(left, cx << CHUNK_SHIFT);
+               int w = Math.min(right, (cx + run) << CHUNK_SHIFT) - x0;
+               int y1 = Math.min(bottom, (cy + 1) << CHUNK_SHIFT);
+               for (int y = Math.max(top, cy << CHUNK_SHIFT); y < y1; ++y)
+                  System.arraycopy(from, y * width + x0,
+                                   to, (y - top) * region.width + x0 - left, w);
+               cx += run;
+            }
+         System.arraycopy(dirty, 0, changed[back], 0, dirty.length);
+         views[back] = view;
+         ticks[back] = world.getTick();
+         sequences[back] = ++published;
+         back = latest.getAndSet(back | FRESH) & INDEX;
+      }
+         /**
+          * Take the latest copy if one has been published since the
+          * last call.  Only the rendering thread may call this.
+          *
+          * @return The cells of the latest copy, or null if none has
+          *  been published since the last call.
+          */
+
+      public byte[] take()
+      {
+         if ((latest.get() & FRESH) == 0)
+            return null;
+         front = latest.getAndSet(front) & INDEX;
+         return cells[front];
+      }
+         /** @return The tick of the copy last taken. */
+
+      public long getTick()
+      {
+         return ticks[front];
+      }
+         /** @return The number of the copy last taken in the order
+          * copies were published, from 1.  If it is not one more than
+          * that of the copy taken before, copies were skipped. */
+
+      public long getSequence()
+      {
+         return sequences[front];
+      }
+         /** @return The view the copy last taken was taken for. */
+
+      public Viewport getView()
+      {
+         return views[front];
+      }
+         /** @return The chunks of the copy last taken which changed
+          * since the copy published before it, in row order. */
+
+      public boolean[] getChanged()
+      {
+         return changed[front];
+      }
+         /** @return The number of chunks. */
+
+      public int getChunkCount()
+      {
+         return cols * rows;
+      }
+         /** @return The number of chunks in view in the copy last
+          * taken. */
+
+      public int getVisibleChunkCount()
+      {
+         Rectangle r = regions[front];
+         return (((r.x + r.width + CHUNK_SIZE - 1) >> CHUNK_SHIFT) - (r.x >> CHUNK_SHIFT)) *
+            (((r.y + r.height + CHUNK_SIZE - 1) >> CHUNK_SHIFT) - (r.y >> CHUNK_SHIFT));
+      }
+         /**
+          * Count the chunks in view in the copy last taken which are
+          * marked.
+          *
+          * @param chunks chunks in row order
+          * @return The number of chunks in view which are marked.
+          */
+
+      public int count(boolean[] chunks)
+      {
+         Rectangle r = regions[front];
+         int count = 0;
+         for (int cy = r.y >> CHUNK_SHIFT,
+                 rowBottom = (r.y + r.height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+              cy < rowBottom; ++cy)
+            for (int cx = r.x >> CHUNK_SHIFT,
+                    colRight = (r.x + r.width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+                 cx < colRight; ++cx)
+               if (chunks[cy * cols + cx])
+                  ++count;
+         return count;
+      }
+         /**
+          * Paint chunks of the copy last taken into the pixels of the
+          * screen, each cell as a square of pixels of the color of its
+          * element.  Painting all of it also paints the screen beyond
+          * the edges of the world.
+          *
+          * @param chunks chunks to paint, in row order, or null to
+          *  paint them all
+          * @param pixels pixels of an image the size of the view
+          */
+
+      public void paint(boolean[] chunks, int[] pixels)
+      {
+         Viewport view = views[front];
+         Rectangle r = regions[front];
+         if (chunks == null)
+         {
+            if (r.width * view.getZoom() < view.getWidth() ||
+                r.height * view.getZoom() < view.getHeight())
+               Arrays.fill(pixels, OUTSIDE);
+            paintCells(r.x, r.y, r.x + r.width, r.y + r.height, pixels);
+            return;
+         }
+         int right = r.x + r.width;
+         int bottom = r.y + r.height;
+         int colRight = (right + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         for (int cy = r.y >> CHUNK_SHIFT,
+                 rowBottom = (bottom + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+              cy < rowBottom; ++cy)
+            for (int cx = r.x >> CHUNK_SHIFT; cx < colRight; )
+            {
+               int run = 0;
+               while (cx + run < colRight && chunks[cy * cols + cx + run])
+                  ++run;
+               if (run == 0)
+               {
+                  ++cx;
+                  continue;
+               }
+               paintCells(Math.max(r.x, cx << CHUNK_SHIFT),
+                          Math.max(r.y, cy << CHUNK_SHIFT),
+                          Math.min(right, (cx + run) << CHUNK_SHIFT),
+                          Math.min(bottom, (cy + 1) << CHUNK_SHIFT),
+                          pixels);
+               cx += run;
+            }
+      }
+         /**
+          * Paint a rectangle of cells of the copy last taken into the
+          * pixels of the screen.  Each row of cells is painted as one
+          * row of pixels, which is then copied down to the others.
+          *
+          * @param left leftmost column, in the region of the copy
+          * @param top top row, in the region of the copy
+          * @param right column after the rightmost
+          * @param bottom row after the bottom
+          * @param pixels pixels of an image the size of the view
+          */
+
+      protected void paintCells(int left, int top, int right, int bottom,
+                                int[] pixels)
+      {
+         byte[] cells = this.cells[front];
+         Viewport view = views[front];
+         Rectangle r = regions[front];
+         int[] palette = World.PALETTE;
+         int zoom = view.getZoom();
+         int screenWidth = view.getWidth();
+         int screenHeight = view.getHeight();
+         int px0 = (left - view.getX()) * zoom;
+         int px1 = Math.min(screenWidth, (right - view.getX()) * zoom);
+         if (px1 <= px0)
+            return;
+         for (int y = top; y < bottom; ++y)
+         {
+            int py0 = (y - view.getY()) * zoom;
+            if (py0 >= screenHeight)
+               break;
+            int py1 = Math.min(screenHeight, py0 + zoom);
+            int row = py0 * screenWidth;
+            int i = (y - r.y) * r.width + left - r.x;
+            if (zoom == 1)
+               for (int p = row + px0, end = row + px1; p < end; ++p)
+                  pixels[p] = palette[cells[i++]];
+            else
+               for (int p = row + px0, end = row + px1; p < end; )
+               {
+                  int color = palette[cells[i++]];
+                  for (int stop = Math.min(end, p + zoom); p < stop; ++p)
+                     pixels[p] = color;
+               }
+            for (int py = py0 + 1; py < py1; ++py)
+               System.arraycopy(pixels, row + px0,
+                                pixels, py * screenWidth + px0, px1 - px0);
+         }
+      }
+         /**
+          * Add the regions of the screen covered by chunks in view in
+          * the copy last taken to a list, each a run of chunks along a
+          * row, clipped to the world and to the view.
+          *
+          * @param chunks chunks in row order
+          * @param regions list to add regions to
+          */
+
+      public void getRegions(boolean[] chunks, List<Rectangle> regions)
+      {
+         Viewport view = views[front];
+         Rectangle r = this.regions[front];
+         int colRight = (r.x + r.width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         for (int cy = r.y >> CHUNK_SHIFT,
+                 rowBottom = (r.y + r.height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+              cy < rowBottom; ++cy)
+            for (int cx = r.x >> CHUNK_SHIFT; cx < colRight; )
+            {
+               int run = 0;
+               while (cx + run < colRight && chunks[cy * cols + cx + run])
+                  ++run;
+               if (run == 0)
+               {
+                  ++cx;
+                  continue;
+               }
+               int left = cx << CHUNK_SHIFT;
+               int top = cy << CHUNK_SHIFT;
+               Rectangle screen = view.toScreen(new Rectangle(
+                  left, top,
+                  Math.min(width, (cx + run) << CHUNK_SHIFT) - left,
+                  Math.min(height, top + CHUNK_SIZE) - top));
+               if (!screen.isEmpty())
+                  regions.add(screen);
+               cx += run;
+            }
+      }
+         /** @return The width of the world copied. */
+
+      public int getWidth()
+      {
+         return width;
+      }
+         /** @return The height of the world copied. */
+
+      public int getHeight()
+      {
+         return height;
+      }
+}
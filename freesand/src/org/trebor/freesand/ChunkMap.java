@@ -0,0 +1,332 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.CHUNK_SHIFT;
+import static org.trebor.freesand.World.CHUNK_SIZE;
+
+import java.util.Arrays;
+
+   /**
+    * ChunkMap divides a grid of cells into square chunks of {@link
+    * World#CHUNK_SIZE} cells and tracks which of them are awake.  Only
+    * awake chunks are processed on an update.  A chunk stays awake on
+    * the next update if something changed in it, or in a chunk next to
+    * it, so settled regions of a world cost nothing.
+    */
+
+public class ChunkMap
+{
+         // globals
+
+
+         /** state bit of a chunk which is awake */
+
+      public static final int AWAKE   = 1;
+
+         /** state bit of a chunk in which something changed */
+
+      public static final int CHANGED = 2;
+
+         /** number of chunk columns */
+
+      protected final int cols;
+
+         /** number of chunk rows */
+
+      protected final int rows;
+
+         /** chunks to be processed this update cycle, chunks which are
+          * not awake are skipped entirely */
+
+      protected boolean[] awake;
+
+         /** chunks in which something changed this update cycle */
+
+      protected boolean[] changed;
+
+         /** chunks in which something changed since they were last
+          * collected with {@link #collectDirty(boolean[])} */
+
+      protected boolean[] dirty;
+
+         /** spare chunk map into which the next awake chunks are
+          * computed */
+
+      protected boolean[] nextAwake;
+
+         /** chunk rows which contain at least one awake chunk */
+
+      protected boolean[] awakeRows;
+
+         /** number of awake chunks this update cycle */
+
+      protected int       awakeCount;
+
+         /**
+          * Construct a chunk map covering a grid of a given size.
+          * Every chunk starts asleep, and dirty.
+          *
+          * @param width width of the grid in cells
+          * @param height height of the grid in cells
+          */
+
+      public ChunkMap(int width, int height)
+      {
+         cols      = (width  + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         rows      = (height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+         awake     = new boolean[cols * rows];
+         changed   = new boolean[cols * rows];
+         dirty     = new boolean[cols * rows];
+         nextAwake = new boolean[cols * rows];
+         Arrays.fill(dirty, true);
+         awakeRows = new boolean[rows];
+      }
+         /**
+          * Wake the chunks covering a given rectangle of cells, and
+          * those next to them, so that they are processed on the next
+          * update.
+          *
+          * @param x left edge of rectangle
+          * @param y top edge of rectangle
+          * @param w width of rectangle
+          * @param h height of rectangle
+          */
+
+      public synchronized void wake(int x, int y, int w, int h)
+      {
+         int left   = Math.max(0, (x >> CHUNK_SHIFT) - 1);
+         int top    = Math.max(0, (y >> CHUNK_SHIFT) - 1);
+         int right  = Math.min(cols - 1, ((x + w - 1) >> CHUNK_SHIFT) + 1);
+         int bottom = Math.min(rows - 1, ((y + h - 1) >> CHUNK_SHIFT) + 1);
+
+         for (int cy = top; cy <= bottom; ++cy)
+         {
+            for (int cx = left; cx <= right; ++cx)
+            {
+               int c = cy * cols + cx;
+               if (!awake[c])
+               {
+                  awake[c] = true;
+                  ++awakeCount;
+               }
+               changed[c] = true;
+               dirty[c] = true;
+            }
+            awakeRows[cy] = true;
+         }
+      }
+         /**
+          * Compute which chunks are awake for the next update cycle.  A
+          * chunk is awake if something changed in it, or in a chunk next
+          * to it, during the cycle just completed.
+          */
+
+      public void settle()
+      {
+         settle(0, rows - 1);
+      }
+         /**
+          * Compute which chunks in a range of chunk rows are awake for
+          * the next update cycle, for a grid of which only those rows
+          * are updated.  Chunk rows outside the range are left in an
+          * unknown state, and only the chunks in the range are
+          * counted.
+          *
+          * @param top top most chunk row to settle
+          * @param bottom bottom most chunk row to settle
+          */
+
+      public synchronized void settle(int top, int bottom)
+      {
+         boolean[] next = nextAwake;
+         awakeCount = 0;
+
+         for (int cy = top; cy <= bottom; ++cy)
+         {
+            boolean rowAwake = false;
+            int above = Math.max(0, cy - 1);
+            int below = Math.min(rows - 1, cy + 1);
+
+            for (int cx = 0; cx < cols; ++cx)
+            {
+               int left  = Math.max(0, cx - 1);
+               int right = Math.min(cols - 1, cx + 1);
+               boolean wake = false;
+
+               for (int ny = above; !wake && ny <= below; ++ny)
+                  for (int nx = left; !wake && nx <= right; ++nx)
+                     wake = changed[ny * cols + nx];
+
+               next[cy * cols + cx] = wake;
+               if (wake)
+               {
+                     // particles cross into chunks next to those
+                     // they changed in, so those are dirty too
+
+                  dirty[cy * cols + cx] = true;
+                  rowAwake = true;
+                  ++awakeCount;
+               }
+            }
+            awakeRows[cy] = rowAwake;
+         }
+            // swap in the new map and forget what changed
+
+         nextAwake = awake;
+         awake = next;
+         Arrays.fill(changed, Math.max(0, top - 1) * cols,
+                     Math.min(rows, bottom + 2) * cols, false);
+      }
+         /**
+          * Copy which chunks of another map are awake and changed into
+          * this map, shifted by a number of chunks.  Chunks which fall
+          * outside this map are dropped.
+          *
+          * @param other map to copy from
+          * @param dx chunk column of this map at which the other map
+          *  starts
+          * @param dy chunk row of this map at which the other map starts
+          */
+
+      public synchronized void copy(ChunkMap other, int dx, int dy)
+      {
+         for (int cy = 0; cy < other.rows; ++cy)
+         {
+            int ny = cy + dy;
+            if (ny < 0 || ny >= rows)
+               continue;
+            for (int cx = 0; cx < other.cols; ++cx)
+            {
+               int nx = cx + dx;
+               if (nx < 0 || nx >= cols)
+                  continue;
+               int c = ny * cols + nx;
+               int o = cy * other.cols + cx;
+               if (other.awake[o] && !awake[c])
+               {
+                  awake[c] = true;
+                  awakeRows[ny] = true;
+                  ++awakeCount;
+               }
+               changed[c] |= other.changed[o];
+               dirty[c] = true;
+            }
+         }
+      }
+         /**
+          * Store which chunks are awake and changed, one byte per chunk
+          * in row order, with {@link #AWAKE} and {@link #CHANGED} set.
+          *
+          * @param state array of at least {@link #getCount()} bytes
+          */
+
+      public synchronized void getState(byte[] state)
+      {
+         for (int c = 0; c < awake.length; ++c)
+            state[c] = (byte)((awake[c] ? AWAKE : 0) | (changed[c] ? CHANGED : 0));
+      }
+         /**
+          * Restore which chunks are awake and changed from bytes stored
+          * by {@link #getState(byte[])}.
+          *
+          * @param state array of at least {@link #getCount()} bytes
+          */
+
+      public synchronized void setState(byte[] state)
+      {
+         awakeCount = 0;
+         Arrays.fill(awakeRows, false);
+         for (int c = 0; c < awake.length; ++c)
+         {
+            awake[c] = (state[c] & AWAKE) != 0;
+            changed[c] = (state[c] & CHANGED) != 0;
+            dirty[c] = true;
+            if (awake[c])
+            {
+               awakeRows[c / cols] = true;
+               ++awakeCount;
+            }
+         }
+      }
+         /**
+          * Collect the chunks in which something changed since they
+          * were last collected, adding them to those already marked,
+          * and forget them.
+          *
+          * @param into array of {@link #getCount()} chunks in row order,
+          *  dirty chunks are set true and others are left alone
+          * @return The number of dirty chunks collected.
+          */
+
+      public synchronized int collectDirty(boolean[] into)
+      {
+         int count = 0;
+         for (int c = 0; c < dirty.length; ++c)
+            if (dirty[c])
+            {
+               into[c] = true;
+               dirty[c] = false;
+               ++count;
+            }
+         return count;
+      }
+         /**
+          * Test if any chunk in a range of cell rows is awake.
+          *
+          * @param top top most cell row
+          * @param bottom bottom most cell row
+          * @return True if some chunk covering those rows is awake.
+          */
+
+      public boolean isAwake(int top, int bottom)
+      {
+         for (int cy = top >> CHUNK_SHIFT; cy <= bottom >> CHUNK_SHIFT; ++cy)
+            if (awakeRows[cy])
+               return true;
+         return false;
+      }
+         /**
+          * Return the number of chunks which will be processed on the
+          * next update cycle.
+          *
+          * @return The number of awake chunks.
+          */
+
+      public int getAwakeCount()
+      {
+         return awakeCount;
+      }
+         /**
+          * Return the total number of chunks.
+          *
+          * @return The number of chunks.
+          */
+
+      public int getCount()
+      {
+         return awake.length;
+      }
+}
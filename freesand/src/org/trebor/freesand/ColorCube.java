@@ -0,0 +1,266 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.util.concurrent.RecursiveAction;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * ColorCube finds the element nearest to a color, the element whose
+    * color is the least sum of differences in red, green and blue
+    * away, the first such element winning a tie.  Color space is cut
+    * into a cube of cells, {@link #BITS} bits to a channel, and each
+    * cell holds the element nearest to every color in it.  Cells which
+    * straddle the boundary between two elements are marked as such,
+    * and colors in them are matched against every element.  The cube
+    * is built once, the first time it is used.
+    *
+    * <p>The difference between the distances of a color to two
+    * elements is a sum, over the channels, of a function of that
+    * channel alone which only rises or only falls.  So over a cell it
+    * is least at one of the two ends of each channel, which is how a
+    * cell is proven to have a single nearest element.</p>
+    */
+
+public class ColorCube
+{
+         // globals
+
+
+         /** bits of each channel which index the cube */
+
+      public static final int    BITS = 6;
+
+         /** number of cells along each side of the cube */
+
+      public static final int    SIDE = 1 << BITS;
+
+         /** marks a cell with more than one nearest element */
+
+      protected static final byte MIXED = -1;
+
+         /** fewest pixels converted by a single task */
+
+      protected static final int MIN_BLOCK = 1 << 16;
+
+         /** red, green and blue of each element, indexed by id */
+
+      protected static final int[] RED, GREEN, BLUE;
+
+         /** the nearest element id to the colors of each cell, or
+          * {@link #MIXED} */
+
+      protected static final byte[] CELLS;
+
+      static
+      {
+         Element[] elements = Element.values();
+         RED   = new int[elements.length];
+         GREEN = new int[elements.length];
+         BLUE  = new int[elements.length];
+         for (Element e: elements)
+         {
+            RED[e.getId()]   = e.getColor().getRed();
+            GREEN[e.getId()] = e.getColor().getGreen();
+            BLUE[e.getId()]  = e.getColor().getBlue();
+         }
+         CELLS = build();
+      }
+         /**
+          * Find the id of the element nearest to a color.
+          *
+          * @param rgb color to match, alpha is ignored
+          * @return The id of the nearest element.
+          */
+
+      public static byte nearest(int rgb)
+      {
+         byte id = CELLS[((rgb >> (24 - 3 * BITS)) & ((SIDE - 1) << (2 * BITS))) |
+                         ((rgb >> (16 - 2 * BITS)) & ((SIDE - 1) << BITS)) |
+                         ((rgb >> (8 - BITS)) & (SIDE - 1))];
+         return id != MIXED
+            ? id
+            : scan((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+      }
+         /**
+          * Find the id of the element nearest to a color by matching it
+          * against every element.
+          *
+          * @param r red of the color
+          * @param g green of the color
+          * @param b blue of the color
+          * @return The id of the nearest element.
+          */
+
+      protected static byte scan(int r, int g, int b)
+      {
+         int minDelta = Integer.MAX_VALUE;
+         int nearest = 0;
+         for (int i = 0; i < RED.length; ++i)
+         {
+            int delta = Math.abs(r - RED[i]) + Math.abs(g - GREEN[i]) +
+               Math.abs(b - BLUE[i]);
+            if (delta < minDelta)
+            {
+               minDelta = delta;
+               nearest = i;
+            }
+         }
+         return (byte)nearest;
+      }
+         /**
+          * Build the cube, finding for each cell the element nearest to
+          * its lowest color, then proving that element is nearest to
+          * every color in the cell.
+          *
+          * @return The nearest element id of each cell.
+          */
+
+      protected static byte[] build()
+      {
+         int step = 256 / SIDE;
+         byte[] cells = new byte[SIDE * SIDE * SIDE];
+         int i = 0;
+         for (int r = 0; r < 256; r += step)
+            for (int g = 0; g < 256; g += step)
+               for (int b = 0; b < 256; b += step)
+               {
+                  int e = scan(r, g, b);
+                  cells[i++] = nearestThroughout(e, r, g, b, step - 1)
+                     ? (byte)e
+                     : MIXED;
+               }
+         return cells;
+      }
+         /**
+          * Test if an element is the nearest to every color in a cell,
+          * winning any ties.
+          *
+          * @param e id of the element
+          * @param r lowest red of the cell
+          * @param g lowest green of the cell
+          * @param b lowest blue of the cell
+          * @param span difference between lowest and highest of each
+          *  channel of the cell
+          * @return True if the element is nearest throughout.
+          */
+
+      protected static boolean nearestThroughout(int e, int r, int g, int b,
+                                                 int span)
+      {
+         for (int f = 0; f < RED.length; ++f)
+         {
+            if (f == e)
+               continue;
+
+               // least margin by which f is further away than e
+
+            int margin =
+               leastMargin(RED[e],   RED[f],   r, r + span) +
+               leastMargin(GREEN[e], GREEN[f], g, g + span) +
+               leastMargin(BLUE[e],  BLUE[f],  b, b + span);
+            if (margin < 0 || (margin == 0 && f < e))
+               return false;
+         }
+         return true;
+      }
+         /**
+          * Find the least, over a range of one channel, of the distance
+          * to one value less the distance to another.  That difference
+          * only rises or only falls, so it is least at an end.
+          *
+          * @param e value the distance is taken from
+          * @param f value the distance is taken to
+          * @param lo lowest of the range
+          * @param hi highest of the range
+          * @return The least difference.
+          */
+
+      protected static int leastMargin(int e, int f, int lo, int hi)
+      {
+         return Math.min(Math.abs(lo - f) - Math.abs(lo - e),
+                         Math.abs(hi - f) - Math.abs(hi - e));
+      }
+         /**
+          * Replace each pixel of an image with the color of the element
+          * nearest to it.  Blocks of rows are converted in parallel.
+          *
+          * @param pixels argb pixels to convert in place
+          * @param width width of the image
+          */
+
+      public static void convert(int[] pixels, int width)
+      {
+         int height = pixels.length / Math.max(1, width);
+         World.BAND_POOL.invoke(new Convert(
+            pixels, width, 0, height,
+            Math.max(1, MIN_BLOCK / Math.max(1, width))));
+      }
+         /**
+          * Convert a block of rows, splitting it in two while it is
+          * large enough.
+          */
+
+      protected static class Convert extends RecursiveAction
+      {
+         private static final long serialVersionUID = 1L;
+
+         final int[] pixels;
+         final int   width, top, bottom, minRows;
+
+         Convert(int[] pixels, int width, int top, int bottom, int minRows)
+         {
+            this.pixels = pixels;
+            this.width = width;
+            this.top = top;
+            this.bottom = bottom;
+            this.minRows = minRows;
+         }
+         protected void compute()
+         {
+            if (bottom - top > minRows)
+            {
+               int middle = (top + bottom) >>> 1;
+               invokeAll(new Convert(pixels, width, top, middle, minRows),
+                         new Convert(pixels, width, middle, bottom, minRows));
+               return;
+            }
+            int[] palette = World.PALETTE;
+            int last = 0;
+            int lastValue = palette[nearest(0)];
+            for (int i = top * width, end = bottom * width; i < end; ++i)
+            {
+               int rgb = pixels[i] & 0xffffff;
+               if (rgb != last)
+               {
+                  last = rgb;
+                  lastValue = palette[nearest(rgb)];
+               }
+               pixels[i] = lastValue;
+            }
+         }
+      }
+}
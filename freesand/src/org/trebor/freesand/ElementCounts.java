@@ -0,0 +1,187 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * ElementCounts is a snapshot of what the rules of each element
+    * have done since a world was created: the cells visited, the moves
+    * into air, the swaps with other elements and the reactions, which
+    * are cells turned into another element.  Counts are indexed by
+    * element id.  Counting is turned off, leaving every count zero,
+    * by running with the freesand.counts system property set to false.
+    *
+    * @see World#getElementCounts()
+    */
+
+public class ElementCounts
+{
+         // globals
+
+
+         /** counts are kept only if the freesand.counts property is
+          * not false, the kernels test this once per count and the
+          * test folds away as it is constant */
+
+      public static final boolean ENABLED =
+         !"false".equals(System.getProperty("freesand.counts"));
+
+         /** log base two of the number of kinds of count kept for each
+          * element, the counts of element id p start at p shifted left
+          * this many bits */
+
+      public static final int SHIFT     = 2;
+
+         /** number of kinds of count kept for each element */
+
+      public static final int KINDS     = 1 << SHIFT;
+
+         /** offset of the visited count of an element */
+
+      public static final int VISITED   = 0;
+
+         /** offset of the moves count of an element */
+
+      public static final int MOVES     = 1;
+
+         /** offset of the swaps count of an element */
+
+      public static final int SWAPS     = 2;
+
+         /** offset of the reactions count of an element */
+
+      public static final int REACTIONS = 3;
+
+         /** cells with a rule which were visited */
+
+      protected final long[] visited;
+
+         /** times an element moved into air */
+
+      protected final long[] moves;
+
+         /** times an element swapped places with another element */
+
+      protected final long[] swaps;
+
+         /** cells changed into another element by a rule */
+
+      protected final long[] reactions;
+
+         /**
+          * Construct empty counts.
+          */
+
+      public ElementCounts()
+      {
+         int n = Element.values().length;
+         visited   = new long[n];
+         moves     = new long[n];
+         swaps     = new long[n];
+         reactions = new long[n];
+      }
+         /**
+          * Add the counts of a kernel to these counts.
+          *
+          * @param k kernel to add counts of
+          */
+
+      void add(Kernel k)
+      {
+         for (int i = 0; i < visited.length; ++i)
+         {
+            visited[i]   += k.counts[i * KINDS + VISITED];
+            moves[i]     += k.counts[i * KINDS + MOVES];
+            swaps[i]     += k.counts[i * KINDS + SWAPS];
+            reactions[i] += k.counts[i * KINDS + REACTIONS];
+         }
+      }
+         /**
+          * Return the counts accumulated since an earlier snapshot.
+          *
+          * @param earlier earlier snapshot of the same world
+          * @return The difference between this and the earlier snapshot.
+          */
+
+      public ElementCounts since(ElementCounts earlier)
+      {
+         ElementCounts d = new ElementCounts();
+         for (int i = 0; i < visited.length; ++i)
+         {
+            d.visited[i]   = visited[i]   - earlier.visited[i];
+            d.moves[i]     = moves[i]     - earlier.moves[i];
+            d.swaps[i]     = swaps[i]     - earlier.swaps[i];
+            d.reactions[i] = reactions[i] - earlier.reactions[i];
+         }
+         return d;
+      }
+         /** @return The number of cells of an element visited. */
+
+      public long getVisited(Element el)
+      {
+         return visited[el.getId()];
+      }
+         /** @return The number of moves of an element into air. */
+
+      public long getMoves(Element el)
+      {
+         return moves[el.getId()];
+      }
+         /** @return The number of swaps of an element with another. */
+
+      public long getSwaps(Element el)
+      {
+         return swaps[el.getId()];
+      }
+         /** @return The number of cells changed by an element's rule. */
+
+      public long getReactions(Element el)
+      {
+         return reactions[el.getId()];
+      }
+         /**
+          * Return these counts as a table with a row for each element
+          * which was visited.
+          *
+          * @return These counts as a string.
+          */
+
+      public String toString()
+      {
+         StringBuilder sb = new StringBuilder(String.format(
+            "%-16s %12s %12s %12s %12s%n",
+            "element", "visited", "moves", "swaps", "reactions"));
+         for (Element el: Element.values())
+         {
+            int i = el.getId();
+            if (visited[i] != 0)
+               sb.append(String.format("%-16s %12d %12d %12d %12d%n",
+                                       el.name(), visited[i], moves[i],
+                                       swaps[i], reactions[i]));
+         }
+         return sb.toString();
+      }
+}
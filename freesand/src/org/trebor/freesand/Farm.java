@@ -0,0 +1,490 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * Farm runs many small worlds at once from the command line, for
+    * studies of how a world turns out as the chances of things
+    * happening in it are varied.  Every scenario starts from the same
+    * input world, with its own seed and chances, and runs on a single
+    * thread of a shared pool until it reaches a steady state or a
+    * tick limit.  A world is steady once the number of cells of each
+    * element has not changed for a number of ticks, even if cells of
+    * an element are still moving about.  The count of each element at
+    * the end and the tick the world became steady are written, one
+    * scenario to a line, to a CSV file.
+    *
+    * <p>Scenarios are every combination of the seeds and the chances
+    * given.  By default the pool has a thread for each processor,
+    * which suits scenarios that only compute.  With -virtual each
+    * scenario has a virtual thread of its own, on a java runtime
+    * which has them.</p>
+    *
+    * <pre>
+    * java -Djava.awt.headless=true -cp freesand.jar org.trebor.freesand.Farm
+    *    [-ticks N] [-steady N] [-seeds N] [-seed N] [-threads N | -virtual]
+    *    [-fire N,..] [-water N,..] [-plant N,..] [-sand N,..]
+    *    (input.png | input.fsworld) output.csv
+    * </pre>
+    */
+
+public class Farm
+{
+         // globals
+
+
+         /** default most ticks to run each scenario */
+
+      public static final int DEFAULT_TICKS  = 5000;
+
+         /** default number of ticks element counts must hold still
+          * for a world to be steady */
+
+      public static final int DEFAULT_STEADY = 100;
+
+         /** usage message */
+
+      public static final String USAGE =
+         "usage: Farm [-ticks N] [-steady N] [-seeds N] [-seed N]\n" +
+         "            [-threads N | -virtual]\n" +
+         "            [-fire N,..] [-water N,..] [-plant N,..] [-sand N,..]\n" +
+         "            (input.png | input." + Snapshot.FILE_EXTENSION + ")" +
+         " output.csv";
+
+         /** world every scenario starts from */
+
+      protected final World    start;
+
+         /** most ticks to run each scenario */
+
+      protected final int      maxTicks;
+
+         /** ticks element counts must hold still for a world to be
+          * steady */
+
+      protected final int      steady;
+
+         /** scenarios run */
+
+      protected final List<Scenario> scenarios = new ArrayList<Scenario>();
+
+         /** nanoseconds taken by the last call to {@link #run} */
+
+      protected long           nanos;
+
+         /**
+          * Construct a farm of scenarios which start from a given world.
+          *
+          * @param start world every scenario starts from, which is not
+          *  changed
+          * @param maxTicks most ticks to run each scenario
+          * @param steady ticks element counts must hold still for a
+          *  world to be steady
+          */
+
+      public Farm(World start, int maxTicks, int steady)
+      {
+         this.start = start;
+         this.maxTicks = maxTicks;
+         this.steady = Math.max(1, steady);
+      }
+         /**
+          * Add a scenario for every combination of the given seeds and
+          * chances.
+          *
+          * @param seeds seeds of the worlds
+          * @param fire chances in X that fire will spread
+          * @param water chances in X that a water source spouts
+          * @param plant chances in X that plant will grow
+          * @param sand chances in X that a sand source spouts
+          */
+
+      public void addScenarios(long[] seeds, int[] fire, int[] water,
+                               int[] plant, int[] sand)
+      {
+         for (int f: fire)
+            for (int w: water)
+               for (int p: plant)
+                  for (int s: sand)
+                     for (long seed: seeds)
+                        scenarios.add(new Scenario(
+                           scenarios.size(), seed, f, w, p, s));
+      }
+         /**
+          * Run every scenario on an executor, waiting for them all to
+          * finish.  Each scenario updates its world serially, so the
+          * scenarios themselves are what run in parallel.
+          *
+          * @param executor executor to run the scenarios on
+          * @throws InterruptedException if interrupted while waiting
+          * @throws ExecutionException if a scenario fails
+          */
+
+      public void run(ExecutorService executor)
+         throws InterruptedException, ExecutionException
+      {
+         long begin = System.nanoTime();
+         List<Future<Scenario>> futures = new ArrayList<Future<Scenario>>();
+         for (Scenario s: scenarios)
+            futures.add(executor.submit(s));
+         for (Future<Scenario> f: futures)
+            f.get();
+         nanos = System.nanoTime() - begin;
+      }
+         /**
+          * Write the results of every scenario as CSV, one scenario to
+          * a line, in the order they were added.
+          *
+          * @param out writer to write to
+          */
+
+      public void writeCsv(PrintWriter out)
+      {
+         out.print("scenario,seed,fire,water,plant,sand,ticks,steady_tick,ms");
+         for (Element el: Element.values())
+            out.print("," + el.name().toLowerCase(Locale.ROOT)
+                      .replaceFirst("_el$", ""));
+         out.println();
+         for (Scenario s: scenarios)
+         {
+            out.printf(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%d,%.3f",
+                       s.index, s.seed, s.fireChanceIn, s.waterChanceIn,
+                       s.plantChanceIn, s.sandChanceIn, s.ticks,
+                       s.steadyTick, s.nanos / 1e6);
+            for (int count: s.counts)
+               out.print("," + count);
+            out.println();
+         }
+      }
+         /** @return The scenarios of this farm. */
+
+      public List<Scenario> getScenarios()
+      {
+         return scenarios;
+      }
+         /**
+          * Print a report of the last run.
+          */
+
+      public void report()
+      {
+         long ticks = 0;
+         int steadyCount = 0;
+         for (Scenario s: scenarios)
+         {
+            ticks += s.ticks;
+            if (s.steadyTick >= 0)
+               ++steadyCount;
+         }
+         double cells = (double)start.getWidth() * start.getHeight() * ticks;
+         System.out.printf("world      %dx%d%n",
+                           start.getWidth(), start.getHeight());
+         System.out.printf("scenarios  %d, %d steady%n",
+                           scenarios.size(), steadyCount);
+         System.out.printf("ticks      %d%n", ticks);
+         System.out.printf("time       %.3f s%n", nanos / 1e9);
+         System.out.printf("rate       %.1f scenarios/s, %.1f ticks/s, " +
+                           "%.2f Mcells/s%n",
+                           scenarios.size() * 1e9 / Math.max(1, nanos),
+                           ticks * 1e9 / Math.max(1, nanos),
+                           cells * 1e3 / Math.max(1, nanos));
+      }
+         /**
+          * Create an executor which runs each task on a virtual thread
+          * of its own.  Virtual threads are looked up by reflection, so
+          * that the farm still builds and runs on older java runtimes.
+          *
+          * @return The executor.
+          * @throws UnsupportedOperationException if this runtime has
+          *  no virtual threads
+          */
+
+      public static ExecutorService createVirtualExecutor()
+      {
+         try
+         {
+            return (ExecutorService)Executors.class
+               .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         }
+         catch (Exception e)
+         {
+            throw new UnsupportedOperationException(
+               "virtual threads need java 21 or later");
+         }
+      }
+         /**
+          * Parse a comma separated list of ints.
+          *
+          * @param list list to parse
+          * @return The ints in the list.
+          */
+
+      protected static int[] parseInts(String list)
+      {
+         String[] items = list.split(",");
+         int[] ints = new int[items.length];
+         for (int i = 0; i < items.length; ++i)
+            ints[i] = Integer.parseInt(items[i].trim());
+         return ints;
+      }
+         /**
+          * Run a farm from the command line.
+          *
+          * @param args command line arguments, see {@link #USAGE}
+          */
+
+      public static void main(String[] args)
+      {
+         System.setProperty("java.awt.headless", "true");
+
+         int     maxTicks = DEFAULT_TICKS;
+         int     steady   = DEFAULT_STEADY;
+         int     seeds    = 1;
+         long    seed     = 0;
+         int     threads  = Runtime.getRuntime().availableProcessors();
+         boolean virtual  = false;
+         int[]   fire     = {World.FIRE_CHANCE_IN};
+         int[]   water    = {World.WATER_CHANCE_IN};
+         int[]   plant    = {World.PLANT_CHANCE_IN};
+         int[]   sand     = {World.SAND_CHANCE_IN};
+         File    input    = null;
+         File    output   = null;
+
+         try
+         {
+               // parse arguments
+
+            for (int i = 0; i < args.length; ++i)
+            {
+               String arg = args[i];
+               if (arg.equals("-ticks"))
+                  maxTicks = Integer.parseInt(args[++i]);
+               else if (arg.equals("-steady"))
+                  steady = Integer.parseInt(args[++i]);
+               else if (arg.equals("-seeds"))
+                  seeds = Integer.parseInt(args[++i]);
+               else if (arg.equals("-seed"))
+                  seed = Long.parseLong(args[++i]);
+               else if (arg.equals("-threads"))
+                  threads = Integer.parseInt(args[++i]);
+               else if (arg.equals("-virtual"))
+                  virtual = true;
+               else if (arg.equals("-fire"))
+                  fire = parseInts(args[++i]);
+               else if (arg.equals("-water"))
+                  water = parseInts(args[++i]);
+               else if (arg.equals("-plant"))
+                  plant = parseInts(args[++i]);
+               else if (arg.equals("-sand"))
+                  sand = parseInts(args[++i]);
+               else if (arg.startsWith("-"))
+                  throw new IllegalArgumentException("unknown option " + arg);
+               else if (input == null)
+                  input = new File(arg);
+               else if (output == null)
+                  output = new File(arg);
+               else
+                  throw new IllegalArgumentException("too many files");
+            }
+            if (input == null || output == null)
+               throw new IllegalArgumentException("missing file");
+            if (seeds < 1 || threads < 1)
+               throw new IllegalArgumentException(
+                  "-seeds and -threads must be at least 1");
+         }
+         catch (RuntimeException e)
+         {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+         }
+         ExecutorService executor = null;
+         try
+         {
+               // establish the scenarios
+
+            Farm farm = new Farm(Runner.readWorld(input), maxTicks, steady);
+            long[] seedList = new long[seeds];
+            for (int i = 0; i < seeds; ++i)
+               seedList[i] = seed + i;
+            farm.addScenarios(seedList, fire, water, plant, sand);
+
+               // run them and write the results
+
+            executor = virtual
+               ? createVirtualExecutor()
+               : Executors.newFixedThreadPool(threads);
+            farm.run(executor);
+            PrintWriter out = new PrintWriter(output, "UTF-8");
+            try
+            {
+               farm.writeCsv(out);
+            }
+            finally
+            {
+               out.close();
+            }
+            if (out.checkError())
+               throw new IOException("unable to write " + output);
+            farm.report();
+         }
+         catch (UnsupportedOperationException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+         catch (InterruptedException e)
+         {
+            System.err.println("interrupted");
+            System.exit(1);
+         }
+         catch (ExecutionException e)
+         {
+            e.getCause().printStackTrace();
+            System.exit(1);
+         }
+         finally
+         {
+            if (executor != null)
+               executor.shutdown();
+         }
+      }
+         /**
+          * A single world of the farm, with its own seed and chances,
+          * and its results once run.
+          */
+
+      public class Scenario implements Callable<Scenario>
+      {
+         final int  index;
+         final long seed;
+         final int  fireChanceIn, waterChanceIn, plantChanceIn, sandChanceIn;
+
+            /** ticks run */
+
+         long  ticks;
+
+            /** tick from which element counts held still, or -1 if
+             * they never did */
+
+         long  steadyTick = -1;
+
+            /** nanoseconds taken to run */
+
+         long  nanos;
+
+            /** number of cells of each element at the end, indexed by
+             * element id */
+
+         int[] counts;
+
+         Scenario(int index, long seed, int fireChanceIn, int waterChanceIn,
+                  int plantChanceIn, int sandChanceIn)
+         {
+            this.index = index;
+            this.seed = seed;
+            this.fireChanceIn = fireChanceIn;
+            this.waterChanceIn = waterChanceIn;
+            this.plantChanceIn = plantChanceIn;
+            this.sandChanceIn = sandChanceIn;
+         }
+            /**
+             * Run this scenario until it is steady or reaches the tick
+             * limit.
+             *
+             * @return This scenario.
+             */
+
+         public Scenario call()
+         {
+            long begin = System.nanoTime();
+            World world = new World(start);
+            world.reseed(seed);
+            world.setChances(fireChanceIn, waterChanceIn,
+                             plantChanceIn, sandChanceIn);
+
+               // update until the counts hold still for long enough
+
+            int[] last = world.countCells(null);
+            int[] next = null;
+            long stillSince = 0;
+            while (ticks < maxTicks)
+            {
+               world.update();
+               ++ticks;
+               next = world.countCells(next);
+               if (!Arrays.equals(last, next))
+               {
+                  int[] swap = last;
+                  last = next;
+                  next = swap;
+                  stillSince = ticks;
+               }
+               else if (ticks - stillSince >= steady)
+               {
+                  steadyTick = stillSince;
+                  break;
+               }
+            }
+            counts = last;
+            nanos = System.nanoTime() - begin;
+            return this;
+         }
+            /** @return The tick from which element counts held still,
+             * or -1 if they never did. */
+
+         public long getSteadyTick()
+         {
+            return steadyTick;
+         }
+            /** @return The number of cells of each element at the end,
+             * indexed by element id. */
+
+         public int[] getCounts()
+         {
+            return counts;
+         }
+      }
+}
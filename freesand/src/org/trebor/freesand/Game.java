@@ -41,26 +41,46 @@ import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.geom.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.ImageProducer;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
 import javax.swing.*;
 import javax.swing.event.MouseInputAdapter;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.trebor.freesand.World.Element;
 
@@ -87,6 +107,20 @@ public class Game extends JFrame
 
     public static final long   WORLD_PAINT_MS = 50;
 
+    /** fraction of the world which, if changed, is painted and drawn
+     * whole rather than a piece at a time */
+
+    public static final double FULL_FRAME_FRACTION = 0.5;
+
+    /** time for the animation thread to nap while paused */
+
+    public static final long   PAUSED_NAP_MS  = 10;
+
+    /** number of tick periods the animation thread may fall behind
+     * before it gives up on catching up */
+
+    public static final int    MAX_TICK_LAG   = 4;
+
     /** period of time to test each element */
 
     public static final long   TEST_PERIOD    = 1000;
@@ -123,13 +157,30 @@ public class Game extends JFrame
     // globals
 
 
-    /** simulation world image */
+    /** simulation world image, replaced by the animation thread
+     * between updates */
+
+    protected volatile World     world;
+
+    /** frames handed from the animation thread to the event
+     * dispatch thread */
 
-    protected World              world;
+    protected volatile TripleBuffer frames;
 
-    /** buffer for manual double buffering */
+    /** copies of the world handed from the animation thread to the
+     * render thread */
 
-    protected BufferedImage      frameBuffer;
+    protected volatile CellExchange cellFrames;
+
+    /** rectangle of the world shown in the world panel, and how
+     * many pixels each cell is drawn as */
+
+    protected volatile Viewport  viewport;
+
+    /** resize the world to fill the world panel, rather than show
+     * it through the viewport */
+
+    protected volatile boolean   fitWorld = true;
 
     /** should the paint brush be antialiased */
 
@@ -151,21 +202,35 @@ public class Game extends JFrame
 
     protected JFileChooser       fileChooser;
 
-    /** toggle display of statistics panel */
+    /** file chooser for input logs */
 
-    protected JCheckBoxMenuItem  statsToggleCbmi;
+    protected JFileChooser       inputLogChooser;
 
-    /** toggle full screen mode */
+    /** toggle recording of an input log */
 
-    protected JCheckBoxMenuItem  fullScreenCbmi;
+    protected JCheckBoxMenuItem  recordCbmi;
 
-    /** graphics for frameBuffer */
+    /** file chooser for frame recordings */
 
-    protected Graphics2D         bufferGr;
+    protected JFileChooser       recorderChooser;
 
-    /** graphics for world simulation */
+    /** toggle recording of frames */
 
-    protected Graphics2D         worldGr;
+    protected JCheckBoxMenuItem  recordFramesCbmi;
+
+    /** recorder of the frames of the world, or null if not
+     * recording frames, stopped by the animation thread when the
+     * world is replaced */
+
+    protected volatile Recorder  frameRecorder;
+
+    /** toggle display of statistics panel */
+
+    protected JCheckBoxMenuItem  statsToggleCbmi;
+
+    /** toggle full screen mode */
+
+    protected JCheckBoxMenuItem  fullScreenCbmi;
 
     /** a handy dandy random number generater */
 
@@ -183,6 +248,23 @@ public class Game extends JFrame
 
     protected double             frameRate;
 
+    /** computed tick rate */
+
+    protected double             ticksPerSecond;
+
+    /** ticks per second to update the world at, or 0 to update it
+     * as fast as possible */
+
+    protected volatile int       tickRate = 0;
+
+    /** fewest ticks between frames handed to the render thread */
+
+    protected volatile int       ticksPerFrame = 1;
+
+    /** set by the render thread when it is ready for another frame */
+
+    protected volatile boolean   frameWanted = true;
+
     /** low pass filter rate for frame rate */
 
     protected double             rateFilter  = 0.95;
@@ -199,6 +281,57 @@ public class Game extends JFrame
 
     protected double             paintPercent;
 
+    /** time taken to paint each frame, recorded by the animation
+     * thread */
+
+    protected LatencyHistogram   paintLatency = new LatencyHistogram();
+
+    /** number of bands the world is split into for parallel update,
+     * owned by the animation thread */
+
+    protected int                bands = 1;
+
+    /** edits of the world, such as brush strokes, fills and new
+     * worlds, waiting to be applied by the animation thread between
+     * updates, so each edit lands on a definite tick and none need
+     * the simulation paused */
+
+    protected ConcurrentLinkedQueue<Edit> edits =
+      new ConcurrentLinkedQueue<Edit>();
+
+    /** files the world is waiting to be saved to, captured by the
+     * animation thread between updates so no save is torn */
+
+    protected ConcurrentLinkedQueue<File> saves =
+      new ConcurrentLinkedQueue<File>();
+
+    /** thread which encodes and writes captured worlds, so the
+     * simulation runs on while they are saved */
+
+    protected ExecutorService    saver = Executors.newSingleThreadExecutor();
+
+    /** input log being recorded, or null if not recording, owned
+     * by the animation thread */
+
+    protected InputLog           recording;
+
+    /** input log being replayed, or null if not replaying, owned
+     * by the animation thread */
+
+    protected InputLog           replaying;
+
+    /** whether an input log is to be recorded, as last asked for
+     * on the event dispatch thread */
+
+    protected boolean            recordingInput;
+
+    /** filtered world update time in milliseconds for each number
+     * of bands the world has been updated with, written by the
+     * animation thread and read by the event thread */
+
+    protected ConcurrentHashMap<Integer, Double> bandUpdateMs =
+      new ConcurrentHashMap<Integer, Double>();
+
     /** current brush color */
 
     protected Color              brushColor  = WATER_EL.getColor();
@@ -229,11 +362,11 @@ public class Game extends JFrame
 
     /** world width */
 
-    protected int                width;
+    protected volatile int       width;
 
     /** world height */
 
-    protected int                height;
+    protected volatile int       height;
 
     /** this frame */
 
@@ -245,7 +378,7 @@ public class Game extends JFrame
 
     /** force window to be repainted at next oportunity */
 
-    protected boolean            forcePaint = false;
+    protected volatile boolean   forcePaint = false;
 
     /** request that the animation thread pause @see paused */
 
@@ -265,7 +398,7 @@ public class Game extends JFrame
 
     /** time remaining to display message @see #message */
 
-    private   long               messageDisplayTime = 0;
+    private   double             messageDisplayTime = 0;
 
     /** triangle shape */
 
@@ -339,7 +472,9 @@ public class Game extends JFrame
             // allow files with correct extention
 
             String extension = getExtension(f);
-            return (extension != null && extension.equals(FILE_EXTENSION));
+            return (extension != null &&
+                    (extension.equals(FILE_EXTENSION) ||
+                     extension.equals(Snapshot.FILE_EXTENSION)));
           }
           // get file extension
 
@@ -358,7 +493,8 @@ public class Game extends JFrame
 
           public String getDescription()
           {
-            return "Image Files (.png)";
+            return "Image and Snapshot Files (.png, ." +
+              Snapshot.FILE_EXTENSION + ")";
           }
       };
 
@@ -408,6 +544,37 @@ public class Game extends JFrame
       new ElementSelectionAction(SAND_SOURCE_EL,  getKeyStroke(VK_5, SHIFT_MASK)),
       new ElementSelectionAction(OIL_SOURCE_EL,   getKeyStroke(VK_7, SHIFT_MASK)),
     };
+    // band selection actions
+
+    BandSelectionAction[] bandActions =
+    {
+      new BandSelectionAction(1),
+      new BandSelectionAction(2),
+      new BandSelectionAction(4),
+      new BandSelectionAction(8),
+      new BandSelectionAction(16),
+    };
+    // tick rate selection actions
+
+    TickRateAction[] tickRateActions =
+    {
+      new TickRateAction(0),
+      new TickRateAction(30),
+      new TickRateAction(60),
+      new TickRateAction(120),
+      new TickRateAction(240),
+    };
+    // ticks per frame selection actions
+
+    TicksPerFrameAction[] ticksPerFrameActions =
+    {
+      new TicksPerFrameAction(1),
+      new TicksPerFrameAction(2),
+      new TicksPerFrameAction(4),
+      new TicksPerFrameAction(8),
+      new TicksPerFrameAction(16),
+      new TicksPerFrameAction(64),
+    };
     // load world from disk
 
     SandAction actionOpen = new SandAction(
@@ -434,6 +601,53 @@ public class Game extends JFrame
           }
       };
 
+    // record input
+
+    SandAction actionRecord = new SandAction(
+      "Record Input",
+      getKeyStroke(VK_R, META_MASK),
+      "record brush strokes so they can be replayed exactly")
+      {
+          public void actionPerformed(ActionEvent e)
+          {
+            if (!recordingInput)
+              startRecording();
+            else
+              stopRecording();
+            recordCbmi.setSelected(recordingInput);
+          }
+      };
+
+    // record frames
+
+    SandAction actionRecordFrames = new SandAction(
+      "Record Frames",
+      getKeyStroke(VK_R, CTRL_MASK),
+      "record every frame of the run to a file which can be played back")
+      {
+          public void actionPerformed(ActionEvent e)
+          {
+            if (frameRecorder == null)
+              startFrameRecording();
+            else
+              stopFrameRecording();
+            recordFramesCbmi.setSelected(frameRecorder != null);
+          }
+      };
+
+    // replay input
+
+    SandAction actionReplay = new SandAction(
+      "Replay Input",
+      getKeyStroke(VK_R, META_MASK | SHIFT_MASK),
+      "replay recorded brush strokes")
+      {
+          public void actionPerformed(ActionEvent e)
+          {
+            readInputLog();
+          }
+      };
+
     // pause sim
 
     SandAction actionPause = new SandAction(
@@ -506,6 +720,27 @@ public class Game extends JFrame
       {
           public void actionPerformed(ActionEvent e)
           {
+            // let saves and recordings in progress finish, capturing
+            // any saves still waiting before the saver is shut down
+
+            stopFrameRecording();
+            edits.add(new Edit()
+              {
+                  public void apply()
+                  {
+                    captureSaves();
+                    saver.shutdown();
+                  }
+              });
+            try
+            {
+              if (!saver.awaitTermination(1, TimeUnit.MINUTES))
+                System.err.println("gave up waiting for saves to finish");
+            }
+            catch (InterruptedException ie)
+            {
+              ie.printStackTrace();
+            }
             System.exit(0);
           }
       };
@@ -600,6 +835,42 @@ public class Game extends JFrame
               fullScreenCbmi.doClick();
           }
       };
+    // zoom in about the middle of the view
+
+    SandAction actionZoomIn = new SandAction(
+      "Zoom In",
+      getKeyStroke(VK_EQUALS, META_MASK),
+      "draw each cell twice as large")
+      {
+          public void actionPerformed(ActionEvent e)
+          {
+            zoomView(2);
+          }
+      };
+    // zoom out about the middle of the view
+
+    SandAction actionZoomOut = new SandAction(
+      "Zoom Out",
+      getKeyStroke(VK_MINUS, META_MASK),
+      "draw each cell half as large")
+      {
+          public void actionPerformed(ActionEvent e)
+          {
+            zoomView(0.5);
+          }
+      };
+    // fit the world to the window
+
+    SandAction actionFitWorld = new SandAction(
+      "Fit World",
+      getKeyStroke(VK_0, META_MASK),
+      "show the world a pixel a cell, resized to fit the window")
+      {
+          public void actionPerformed(ActionEvent e)
+          {
+            fitWorldToPanel();
+          }
+      };
 
     // rotate brush left
 
@@ -669,9 +940,10 @@ public class Game extends JFrame
           }
       };
 
-    // the animation thread
+    // the animation thread, which updates the world at the chosen
+    // tick rate and hands copies of it to the render thread
 
-    Thread animation = new Thread()
+    Thread animation = new Thread("animation")
       {
           public void run()
           {
@@ -680,9 +952,8 @@ public class Game extends JFrame
             long start = 0;
             long update = 0;
             long end = 0;
-            double total = 0;
-            long statsSum = 0;
-            long worldSum = 0;
+            long nextTick = System.nanoTime();
+            int sinceFrame = 0;
 
             // main loop
 
@@ -692,105 +963,227 @@ public class Game extends JFrame
 
               paused = pauseRequest;
 
+              // apply edits and capture saves between updates
+
+              applyEdits();
+              captureSaves();
+
               // record start time
 
-              start = System.currentTimeMillis();
+              start = System.nanoTime();
+              boolean ticked = false;
 
               // if we're not paused update the world
 
               if (!paused || takeStep)
               {
                 world.update();
+                ticked = true;
+                ++sinceFrame;
+                recordUpdateTime(world.getEffectiveBands(),
+                  (System.nanoTime() - start) / 1e6);
                 if (takeStep)
                 {
                   takeStep = false;
                   forcePaint = true;
                 }
               }
-              // otherwise have litte nap to save the cpu
-
-              else
-              {
-                try
-                {
-                  sleep(10);
-                }
-                catch (Exception e)
-                {
-                  e.printStackTrace();
-                }
-              }
               // record time to update
 
-              update = System.currentTimeMillis();
+              update = System.nanoTime();
 
-              // update time since last paint
+              // hand a copy of the world to the render thread if it
+              // is ready for one and enough ticks have passed, or if
+              // forced to
 
-              worldSum += total;
-
-              // draw frame every once in a while or if forced to
+              if (forcePaint || (frameWanted && sinceFrame >= ticksPerFrame))
+              {
+                forcePaint = false;
+                frameWanted = false;
+                sinceFrame = 0;
+                CellExchange cellFrames = Game.this.cellFrames;
+                if (cellFrames.getWidth() == world.getWidth() &&
+                  cellFrames.getHeight() == world.getHeight())
+                  cellFrames.publish(world, viewport);
+                LockSupport.unpark(render);
+              }
+              // if paused have litte nap to save the cpu
 
-              if (forcePaint ||
-              ((message != null || !paused)
-              && worldSum >= WORLD_PAINT_MS))
+              int rate = tickRate;
+              if (paused)
               {
-                // paint world to buffer
+                nextTick = System.nanoTime();
+                LockSupport.parkNanos(PAUSED_NAP_MS * 1000000L);
+              }
+              // otherwise wait for the next tick if the rate is fixed,
+              // giving up on ticks missed by too much
 
-                world.paint(bufferGr);
+              else if (rate > 0)
+              {
+                long period = 1000000000L / rate;
+                nextTick += period;
+                long wait;
+                while ((wait = nextTick - System.nanoTime()) > 0)
+                  LockSupport.parkNanos(wait);
+                if (-wait > MAX_TICK_LAG * period)
+                  nextTick = System.nanoTime();
+              }
+              // compute filtered tick rate and update percent
 
-                // if expected to, paint message to buffer
+              end = System.nanoTime();
+              if (ticked && end > start)
+              {
+                double total = (end - start) / 1e6;
+                ticksPerSecond = rateFilter * ticksPerSecond +
+                  (1 - rateFilter) * 1000 / total;
+                updatePercent = rateFilter * updatePercent +
+                  (1 - rateFilter) * ((update - start) / 1e6 / total);
+              }
+            }
+          }
+      };
 
-                if (messageDisplayTime > 0 && message != null)
-                  paintMessage(bufferGr, message);
-                else
-                  message = null;
+    // the render thread, which paints the copies of the world handed
+    // to it by the animation thread, at most every WORLD_PAINT_MS
 
-                // now actually draw buffer to frame
+    Thread render = new Thread("render")
+      {
+          public void run()
+          {
+            // stats values
 
-                worldPanel.repaint();
+            long start = System.nanoTime();
+            long last = start;
+            double statsSum = 0;
 
-                // update time sum and mark that we did
-                // force paint
+            // chunks out of date in each frame, and the frames, view
+            // and copy of the world they were painted from
 
-                worldSum = 0;
-                forcePaint = false;
-              }
-              // compute total time for update and draw
+            boolean[][] stale = new boolean[3][0];
+            TripleBuffer staleFrames = null;
+            Viewport staleView = null;
+            long sequence = -1;
+            boolean messageShown = false;
+            List<Rectangle> regions = new ArrayList<Rectangle>();
 
-              end = System.currentTimeMillis();
-              total = (float)(end - start);
+            // main loop
 
-              // if the message has not timed out,
-              // update message time
+            while (true)
+            {
+              // ask for a copy of the world and wait for it, counting
+              // down the time left to show a message
 
+              frameWanted = true;
+              CellExchange cellFrames;
+              byte[] cells;
+              while ((cells = (cellFrames = Game.this.cellFrames).take()) == null)
+              {
+                LockSupport.parkNanos(WORLD_PAINT_MS * 1000000L);
+                long now = System.nanoTime();
+                if (messageDisplayTime > 0 &&
+                  (messageDisplayTime -= (now - last) / 1e6) <= 0)
+                  forcePaint = true;
+                last = now;
+              }
+              long paint = System.nanoTime();
               if (messageDisplayTime > 0)
-                messageDisplayTime -= total;
+                messageDisplayTime -= (paint - last) / 1e6;
+              last = paint;
 
-              // if not paused update stats
+              // paint world to the back frame
 
-              if (total > 0 && !paused)
+              TripleBuffer frames = Game.this.frames;
+              BufferedImage image = frames.getBackImage();
+              Viewport view = cellFrames.getView();
+              if (image.getWidth() == view.getWidth() &&
+                image.getHeight() == view.getHeight())
               {
-                // compute filtered frame rate
+                // work out what changed since each frame was painted,
+                // which is everything if the frames are new, the view
+                // moved, a copy of the world was missed, or a message
+                // came or went
+
+                int chunkCount = cellFrames.getChunkCount();
+                int visibleCount = cellFrames.getVisibleChunkCount();
+                boolean showMessage = messageDisplayTime > 0 && message != null;
+                boolean full = frames != staleFrames || view != staleView ||
+                  stale[0].length != chunkCount ||
+                  cellFrames.getSequence() != sequence + 1 ||
+                  showMessage || messageShown;
+                if (stale[0].length != chunkCount)
+                  for (int i = 0; i < stale.length; ++i)
+                    stale[i] = new boolean[chunkCount];
+                boolean[] changed = cellFrames.getChanged();
+                for (boolean[] s: stale)
+                  for (int c = 0; c < chunkCount; ++c)
+                    if (full || changed[c])
+                      s[c] = true;
+                int changedCount = cellFrames.count(changed);
+                staleFrames = frames;
+                staleView = view;
+                sequence = cellFrames.getSequence();
+                messageShown = showMessage;
+
+                // paint the stale chunks of the back frame, or all of
+                // it if most of it is stale
+
+                boolean[] backStale = stale[frames.getBackIndex()];
+                int staleCount = cellFrames.count(backStale);
+                int[] pixels = ((DataBufferInt)image.getRaster()
+                  .getDataBuffer()).getData();
+                cellFrames.paint(staleCount > visibleCount * FULL_FRAME_FRACTION
+                  ? null : backStale, pixels);
+                Arrays.fill(backStale, false);
+
+                // if expected to, paint message to the back frame
+
+                if (showMessage)
+                  paintMessage(frames.getBackGraphics(), message);
+                else
+                  message = null;
 
-                frameRate = rateFilter * frameRate +
-                  (1 - rateFilter) * 1000 / total;
+                // hand the frame to the event thread and ask for only
+                // what changed to be drawn, without waiting for that
+                // to happen
 
-                // compute filtered percents
+                frames.publish();
+                if (full || changedCount > visibleCount * FULL_FRAME_FRACTION)
+                  worldPanel.repaint();
+                else if (changedCount > 0)
+                {
+                  regions.clear();
+                  cellFrames.getRegions(changed, regions);
+                  for (Rectangle r: regions)
+                    worldPanel.repaint(r);
+                }
+              }
+              long end = System.nanoTime();
+              paintLatency.record(end - paint);
 
-                updatePercent = rateFilter * updatePercent +
-                  (1 - rateFilter) * ((update - start) / total);
-                paintPercent = rateFilter * paintPercent +
-                  (1 - rateFilter) * ((end - update) / total);
+              // compute filtered frame rate and paint percent
 
-                // if we've been going for a second, print stats
+              double total = (end - start) / 1e6;
+              if (total > 0)
+              {
+                frameRate = rateFilter * frameRate +
+                  (1 - rateFilter) * 1000 / total;
+                paintPercent = rateFilter * paintPercent +
+                  (1 - rateFilter) * ((end - paint) / 1e6 / total);
+              }
+              // if we've been going for a second, print stats
 
-                if ((statsSum += total) >= 1000)
-                {
-                  statsSum = 0;
-                  statsPanel.repaint();
-                }
-                // total = tmp;
+              if ((statsSum += total) >= 1000)
+              {
+                statsSum = 0;
+                statsPanel.repaint();
               }
+              // hold off until the next frame is due
+
+              long due = start + WORLD_PAINT_MS * 1000000L;
+              long wait;
+              while ((wait = due - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+              start = System.nanoTime();
             }
           }
       };
@@ -841,11 +1234,12 @@ public class Game extends JFrame
 
       // create the world
 
-      constructWorld();
+      constructWorld(worldPanel.getWidth(), worldPanel.getHeight());
 
-      // start the animation thread
+      // start the animation and render threads
 
       animation.start();
+      render.start();
 
       // set the cursor
 
@@ -878,6 +1272,12 @@ public class Game extends JFrame
 
       fileChooser = new JFileChooser();
       fileChooser.addChoosableFileFilter(fileFilter);
+      recorderChooser = new JFileChooser();
+      recorderChooser.setFileFilter(new FileNameExtensionFilter(
+        "FreeSand recordings", Recorder.FILE_EXTENSION));
+      inputLogChooser = new JFileChooser();
+      inputLogChooser.setFileFilter(new FileNameExtensionFilter(
+        "FreeSand input logs", InputLog.FILE_EXTENSION));
 
       // create the menu bar
 
@@ -889,9 +1289,49 @@ public class Game extends JFrame
       menu.add(actionOpen);
       menu.add(actionSave);
       menu.addSeparator();
+      menu.add(recordCbmi = new JCheckBoxMenuItem(actionRecord));
+      menu.add(actionReplay);
+      menu.add(recordFramesCbmi = new JCheckBoxMenuItem(actionRecordFrames));
+      menu.addSeparator();
       menu.add(actionPause);
       menu.add(actionStep);
       menu.add(actionPerformanceTest);
+
+      // add band selection sub menu
+
+      JMenu mBands = new JMenu("Threads");
+      ButtonGroup bandGroup = new ButtonGroup();
+      for (BandSelectionAction ba: bandActions)
+      {
+        JRadioButtonMenuItem item = new JRadioButtonMenuItem(ba);
+        item.setSelected(ba.bands == bands);
+        bandGroup.add(item);
+        mBands.add(item);
+      }
+      menu.add(mBands);
+
+      // add tick rate and ticks per frame sub menus
+
+      JMenu mSpeed = new JMenu("Speed");
+      ButtonGroup speedGroup = new ButtonGroup();
+      for (TickRateAction ta: tickRateActions)
+      {
+        JRadioButtonMenuItem item = new JRadioButtonMenuItem(ta);
+        item.setSelected(ta.rate == tickRate);
+        speedGroup.add(item);
+        mSpeed.add(item);
+      }
+      menu.add(mSpeed);
+      JMenu mTicks = new JMenu("Ticks per Frame");
+      ButtonGroup ticksGroup = new ButtonGroup();
+      for (TicksPerFrameAction ta: ticksPerFrameActions)
+      {
+        JRadioButtonMenuItem item = new JRadioButtonMenuItem(ta);
+        item.setSelected(ta.ticks == ticksPerFrame);
+        ticksGroup.add(item);
+        mTicks.add(item);
+      }
+      menu.add(mTicks);
       menu.addSeparator();
       menu.add(actionExit);
       menuBar.add(menu);
@@ -914,6 +1354,16 @@ public class Game extends JFrame
       menu.add(fullScreenCbmi =
       new JCheckBoxMenuItem(actionFullScreen));
       menu.add(actionEscapeFullScreen);
+      menu.addSeparator();
+      menu.add(actionZoomIn);
+      menu.add(actionZoomOut);
+      menu.add(actionFitWorld);
+      JMenu mPan = new JMenu("Pan");
+      mPan.add(new PanAction("Left",  VK_LEFT,  -1,  0));
+      mPan.add(new PanAction("Right", VK_RIGHT,  1,  0));
+      mPan.add(new PanAction("Up",    VK_UP,     0, -1));
+      mPan.add(new PanAction("Down",  VK_DOWN,   0,  1));
+      menu.add(mPan);
       menuBar.add(menu);
 
       // full screen only enabled if it's supported
@@ -982,7 +1432,7 @@ public class Game extends JFrame
               g.setRenderingHint(
                 RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);
-              g.drawImage(frameBuffer, 0, 0, null);
+              g.drawImage(frames.take(), 0, 0, null);
             }
         };
       worldPanel.setPreferredSize(
@@ -990,47 +1440,26 @@ public class Game extends JFrame
       worldPanel.setLayout(null);
       add(worldPanel);
 
-      // add component listener to handle frame resize
+      // add component listener to handle frame resize, with a timer
+      // that waits until the user has stopped dragging to resize the
+      // window, and then resizes the world on the event thread
 
-      addComponentListener(new ComponentAdapter()
+      final Timer resizeTimer = new Timer(RESIZE_DELAY, new ActionListener()
         {
-            // timing thread that waits until
-            // the user has stopped dragging to resize
-            // the window
-
-            Thread resizeThread = null;
+            public void actionPerformed(ActionEvent e)
+            {
+              resize();
+            }
+        });
+      resizeTimer.setRepeats(false);
 
-            // handle resize event
+      addComponentListener(new ComponentAdapter()
+        {
+            // handle resize event, each one restarts the wait
 
             public void componentResized(ComponentEvent e)
             {
-              // assign the timing thread
-
-              (resizeThread = new Thread()
-                {
-                    public void run()
-                    {
-                      try
-                      {
-                        // sleep for a bit
-
-                        sleep(RESIZE_DELAY);
-
-                        // if, when woken up, some other
-                        // delay thread has not been
-                        // created, then we'll it handle
-                        // the resize event
-
-                        if (resizeThread == this)
-                          resize();
-                      }
-                      catch (Exception ex)
-                      {
-                        ex.printStackTrace();
-                      }
-                    }
-                }
-                ).start();
+              resizeTimer.restart();
             }
         }
         );
@@ -1043,31 +1472,68 @@ public class Game extends JFrame
 
             public void mouseClicked(MouseEvent e)
             {
-              paint(e);
+              if (!SwingUtilities.isMiddleMouseButton(e))
+                paint(e);
             }
-            // mouse clicked event
+            // mouse pressed event
+
+            public void mousePressed(MouseEvent e)
+            {
+              dragX = e.getX();
+              dragY = e.getY();
+            }
+            // mouse dragged event, the middle button pans the view
 
             public void mouseDragged(MouseEvent e)
             {
-              paint(e);
+              if (SwingUtilities.isMiddleMouseButton(e))
+              {
+                Viewport view = viewport;
+                int dx = (dragX - e.getX()) / view.getZoom();
+                int dy = (dragY - e.getY()) / view.getZoom();
+                if (dx != 0 || dy != 0)
+                {
+                  dragX -= dx * view.getZoom();
+                  dragY -= dy * view.getZoom();
+                  setViewport(view.pan(dx, dy));
+                }
+              }
+              else
+                paint(e);
+            }
+            // mouse wheel event, zooms the view about the mouse
+
+            public void mouseWheelMoved(MouseWheelEvent e)
+            {
+              Viewport view = viewport;
+              int zoom = e.getWheelRotation() < 0
+                ? view.getZoom() * 2
+                : view.getZoom() / 2;
+              setViewport(view.zoom(zoom, e.getX(), e.getY()));
             }
             // paint
 
             public void paint(MouseEvent e)
             {
               Element source = null;
-              if (e.isShiftDown() && (source = Element.lookup(brushColor)
-              .lookupSourceOrOutput()) != null)
-                worldGr.setColor(source.getColor());
-              else
-                worldGr.setColor(brushColor);
+              Element element = e.isShiftDown() && (source = brushElement
+              .lookupSourceOrOutput()) != null
+                ? source
+                : brushElement;
 
-              paintBrushShape(brushShape, worldGr, e.getX(), e.getY());
-              forcePaint = true;
+              // queue stroke for the animation thread, mapped
+              // through the view onto the cells of the world
+
+              stroke(viewport.toCells(
+                  transformBrush(brushShape, e.getX(), e.getY())), element);
             }
+            // where the last pan drag was
+
+            int dragX, dragY;
         };
       worldPanel.addMouseListener(mia);
       worldPanel.addMouseMotionListener(mia);
+      worldPanel.addMouseWheelListener(mia);
 
       // create the stats panel
 
@@ -1094,12 +1560,32 @@ public class Game extends JFrame
               gr.drawString("pixels: " + (width * height), 100, 45);
               gr.drawString("brush: " + brushName,    195, 15);
               gr.drawString("elmnt: " + brushElement, 195, 30);
+              gr.drawString("bands:   " + world.getEffectiveBands(), 300, 15);
+              gr.drawString("speedup: " + computeSpeedup(), 300, 30);
+              gr.drawString("sim ms:  " + formatUpdateMs(), 300, 45);
+              gr.drawString("awake: " + round(100.0 *
+                world.getAwakeChunkCount() / world.getChunkCount()) + "%",
+                420, 15);
+              gr.drawString("dropped: " + frames.getDropped(), 420, 30);
+              gr.drawString("latency: " +
+                round(frames.getLatency() / 1e4) / 100.0 + "ms", 420, 45);
+              gr.drawString("tick p99:  " +
+                formatNanos(world.getTickLatency().snapshot()), 560, 15);
+              gr.drawString("paint p99: " +
+                formatNanos(paintLatency.snapshot()), 560, 30);
+              gr.drawString("pres p99:  " +
+                formatNanos(frames.getPresentLatency().snapshot()), 560, 45);
+              gr.drawString("tps:   " +
+                round(ticksPerSecond * 100) / 100.0, 700, 15);
+              gr.drawString("rate:  " +
+                (tickRate == 0 ? "max" : "" + tickRate), 700, 30);
+              gr.drawString("ticks: " + ticksPerFrame + "/frame", 700, 45);
             }
         };
 
       // add the statistcs panel
 
-      statsPanel.setPreferredSize(new Dimension(300, 55));
+      statsPanel.setPreferredSize(new Dimension(820, 55));
       statsPanel.setMinimumSize(new Dimension(150, 55));
       statsPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 55));
     }
@@ -1187,89 +1673,304 @@ public class Game extends JFrame
       height = worldPanel.getHeight();
     }
     /**
-     * Construct simulaiton world.
+     * Construct simulaiton world.  This may be called from the
+     * animation thread, so the size of the world panel is passed in
+     * rather than asked of the panel.
+     *
+     * @param  panelWidth width of the world panel
+     * @param  panelHeight height of the world panel
      */
 
-    protected void constructWorld()
+    protected void constructWorld(int panelWidth, int panelHeight)
     {
-      // create the world
+      // create the world, keeping the current one if it is
+      // already the right size
 
-      world = (world == null)
-        ? new World(width, height)
-        : new World(width, height, world);
+      if (world == null)
+        world = new World(width, height);
+      else if (world.getWidth() != width || world.getHeight() != height)
+        world = new World(width, height, world);
 
       // initialize the world
 
       world.initialize();
+      world.setBands(bands);
 
-      // frame buffer
+      // a recording of frames ends with the world it was made of
 
-      frameBuffer = new BufferedImage(
-        world.getWidth(),
-        world.getHeight(),
-        BufferedImage.TYPE_INT_ARGB);
-      bufferGr = (Graphics2D)frameBuffer.getGraphics();
+      if (frameRecorder != null && world.getRecorder() != frameRecorder)
+        stopFrameRecording();
 
-      // get graphics for world image
+      // update times from a differently sized world don't compare
 
-      worldGr = (Graphics2D)world.getGraphics();
+      bandUpdateMs.clear();
+
+      // frame buffers
+
+      constructFrames(panelWidth, panelHeight);
     }
     /**
-     * Resize the world to match the current world panel dimentions.
+     * Construct the frames the world is painted into, the size of
+     * the world panel, and the exchange of cells of the world for
+     * them.  The view keeps as much of the world in view as it can.
+     *
+     * @param  panelWidth width of the world panel
+     * @param  panelHeight height of the world panel
      */
 
-    public void resize()
+    protected void constructFrames(int panelWidth, int panelHeight)
     {
-      pushPaused(true);
-
-      // get the world panel dimensions
+      panelWidth = max(1, panelWidth);
+      panelHeight = max(1, panelHeight);
+      Viewport view = viewport == null
+        ? new Viewport(0, 0, 1, panelWidth, panelHeight)
+        : viewport.resize(panelWidth, panelHeight);
+      viewport = view.clamp(world.getWidth(), world.getHeight());
+      frames = new TripleBuffer(panelWidth, panelHeight);
+      cellFrames = new CellExchange(world.getWidth(), world.getHeight());
+    }
+    /**
+     * Resize the world to match the current world panel dimentions,
+     * or if the world is not fit to the panel, resize the view of it.
+     * This must be called on the event thread.
+     */
 
-      width = worldPanel.getWidth();
-      height = worldPanel.getHeight();
+    public void resize()
+    {
+      // get the world panel dimensions here on the event thread
 
-      // construct the world
+      final int panelWidth = worldPanel.getWidth();
+      final int panelHeight = worldPanel.getHeight();
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              // construct the world or the view of it
 
-      constructWorld();
-      popPaused();
-      forcePaint = true;
+              if (fitWorld)
+              {
+                width = panelWidth;
+                height = panelHeight;
+                constructWorld(panelWidth, panelHeight);
+              }
+              else
+                constructFrames(panelWidth, panelHeight);
+              forcePaint = true;
+            }
+        });
     }
     /**
-     * Copy world frame image to copy/paste buffer.
+     * Show a new view of the world, which stops the world being
+     * resized to fit the world panel.
+     *
+     * @param  view view to show, kept within the world
      */
 
-    public void copy()
+    public void setViewport(Viewport view)
     {
-      showMessage("Copying");
-      World copy = new World(world);
-      clipboard.setContents(copy, null);
+      World world = this.world;
+      view = view.clamp(world.getWidth(), world.getHeight());
+      Viewport old = viewport;
+      if (view.getX() == old.getX() && view.getY() == old.getY() &&
+        view.getZoom() == old.getZoom())
+        return;
+      viewport = view;
+      fitWorld = false;
       forcePaint = true;
     }
     /**
-     * Cut world frame image to copy/paste buffer.
+     * Zoom the view about its middle.
+     *
+     * @param  factor factor to multiply the size of a cell on the
+     *         screen by
      */
 
-    public void cut()
+    public void zoomView(double factor)
     {
-      showMessage("Cutting");
-      World copy = new World(world);
-      clipboard.setContents(copy, null);
-      fillWorld(AIR_EL);
-      forcePaint = true;
+      Viewport view = viewport;
+      int zoom = (int)round(view.getZoom() * factor);
+      setViewport(view.zoom(zoom, view.getWidth() / 2, view.getHeight() / 2));
+      showMessage(viewport.getZoom() + "x");
     }
     /**
-     * Paste image in copy/paste buffer to world frame.
+     * Show all of the world at one pixel a cell, resizing it to fit
+     * the world panel again.
      */
 
-    public void paste()
+    public void fitWorldToPanel()
     {
-      pushPaused(true);
-      showMessage("Pasting");
-      try
-      {
-        Transferable content = clipboard.getContents(null);
-        DataFlavor flavor = content.getTransferDataFlavors()[0];
+      viewport = new Viewport(
+        0, 0, 1, worldPanel.getWidth(), worldPanel.getHeight());
+      fitWorld = true;
+      showMessage("Fit World");
+      resize();
+    }
+    /**
+     * Set the number of horizontal bands the world is split into
+     * for parallel update.  The change is queued for the animation
+     * thread, so it lands between updates.
+     *
+     * @param  bands number of bands, 1 updates the world serially
+     */
 
-        if (content.isDataFlavorSupported(DataFlavor.imageFlavor))
+    public void setBands(final int bands)
+    {
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              Game.this.bands = bands;
+              world.setBands(bands);
+            }
+        });
+      selectBands(bands);
+    }
+    /**
+     * Enable or disable changing the number of bands.
+     *
+     * @param  enabled true to allow the number of bands to be changed
+     */
+
+    protected void enableBands(boolean enabled)
+    {
+      for (BandSelectionAction ba: bandActions)
+        ba.setEnabled(enabled);
+    }
+    /**
+     * Keep the threads menu in step with the number of bands.
+     *
+     * @param  bands number of bands to show as selected
+     */
+
+    protected void selectBands(int bands)
+    {
+      for (BandSelectionAction ba: bandActions)
+        ba.putValue(Action.SELECTED_KEY, ba.bands == bands);
+    }
+    /**
+     * Record the time it took to update the world with a given number
+     * of bands.
+     *
+     * @param  bands number of bands the world was updated with
+     * @param  ms time in milliseconds the update took
+     */
+
+    protected void recordUpdateTime(int bands, double ms)
+    {
+      Double filtered = bandUpdateMs.get(bands);
+      bandUpdateMs.put(bands, filtered == null
+        ? ms
+        : rateFilter * filtered + (1 - rateFilter) * ms);
+    }
+    /**
+     * Compute the speedup of the current band count over updating
+     * the world serially.
+     *
+     * @return The speedup as a string, or "n/a" if it is not known.
+     */
+
+    protected String computeSpeedup()
+    {
+      Double serial = bandUpdateMs.get(1);
+      Double current = bandUpdateMs.get(world.getEffectiveBands());
+      if (serial == null || current == null || current <= 0)
+        return "n/a";
+      return round(serial / current * 100) / 100.0 + "x";
+    }
+    /**
+     * Format the 99th percentile of a latency histogram.
+     *
+     * @param  snapshot snapshot of the histogram
+     * @return The 99th percentile in milliseconds as a string.
+     */
+
+    protected String formatNanos(LatencyHistogram.Snapshot snapshot)
+    {
+      return snapshot.getCount() == 0
+        ? "n/a"
+        : round(snapshot.getPercentile(99) / 1e4) / 100.0 + "ms";
+    }
+    /**
+     * Format the filtered update time of the current band count.
+     *
+     * @return The update time in milliseconds as a string.
+     */
+
+    protected String formatUpdateMs()
+    {
+      Double current = bandUpdateMs.get(world.getEffectiveBands());
+      return current == null ? "n/a" : "" + round(current * 100) / 100.0;
+    }
+    /**
+     * Copy world frame image to copy/paste buffer.
+     */
+
+    public void copy()
+    {
+      showMessage("Copying");
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              // copy between updates, and hand the copy to the
+              // clipboard on the event thread
+
+              final World copy = new World(world);
+              SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                      clipboard.setContents(copy, null);
+                    }
+                });
+              forcePaint = true;
+            }
+        });
+    }
+    /**
+     * Cut world frame image to copy/paste buffer.
+     */
+
+    public void cut()
+    {
+      showMessage("Cutting");
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              // copy and clear between updates, and hand the copy to
+              // the clipboard on the event thread
+
+              final World copy = new World(world);
+              world.fill(AIR_EL);
+              if (recording != null)
+                recording.record(world.getTick(),
+                  new Rectangle(0, 0, world.getWidth(), world.getHeight()),
+                  AIR_EL);
+              SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                      clipboard.setContents(copy, null);
+                    }
+                });
+              forcePaint = true;
+            }
+        });
+    }
+    /**
+     * Paste image in copy/paste buffer to world frame.
+     */
+
+    public void paste()
+    {
+      showMessage("Pasting");
+      try
+      {
+        Transferable content = clipboard.getContents(null);
+        DataFlavor flavor = content.getTransferDataFlavors()[0];
+
+        if (content.isDataFlavorSupported(DataFlavor.imageFlavor))
         {
           setWorldImage((BufferedImage)content
           .getTransferData(DataFlavor.imageFlavor));
@@ -1287,11 +1988,11 @@ public class Game extends JFrame
       {
         e.printStackTrace();
       }
-      popPaused();
-      forcePaint = true;
     }
     /**
      * Convert pixels in provided image to nearest {@link Element} color.
+     * Colors are matched through a {@link ColorCube}, in parallel
+     * blocks of rows.
      *
      * @param  image image to convert
      * @return The modified image passed to this function. No new image is created.
@@ -1300,8 +2001,7 @@ public class Game extends JFrame
     public static BufferedImage convertToElements(BufferedImage image)
     {
       int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
-      for (int i = 0; i < pixels.length; ++i)
-        pixels[i] = nearest(new Color(pixels[i])).getValue();
+      ColorCube.convert(pixels, image.getWidth());
       return image;
     }
     /**
@@ -1409,7 +2109,9 @@ public class Game extends JFrame
       return null;
     }
     /**
-     * Write current world image to disk.
+     * Write current world image to disk.  The world is captured
+     * between updates and written in the background, so the
+     * simulation does not stop while it is saved.
      */
 
     public void writeWorld()
@@ -1428,7 +2130,7 @@ public class Game extends JFrame
           // add file extension
 
           if (!file.toString().toLowerCase()
-          .endsWith("." + FILE_EXTENSION))
+          .endsWith("." + FILE_EXTENSION) && !Snapshot.isSnapshot(file))
           {
             file = new File(file + "." + FILE_EXTENSION);
           }
@@ -1451,10 +2153,10 @@ public class Game extends JFrame
             // if overwrite authorized
 
             if (n == 0)
-              ImageIO.write(world, "png", file);
+              saves.add(file);
           }
           else
-            ImageIO.write(world, "png", file);
+            saves.add(file);
         }
         popPaused();
         forcePaint = true;
@@ -1465,7 +2167,131 @@ public class Game extends JFrame
       }
     }
     /**
-     * Read an image from the disk.
+     * Capture the world for each save waiting, and hand it to the
+     * saver thread.  This is called by the animation thread between
+     * updates, so each capture is of a single tick.
+     */
+
+    protected void captureSaves()
+    {
+      for (File file; (file = saves.poll()) != null;)
+      {
+        final File target = file;
+        final Snapshot snapshot = Snapshot.capture(world);
+        try
+        {
+          saver.execute(new Runnable()
+            {
+                public void run()
+                {
+                  writeWorld(snapshot, target);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+          System.err.println("unable to save " + target + ", saver is shut down");
+          showMessage("Save failed");
+        }
+      }
+    }
+    /**
+     * Write a captured world to a file, as a snapshot if the file is
+     * named as one, otherwise as a png image.  The world is written
+     * to a temporary file which then replaces the file, so that a
+     * failed save leaves no partial file behind.
+     *
+     * @param  snapshot captured world to write
+     * @param  file file to write the world to
+     */
+
+    protected void writeWorld(Snapshot snapshot, final File file)
+    {
+      File part = null;
+      try
+      {
+        part = File.createTempFile(
+          file.getName(), ".part", file.getAbsoluteFile().getParentFile());
+        if (Snapshot.isSnapshot(file))
+          snapshot.write(part);
+        else
+          writePng(snapshot.toImage(), part, file.getName());
+        Files.move(part.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+        showMessage("Saved " + file.getName());
+      }
+      catch (Exception e)
+      {
+        e.printStackTrace();
+        if (part != null)
+          part.delete();
+        showMessage("Save failed");
+      }
+    }
+    /**
+     * Write an image to a png file, showing how far along the write
+     * is.
+     *
+     * @param  image image to write
+     * @param  file file to write the image to
+     * @param  name name shown in progress messages
+     */
+
+    protected void writePng(BufferedImage image, File file, final String name)
+      throws IOException
+    {
+      ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+      ImageOutputStream out = ImageIO.createImageOutputStream(file);
+      if (out == null)
+        throw new IOException("unable to write " + file);
+      try
+      {
+        writer.setOutput(out);
+        writer.addIIOWriteProgressListener(new IIOWriteProgressListener()
+          {
+              int shown = -1;
+
+              public void imageProgress(ImageWriter source, float percent)
+              {
+                // show progress every ten percent
+
+                if ((int)percent / 10 != shown)
+                {
+                  shown = (int)percent / 10;
+                  showMessage("Saving " + name + " " + shown * 10 + "%");
+                }
+              }
+              public void imageStarted(ImageWriter source, int imageIndex)
+              {
+              }
+              public void imageComplete(ImageWriter source)
+              {
+              }
+              public void thumbnailStarted(ImageWriter source,
+                int imageIndex, int thumbnailIndex)
+              {
+              }
+              public void thumbnailProgress(ImageWriter source,
+                float percentageDone)
+              {
+              }
+              public void thumbnailComplete(ImageWriter source)
+              {
+              }
+              public void writeAborted(ImageWriter source)
+              {
+              }
+          });
+        writer.write(image);
+      }
+      finally
+      {
+        writer.dispose();
+        out.close();
+      }
+    }
+    /**
+     * Read an image or snapshot from the disk.
      */
 
     public void readWorld()
@@ -1475,7 +2301,15 @@ public class Game extends JFrame
         pushPaused(true);
         showMessage("Loading");
         if (fileChooser.showOpenDialog(this) == APPROVE_OPTION)
-          setWorldImage(ImageIO.read(fileChooser.getSelectedFile()));
+        {
+          // snapshots hold cells, so they need no color matching
+
+          File file = fileChooser.getSelectedFile();
+          if (Snapshot.isSnapshot(file))
+            setWorld(Snapshot.read(file));
+          else
+            setWorldImage(ImageIO.read(file));
+        }
 
         popPaused();
         forcePaint = true;
@@ -1493,8 +2327,6 @@ public class Game extends JFrame
 
     protected void setWorldImage(Image rawImage)
     {
-      pushPaused(true);
-
       // convert image to buffered image with corrected pixel colors
 
       BufferedImage image = new BufferedImage(
@@ -1506,7 +2338,36 @@ public class Game extends JFrame
 
       // create world from image
 
-      World newWorld = new World(image);
+      setWorld(new World(image));
+    }
+    /**
+     * Replace the world with the provided world, offering to resize
+     * the window to fit it.  The world is updated with the current
+     * number of bands.
+     *
+     * @param  newWorld world to replace the current world with
+     */
+
+    protected void setWorld(World newWorld)
+    {
+      setWorld(newWorld, false);
+    }
+    /**
+     * Replace the world with the provided world, offering to resize
+     * the window to fit it.
+     *
+     * @param  newWorld world to replace the current world with
+     * @param  ownBands update the world with its own number of bands,
+     *         rather than the current number
+     */
+
+    protected void setWorld(final World newWorld, final boolean ownBands)
+    {
+      // keep the world its own size unless it is cropped
+
+      int newWidth = newWorld.width;
+      int newHeight = newWorld.height;
+      boolean fit = fitWorld;
 
       // if new world differntly sized than current, maybe
       // the window should be resized
@@ -1514,8 +2375,9 @@ public class Game extends JFrame
       if (newWorld.width != worldPanel.getWidth() || newWorld.height != worldPanel.getHeight())
       {
         String ResizeOption = "Resize";
+        String KeepOption = "Keep Size";
         String CancelOption = "Cancel";
-        Object[] possibleValues = {ResizeOption, CancelOption};
+        Object[] possibleValues = {ResizeOption, KeepOption, CancelOption};
         int n = JOptionPane.showOptionDialog(
           this, "Resize to " + newWorld.width + "x" + newWorld.height +
           " to fit new image?", "Resize?",
@@ -1532,21 +2394,50 @@ public class Game extends JFrame
           invalidate();
           worldPanel.invalidate();
           pack();
+          fit = true;
+        }
+        // if the size is to be kept, view the world through the
+        // viewport
 
-          // get the world panel dimensions
+        else if (n == 1)
+          fit = false;
 
-          // construct the world
+        // otherwise crop it to the window
 
-          width = newWorld.width;
-          height = newWorld.height;
+        else
+        {
+          newWidth = worldPanel.getWidth();
+          newHeight = worldPanel.getHeight();
+          fit = true;
         }
       }
 
-      world = newWorld;
-      worldGr = (Graphics2D)world.getGraphics();
-      constructWorld();
+      // hand the world to the animation thread to put in place
+      // between updates
 
-      popPaused();
+      final int finalWidth = newWidth;
+      final int finalHeight = newHeight;
+      final boolean finalFit = fit;
+      final int panelWidth = worldPanel.getWidth();
+      final int panelHeight = worldPanel.getHeight();
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              // a world fit to the window is shown whole
+
+              width = finalWidth;
+              height = finalHeight;
+              fitWorld = finalFit;
+              if (ownBands)
+                bands = newWorld.getBands();
+              if (finalFit)
+                viewport = new Viewport(0, 0, 1, panelWidth, panelHeight);
+              world = newWorld;
+              constructWorld(panelWidth, panelHeight);
+              forcePaint = true;
+            }
+        });
     }
     /**
      * Execute performance tests on all {@link Element}s.  Destroys
@@ -1609,8 +2500,8 @@ public class Game extends JFrame
           < TEST_PERIOD)
           {
             Thread.sleep(7);
-            if (frameRate > maxFps)
-              maxFps = frameRate;
+            if (ticksPerSecond > maxFps)
+              maxFps = ticksPerSecond;
           }
           // now add results to results data structure
 
@@ -1621,9 +2512,16 @@ public class Game extends JFrame
         pause();
         Thread.sleep(2 * WORLD_PAINT_MS);
 
+        // results are drawn into an image which then becomes the world
+
+        final BufferedImage resultsImage = new BufferedImage(
+          width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D resultsGr = (Graphics2D)resultsImage.getGraphics();
+
         // set a reasonable background color
 
-        fillWorld(TEST_BACKGROUND_COLOR);
+        resultsGr.setColor(TEST_BACKGROUND_COLOR);
+        resultsGr.fillRect(0, 0, width, height);
 
         // sort the results
 
@@ -1643,7 +2541,7 @@ public class Game extends JFrame
 
         // set results font
 
-        worldGr.setFont(worldGr.getFont().deriveFont(10f));
+        resultsGr.setFont(resultsGr.getFont().deriveFont(10f));
 
         // display the results
 
@@ -1653,13 +2551,23 @@ public class Game extends JFrame
         {
           Element el = result.element;
           double fps = result.fps;
-          worldGr.setColor(el.getColor());
-          worldGr.fillRect(20, 20 + 20 * i, (int)(scale * fps), 10);
-          worldGr.setColor(computeMatchingColor(el.getColor()));
-          worldGr.drawString(el + ": " + round(100 * fps) / 100d + " fps",
+          resultsGr.setColor(el.getColor());
+          resultsGr.fillRect(20, 20 + 20 * i, (int)(scale * fps), 10);
+          resultsGr.setColor(computeMatchingColor(el.getColor()));
+          resultsGr.drawString(el + ": " + round(100 * fps) / 100d + " fps",
           25, 29 + 20 * i++);
-          forcePaint = true;
         }
+        // convert the results into elements in the world
+
+        edits.add(new Edit()
+          {
+              public void apply()
+              {
+                world.drawImage(resultsImage, 0, 0);
+                forcePaint = true;
+              }
+          });
+
         // restore rate filter
 
         rateFilter = tmpRateFilter;
@@ -1788,9 +2696,7 @@ public class Game extends JFrame
       }
     }
     /**
-     * Fill entire world image with a provided element.  This
-     * function must pause or the animation thread may cause one
-     * pixel to be missed.
+     * Fill entire world image with a provided element.
      *
      * @param  element element to fill image with
      */
@@ -1800,20 +2706,285 @@ public class Game extends JFrame
       fillWorld(element.getColor());
     }
     /**
-     * Fill entire world image with a provided color.  This
-     * function must pause or the animation thread may cause one
-     * pixel to be missed.
+     * Fill entire world image with a provided color.  The fill is
+     * queued for the animation thread, so it lands between updates
+     * and no cell is missed.
      *
      * @param  color color to fill image with
      */
 
-    protected void fillWorld(Color color)
+    protected void fillWorld(final Color color)
+    {
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              world.fill(color);
+              if (recording != null)
+                recording.record(world.getTick(),
+                  new Rectangle(0, 0, world.getWidth(), world.getHeight()),
+                  Element.nearest(color));
+              forcePaint = true;
+            }
+        });
+    }
+    /**
+     * Fill a shape in the world with an element, as a brush stroke.
+     * The stroke is queued for the animation thread, so it lands
+     * between updates.
+     *
+     * @param  shape shape in cells of the world to fill
+     * @param  element element to fill the shape with
+     */
+
+    protected void stroke(Shape shape, Element element)
+    {
+      edits.add(new StrokeEdit(shape, element));
+    }
+    /**
+     * Apply queued edits to the world, in the order they were
+     * queued.  If an input log is being replayed, the strokes due at
+     * the current tick are applied first.  This is called by the
+     * animation thread between updates.
+     */
+
+    protected void applyEdits()
+    {
+      if (replaying != null)
+      {
+        replaying.replay(world);
+        if (replaying.isFinished())
+        {
+          replaying = null;
+          showMessage("Replayed");
+        }
+        forcePaint = true;
+      }
+      for (Edit edit; (edit = edits.poll()) != null;)
+        edit.apply();
+    }
+    /**
+     * Start recording an input log.  The world is reseeded so that
+     * replaying the log reproduces this run exactly.  The log keeps
+     * only the number of bands recording started with, so the
+     * threads menu is disabled until recording stops.
+     */
+
+    public void startRecording()
+    {
+      recordingInput = true;
+      enableBands(false);
+      final long seed = rnd.nextLong();
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              replaying = null;
+              world.reseed(seed);
+              recording = new InputLog(world);
+            }
+        });
+      showMessage("Recording");
+    }
+    /**
+     * Stop recording an input log and offer to save it.
+     */
+
+    public void stopRecording()
+    {
+      recordingInput = false;
+      enableBands(true);
+      edits.add(new Edit()
+        {
+            public void apply()
+            {
+              // take the log between updates, and offer to save it
+              // on the event thread
+
+              final InputLog log = recording;
+              recording = null;
+              if (log != null)
+                SwingUtilities.invokeLater(new Runnable()
+                  {
+                      public void run()
+                      {
+                        saveInputLog(log);
+                      }
+                  });
+            }
+        });
+    }
+    /**
+     * Offer to save a recorded input log.
+     *
+     * @param  log input log to save
+     */
+
+    protected void saveInputLog(InputLog log)
     {
-      // must pause or there might be a left over pixel
+      pushPaused(true);
+      showMessage("Saving Input");
+      try
+      {
+        if (inputLogChooser.showSaveDialog(this) == APPROVE_OPTION)
+        {
+          File file = inputLogChooser.getSelectedFile();
+
+          // if file name does not end if correct file extension
+          // add file extension
+
+          if (!file.toString().toLowerCase()
+          .endsWith("." + InputLog.FILE_EXTENSION))
+            file = new File(file + "." + InputLog.FILE_EXTENSION);
+
+          // if file exists be sure we should overwrite it
 
+          if (!file.exists() || JOptionPane.showConfirmDialog(
+                this,
+                file.getName() +
+                " already exists in this directory.  Should it be overwritten?",
+                "Overwrite?",
+                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION)
+            log.write(file);
+        }
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+        showMessage("Save Failed");
+      }
+      popPaused();
+      forcePaint = true;
+    }
+    /**
+     * Start recording the frames of the world to a file chosen by
+     * the user.
+     */
+
+    public void startFrameRecording()
+    {
       pushPaused(true);
-      world.fill(color);
+      try
+      {
+        if (recorderChooser.showSaveDialog(this) == APPROVE_OPTION)
+        {
+          File file = recorderChooser.getSelectedFile();
+
+          // if file name does not end if correct file extension
+          // add file extension
+
+          if (!file.toString().toLowerCase()
+          .endsWith("." + Recorder.FILE_EXTENSION))
+            file = new File(file + "." + Recorder.FILE_EXTENSION);
+
+          // if file exists be sure we should overwrite it
+
+          if (!file.exists() || JOptionPane.showConfirmDialog(
+                this,
+                file.getName() +
+                " already exists in this directory.  Should it be overwritten?",
+                "Overwrite?",
+                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION)
+          {
+            frameRecorder = new Recorder(
+              file, world.getWidth(), world.getHeight(), 1,
+              Recorder.DEFAULT_KEYFRAME_INTERVAL);
+            world.setRecorder(frameRecorder);
+            showMessage("Recording Frames");
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+        showMessage("Record Failed");
+      }
       popPaused();
+      forcePaint = true;
+    }
+    /**
+     * Stop recording frames, waiting for those captured to be
+     * written.  This may be called from the animation thread, so
+     * the menu and message are updated on the event thread.
+     */
+
+    public void stopFrameRecording()
+    {
+      Recorder recorder = frameRecorder;
+      frameRecorder = null;
+      if (recorder == null)
+        return;
+      world.setRecorder(null);
+      String result;
+      try
+      {
+        recorder.close();
+        result = "Recorded " + recorder.getWritten() + " Frames";
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+        result = "Record Failed";
+      }
+      final String finalResult = result;
+      SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+              showMessage(finalResult);
+              if (recordFramesCbmi != null)
+                recordFramesCbmi.setSelected(false);
+            }
+        });
+    }
+    /**
+     * Read an input log from the disk and replay it.
+     */
+
+    public void readInputLog()
+    {
+      pushPaused(true);
+      showMessage("Loading Input");
+      try
+      {
+        if (inputLogChooser.showOpenDialog(this) == APPROVE_OPTION)
+        {
+          InputLog log = InputLog.read(inputLogChooser.getSelectedFile());
+          World newWorld = log.createWorld();
+
+          // stop recording, the replayed world replaces this one
+
+          if (recordingInput)
+          {
+            stopRecording();
+            recordCbmi.setSelected(false);
+          }
+          setWorld(newWorld, true);
+          selectBands(newWorld.getBands());
+
+          // replay once the world is in place, dropping strokes
+          // made before it so the replay lands at the recorded ticks
+
+          final InputLog replay = log;
+          edits.add(new Edit()
+            {
+                public void apply()
+                {
+                  for (Iterator<Edit> i = edits.iterator(); i.hasNext();)
+                    if (i.next() instanceof StrokeEdit)
+                      i.remove();
+                  replaying = replay;
+                }
+            });
+        }
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+        showMessage("Load Failed");
+      }
+      popPaused();
+      forcePaint = true;
     }
     /**
      * Set current paint cursor from currently selected brush.
@@ -2041,6 +3212,148 @@ public class Game extends JFrame
           forcePaint = true;
         }
     }
+    // band selection action
+
+    class BandSelectionAction extends SandAction
+    {
+        int bands;
+
+        // create band selection action
+
+        public BandSelectionAction(int bands)
+        {
+          super(bands == 1 ? "Serial" : bands + " Bands", null,
+            bands == 1
+            ? "Update the world on a single thread"
+            : "Update the world as " + bands + " parallel bands");
+          this.bands = bands;
+        }
+        // execute action
+
+        public void actionPerformed(ActionEvent e)
+        {
+          showMessage(getValue(NAME).toString());
+          setBands(bands);
+          forcePaint = true;
+        }
+    }
+    // tick rate selection action
+
+    class TickRateAction extends SandAction
+    {
+        int rate;
+
+        // create tick rate selection action
+
+        public TickRateAction(int rate)
+        {
+          super(rate == 0 ? "Flat Out" : rate + " Ticks/s", null,
+            rate == 0
+            ? "Update the world as fast as possible"
+            : "Update the world " + rate + " times a second");
+          this.rate = rate;
+        }
+        // execute action
+
+        public void actionPerformed(ActionEvent e)
+        {
+          showMessage(getValue(NAME).toString());
+          tickRate = rate;
+        }
+    }
+    /**
+     * An edit of the world, queued by any thread and applied by the
+     * animation thread between updates.
+     *
+     * @see #applyEdits()
+     */
+
+    protected interface Edit
+    {
+        /**
+         * Apply the edit.  This is called by the animation thread
+         * between updates.
+         */
+
+        void apply();
+    }
+    /**
+     * A brush stroke queued for the animation thread, kept apart from
+     * other edits so that pending strokes can be discarded.
+     */
+
+    protected class StrokeEdit implements Edit
+    {
+        /** shape in cells of the world to fill */
+
+        protected final Shape shape;
+
+        /** element to fill the shape with */
+
+        protected final Element element;
+
+        public StrokeEdit(Shape shape, Element element)
+        {
+          this.shape = shape;
+          this.element = element;
+        }
+        public void apply()
+        {
+          world.fill(shape, element);
+          if (recording != null)
+            recording.record(world.getTick(), shape, element);
+          forcePaint = true;
+        }
+    }
+    // pan the view a quarter of its size
+
+    class PanAction extends SandAction
+    {
+        int dx, dy;
+
+        // create pan action
+
+        public PanAction(String direction, int key, int dx, int dy)
+        {
+          super("Pan " + direction, getKeyStroke(key, META_MASK),
+            "move the view a quarter of its size " + direction.toLowerCase());
+          this.dx = dx;
+          this.dy = dy;
+        }
+        // execute action
+
+        public void actionPerformed(ActionEvent e)
+        {
+          Viewport view = viewport;
+          setViewport(view.pan(dx * max(1, view.getColumns() / 4),
+              dy * max(1, view.getRows() / 4)));
+        }
+    }
+    // ticks per frame selection action
+
+    class TicksPerFrameAction extends SandAction
+    {
+        int ticks;
+
+        // create ticks per frame selection action
+
+        public TicksPerFrameAction(int ticks)
+        {
+          super(ticks == 1 ? "Every Tick" : "Every " + ticks + " Ticks", null,
+            ticks == 1
+            ? "Draw every tick the display can keep up with"
+            : "Draw at most one frame every " + ticks +
+              " ticks, to fast forward");
+          this.ticks = ticks;
+        }
+        // execute action
+
+        public void actionPerformed(ActionEvent e)
+        {
+          showMessage(getValue(NAME).toString());
+          ticksPerFrame = ticks;
+        }
+    }
     /**
      * Show a message on the screen for the default amount of time.
      *
@@ -0,0 +1,443 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * InputLog records the brush strokes made on a seeded {@link World}
+    * along with the tick at which each was made, so that a run can be
+    * replayed exactly from the world it started with.  A log is saved
+    * as a short text file listing the seed and the strokes, next to a
+    * png image of the starting world.
+    */
+
+public class InputLog
+{
+         // globals
+
+
+         /** extension of input log files */
+
+      public static final String FILE_EXTENSION = "fsinput";
+
+         /** first word of an input log file */
+
+      public static final String MAGIC = "freesand-input";
+
+         /** version of the input log file format */
+
+      public static final int    VERSION = 1;
+
+         /** copy of the world as it was when recording started */
+
+      protected final World initial;
+
+         /** seed of the world when recording started */
+
+      protected final long  seed;
+
+         /** number of bands the world was updated with */
+
+      protected final int   bands;
+
+         /** strokes in the order they were made */
+
+      protected final List<Stroke> strokes = new ArrayList<Stroke>();
+
+         /** index of next stroke to replay */
+
+      protected int         next;
+
+         /**
+          * Start recording strokes made on a world.  The world should
+          * have just been seeded, as the seed and a copy of the world
+          * are kept to replay from.  Every chunk of the world is woken,
+          * as a replay starts with every chunk awake and the kernels
+          * draw random numbers only for awake chunks.
+          *
+          * @param world world strokes will be made on
+          * @see World#reseed(long)
+          */
+
+      public InputLog(World world)
+      {
+         this(new World(world), world.getSeed(), world.getBands());
+         world.wake(0, 0, world.getWidth(), world.getHeight());
+      }
+         /**
+          * Construct an input log from its parts.
+          *
+          * @param initial world as it was when recording started
+          * @param seed seed of the world when recording started
+          * @param bands number of bands the world was updated with
+          */
+
+      protected InputLog(World initial, long seed, int bands)
+      {
+         this.initial = initial;
+         this.seed = seed;
+         this.bands = bands;
+      }
+         /**
+          * Record a stroke.
+          *
+          * @param tick tick of the world when the stroke was made
+          * @param shape shape filled by the stroke
+          * @param element element the shape was filled with
+          */
+
+      public void record(long tick, Shape shape, Element element)
+      {
+         strokes.add(new Stroke(tick, shape, element));
+      }
+         /**
+          * Create a world ready to replay this log, seeded and filled
+          * as the recorded world was when recording started.
+          *
+          * @return A new world to pass to {@link #replay(Simulation)}.
+          */
+
+      public World createWorld()
+      {
+         World world = new World(initial);
+         world.reseed(seed);
+         world.setBands(bands);
+         next = 0;
+         return world;
+      }
+         /**
+          * Apply the strokes made at or before the current tick of a
+          * world.  This should be called before each update of a world
+          * created by {@link #createWorld()}, or of any simulation
+          * seeded and filled the same way.
+          *
+          * @param world world to apply strokes to
+          */
+
+      public void replay(Simulation world)
+      {
+         while (next < strokes.size() &&
+                strokes.get(next).tick <= world.getTick())
+         {
+            Stroke stroke = strokes.get(next++);
+            world.fill(stroke.shape, stroke.element);
+         }
+      }
+         /**
+          * Test if all strokes have been replayed.
+          *
+          * @return True if there are no more strokes to replay.
+          */
+
+      public boolean isFinished()
+      {
+         return next >= strokes.size();
+      }
+         /**
+          * Return the tick of the last stroke, or zero if there are no
+          * strokes.
+          *
+          * @return The tick of the last stroke.
+          */
+
+      public long getLastTick()
+      {
+         return strokes.isEmpty() ? 0 : strokes.get(strokes.size() - 1).tick;
+      }
+         /**
+          * Return the number of strokes recorded.
+          *
+          * @return The number of strokes.
+          */
+
+      public int getStrokeCount()
+      {
+         return strokes.size();
+      }
+         /**
+          * Return the image file of the starting world which goes with
+          * an input log file.
+          *
+          * @param file input log file
+          * @return The png file next to the log file.
+          */
+
+      public static File getImageFile(File file)
+      {
+         String name = file.getName();
+         int dot = name.lastIndexOf('.');
+         if (dot > 0)
+            name = name.substring(0, dot);
+         return new File(file.getParentFile(), name + ".png");
+      }
+         /**
+          * Write this log to a file, and the starting world to a png
+          * file next to it.
+          *
+          * @param file file to write log to
+          * @throws IOException if either file can not be written
+          */
+
+      public void write(File file) throws IOException
+      {
+            // write the starting world
+
+         File imageFile = getImageFile(file);
+         initial.render();
+         ImageIO.write(initial, "png", imageFile);
+
+            // write the header and the strokes
+
+         PrintWriter out = new PrintWriter(new FileWriter(file));
+         try
+         {
+            out.println(MAGIC + " " + VERSION);
+            out.println("seed " + seed);
+            out.println("bands " + bands);
+            out.println("image " + imageFile.getName());
+            for (Stroke stroke: strokes)
+               out.println(stroke);
+            if (out.checkError())
+               throw new IOException("unable to write " + file);
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+         /**
+          * Read a log from a file, and the starting world from the png
+          * file named in it.
+          *
+          * @param file file to read log from
+          * @return The log read from the file.
+          * @throws IOException if either file can not be read or is
+          *  badly formed
+          */
+
+      public static InputLog read(File file) throws IOException
+      {
+         BufferedReader in = new BufferedReader(new FileReader(file));
+         int lineNumber = 0;
+         String line = null;
+         try
+         {
+               // read the header
+
+            line = in.readLine();
+            ++lineNumber;
+            if (line == null || !line.equals(MAGIC + " " + VERSION))
+               throw new IOException(file + " is not a version " + VERSION +
+                                     " input log");
+            long seed = Long.parseLong(value(in.readLine(), "seed"));
+            int bands = Integer.parseInt(value(in.readLine(), "bands"));
+            String imageName = value(in.readLine(), "image");
+            lineNumber += 3;
+
+               // read the starting world
+
+            BufferedImage image = ImageIO.read(
+               new File(file.getParentFile(), imageName));
+            if (image == null)
+               throw new IOException("unable to read " + imageName);
+            InputLog log = new InputLog(new World(image), seed, bands);
+
+               // read the strokes
+
+            while ((line = in.readLine()) != null)
+            {
+               ++lineNumber;
+               if (line.trim().length() > 0)
+                  log.strokes.add(Stroke.parse(line));
+            }
+            return log;
+         }
+         catch (IllegalArgumentException e)
+         {
+            throw new IOException(file + ":" + lineNumber + ": " +
+                                  e.getMessage());
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+         /**
+          * Return the value of a header line of the form "key value".
+          *
+          * @param line header line
+          * @param key expected key
+          * @return The value on the line.
+          */
+
+      static String value(String line, String key)
+      {
+         if (line == null || !line.startsWith(key + " "))
+            throw new IllegalArgumentException("expected " + key);
+         return line.substring(key.length() + 1).trim();
+      }
+         /**
+          * A single brush stroke: a shape filled with an element at a
+          * given tick.  The shape is kept as a path of exact double
+          * coordinates so that it rasterizes to the same cells when
+          * replayed.
+          */
+
+      public static class Stroke
+      {
+            /** tick of the world when the stroke was made */
+
+         public final long    tick;
+
+            /** shape filled by the stroke */
+
+         public final Shape   shape;
+
+            /** element the shape was filled with */
+
+         public final Element element;
+
+         public Stroke(long tick, Shape shape, Element element)
+         {
+            this.tick = tick;
+            this.shape = shape;
+            this.element = element;
+         }
+            /**
+             * Parse a stroke from a line of an input log.
+             *
+             * @param line line of the form produced by {@link #toString()}
+             * @return The parsed stroke.
+             */
+
+         static Stroke parse(String line)
+         {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length < 4 || !tokens[0].equals("stroke"))
+               throw new IllegalArgumentException("expected stroke");
+
+            long tick = Long.parseLong(tokens[1]);
+            Element element = Element.valueOf(tokens[2]);
+            Path2D.Double path = new Path2D.Double(Integer.parseInt(tokens[3]));
+
+            int i = 4;
+            try
+            {
+               while (i < tokens.length)
+               {
+                  String op = tokens[i++];
+                  if (op.equals("M"))
+                     path.moveTo(d(tokens[i++]), d(tokens[i++]));
+                  else if (op.equals("L"))
+                     path.lineTo(d(tokens[i++]), d(tokens[i++]));
+                  else if (op.equals("Q"))
+                     path.quadTo(d(tokens[i++]), d(tokens[i++]),
+                                 d(tokens[i++]), d(tokens[i++]));
+                  else if (op.equals("C"))
+                     path.curveTo(d(tokens[i++]), d(tokens[i++]),
+                                  d(tokens[i++]), d(tokens[i++]),
+                                  d(tokens[i++]), d(tokens[i++]));
+                  else if (op.equals("Z"))
+                     path.closePath();
+                  else
+                     throw new IllegalArgumentException(
+                        "unknown path segment " + op);
+               }
+            }
+            catch (ArrayIndexOutOfBoundsException e)
+            {
+               throw new IllegalArgumentException("truncated path");
+            }
+            return new Stroke(tick, path, element);
+         }
+            /** Parse a double. */
+
+         static double d(String token)
+         {
+            return Double.parseDouble(token);
+         }
+            /**
+             * Return this stroke as a line of an input log: the tick,
+             * element, winding rule and path segments.
+             *
+             * @return This stroke as a string.
+             */
+
+         public String toString()
+         {
+            PathIterator pi = shape.getPathIterator(null);
+            StringBuilder sb = new StringBuilder("stroke ");
+            sb.append(tick).append(' ').append(element.name())
+               .append(' ').append(pi.getWindingRule());
+
+            double[] c = new double[6];
+            for (; !pi.isDone(); pi.next())
+            {
+               int points = 0;
+               switch (pi.currentSegment(c))
+               {
+               case PathIterator.SEG_MOVETO:
+                  sb.append(" M");
+                  points = 1;
+                  break;
+               case PathIterator.SEG_LINETO:
+                  sb.append(" L");
+                  points = 1;
+                  break;
+               case PathIterator.SEG_QUADTO:
+                  sb.append(" Q");
+                  points = 2;
+                  break;
+               case PathIterator.SEG_CUBICTO:
+                  sb.append(" C");
+                  points = 3;
+                  break;
+               case PathIterator.SEG_CLOSE:
+                  sb.append(" Z");
+                  break;
+               }
+               for (int i = 0; i < points * 2; ++i)
+                  sb.append(' ').append(c[i]);
+            }
+            return sb.toString();
+         }
+      }
+}
@@ -0,0 +1,445 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.*;
+
+import java.util.Random;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * Kernel walks the cells of a {@link World} and applies the {@link
+    * Rule} of the element in each cell.  Rules are looked up by element
+    * id, so adding an element does not slow down any other element.
+    * A kernel holds the neighborhood of the cell being updated, so each
+    * thread updating a world must have its own kernel.
+    */
+
+public class Kernel
+{
+         // globals
+
+
+         /** rule for each element indexed by element id, inert
+          * elements have no rule and are skipped */
+
+      protected static final Rule[] RULES = Rule.createRules();
+
+         /** rules this kernel applies, those of the world it updates
+          * or else the usual {@link #RULES} */
+
+      protected Rule[]  rules = RULES;
+
+         /** world this kernel updates, or null if the kernel updates
+          * rows bound with {@link #bind} */
+
+      protected final World world;
+
+         /** random number generator used by rules, owned by this
+          * kernel alone */
+
+      protected Random  rnd;
+
+         /** cells being updated, these may be only some rows of the
+          * world */
+
+      protected byte[]  cells;
+
+         /** width of the world being updated */
+
+      protected int     width;
+
+         /** height of the whole world being updated */
+
+      protected int     height;
+
+         /** chunk map of the whole world being updated */
+
+      protected ChunkMap chunks;
+
+         /** random row orders of the world being updated */
+
+      protected int[][] xRndIndex;
+
+         /** chunks of the world in which something changed */
+
+      protected boolean[] changed;
+
+         /** what the rules of each element have done, the {@link
+          * ElementCounts#KINDS} counts of each element are next to
+          * each other at element id times KINDS */
+
+      protected final long[] counts =
+         new long[Element.values().length * ElementCounts.KINDS];
+
+         // neighborhood of the cell being updated
+
+
+         /** x location of the cell */
+
+      protected int     x;
+
+         /** y location of the cell */
+
+      protected int     y;
+
+         /** index of the cell */
+
+      protected int     ip;
+
+         /** index of the chunk containing the cell */
+
+      protected int     ic;
+
+         /** element in the cell */
+
+      protected byte    p;
+
+         // indices of the cells around this cell, these may lie
+         // outside the world if the cell is on an edge
+
+      protected int     iuc, iul, iur, idc, idl, idr, il, ir;
+
+         // which edges of the world the cell is on
+
+      protected boolean atTop, atBot, atLeft, atRight;
+
+         /** indices of the cells left, right, above and below the
+          * cell, a neighbor beyond the edge of the world is replaced
+          * with the cell itself */
+
+      protected final int[] adjacent = new int[4];
+
+         /** indices of the eight cells around the cell, a neighbor
+          * beyond the edge of the world is replaced with the cell
+          * itself */
+
+      protected final int[] surrounding = new int[8];
+
+         /**
+          * Construct a kernel which updates a given world.
+          *
+          * @param world world to update
+          */
+
+      public Kernel(World world)
+      {
+         this.world = world;
+         this.rnd = world.createRandom();
+      }
+         /**
+          * Construct a kernel which updates rows of cells given to it
+          * with {@link #bind}, rather than the cells of a world.
+          *
+          * @param rnd random number generator for this kernel alone
+          */
+
+      public Kernel(Random rnd)
+      {
+         this.world = null;
+         this.rnd = rnd;
+      }
+         /**
+          * Update a range of rows of the world, working from the bottom
+          * row up.  Rows and cells in sleeping chunks are skipped.
+          * Particles may move one row outside of the given range.
+          *
+          * @param top top most row to update
+          * @param bottom bottom most row to update
+          */
+
+      public void update(int top, int bottom)
+      {
+            // pick up the current state of the world
+
+         bind(world.cells, world.width, world.height,
+              world.chunks, world.xRndIndex);
+         rules = world.rules;
+         update(top, bottom, 0);
+      }
+         /**
+          * Bind the cells this kernel updates.  The cells may be a copy
+          * of only some rows of a larger world, in which case the
+          * offset of the first row is given to {@link #update(int, int,
+          * int)}.
+          *
+          * @param cells cells to update, whole rows of the world
+          * @param width width of the world
+          * @param height height of the whole world
+          * @param chunks chunk map of the whole world
+          * @param xRndIndex random row orders of the world
+          */
+
+      public void bind(byte[] cells, int width, int height,
+                       ChunkMap chunks, int[][] xRndIndex)
+      {
+         this.cells     = cells;
+         this.width     = width;
+         this.height    = height;
+         this.chunks    = chunks;
+         this.xRndIndex = xRndIndex;
+         this.changed   = chunks.changed;
+      }
+         /**
+          * Update a range of the bound rows, working from the bottom
+          * row up.  Rows and cells in sleeping chunks are skipped.
+          * Particles may move one row outside of the given range, so
+          * unless the range touches the top or bottom of the world the
+          * bound cells must include a row above and below it.
+          *
+          * @param top top most row to update, in bound rows
+          * @param bottom bottom most row to update, in bound rows
+          * @param offset row of the world at which the bound rows start
+          */
+
+      public void update(int top, int bottom, int offset)
+      {
+         boolean[] awake     = chunks.awake;
+         boolean[] awakeRows = chunks.awakeRows;
+         int       chunkCols = chunks.cols;
+         int[][]   xRndIndex = this.xRndIndex;
+         Rule[]    rules     = this.rules;
+
+            // start from the bottom of the range
+
+         for (int y = bottom; y >= top; --y)
+         {
+               // skip rows in which every chunk is asleep
+
+            int wy = y + offset;
+            if (!awakeRows[wy >> CHUNK_SHIFT])
+               continue;
+
+               // compute offset to this line and its first chunk
+
+            int thisOffset = y * width;
+            int chunkOffset = (wy >> CHUNK_SHIFT) * chunkCols;
+
+               // are we at top or bottom?
+
+            this.y = wy;
+            atTop = wy == 0;
+            atBot = wy == height - 1;
+
+               // process line in random order
+
+            for (int x: xRndIndex[rnd.nextInt(xRndIndex.length)])
+            {
+                  // skip cells in sleeping chunks
+
+               int ic = chunkOffset + (x >> CHUNK_SHIFT);
+               if (!awake[ic])
+                  continue;
+
+                  // don't process inert matter
+
+               int ip = thisOffset + x;
+               byte p = cells[ip];
+               Rule rule = rules[p];
+               if (rule == null)
+                  continue;
+
+                  // establish the neighborhood and apply the rule
+
+               if (ElementCounts.ENABLED)
+                  ++counts[(p << ElementCounts.SHIFT) + ElementCounts.VISITED];
+               this.x = x;
+               this.ip = ip;
+               this.ic = ic;
+               this.p = p;
+               atLeft = x == 0;
+               atRight = x == width - 1;
+               iuc = ip - width;
+               iul = iuc - 1;
+               iur = iuc + 1;
+               idc = ip + width;
+               idl = idc - 1;
+               idr = idc + 1;
+               il = ip - 1;
+               ir = ip + 1;
+
+               rule.apply(this, p);
+            }
+         }
+      }
+         /** @return The element above this cell, rock if off the world. */
+
+      public byte up()
+      {
+         return atTop ? ROCK : cells[iuc];
+      }
+         /** @return The element up left of this cell, rock if off the world. */
+
+      public byte upLeft()
+      {
+         return atTop || atLeft ? ROCK : cells[iul];
+      }
+         /** @return The element up right of this cell, rock if off the world. */
+
+      public byte upRight()
+      {
+         return atTop || atRight ? ROCK : cells[iur];
+      }
+         /** @return The element below this cell, rock if off the world. */
+
+      public byte down()
+      {
+         return atBot ? ROCK : cells[idc];
+      }
+         /** @return The element down left of this cell, rock if off the world. */
+
+      public byte downLeft()
+      {
+         return atBot || atLeft ? ROCK : cells[idl];
+      }
+         /** @return The element down right of this cell, rock if off the world. */
+
+      public byte downRight()
+      {
+         return atBot || atRight ? ROCK : cells[idr];
+      }
+         /** @return The element left of this cell, rock if off the world. */
+
+      public byte left()
+      {
+         return atLeft ? ROCK : cells[il];
+      }
+         /** @return The element right of this cell, rock if off the world. */
+
+      public byte right()
+      {
+         return atRight ? ROCK : cells[ir];
+      }
+         /** @return The element two left of this cell, rock if off the world. */
+
+      public byte leftLeft()
+      {
+         return x < 2 ? ROCK : cells[ip - 2];
+      }
+         /** @return The element two right of this cell, rock if off the world. */
+
+      public byte rightRight()
+      {
+         return x > width - 3 ? ROCK : cells[ip + 2];
+      }
+         /**
+          * Return the indices of the cells left, right, above and below
+          * this one.  The returned array is reused for every cell.
+          *
+          * @return The indices of the adjacent cells.
+          */
+
+      public int[] adjacent()
+      {
+         adjacent[0] = atLeft  ? ip : il;
+         adjacent[1] = atRight ? ip : ir;
+         adjacent[2] = atTop   ? ip : iuc;
+         adjacent[3] = atBot   ? ip : idc;
+         return adjacent;
+      }
+         /**
+          * Return the indices of the eight cells around this one.  The
+          * returned array is reused for every cell.
+          *
+          * @return The indices of the surrounding cells.
+          */
+
+      public int[] surrounding()
+      {
+         surrounding[0] = atLeft             ? ip : il;
+         surrounding[1] = atLeft  || atTop   ? ip : iul;
+         surrounding[2] = atRight            ? ip : ir;
+         surrounding[3] = atRight || atTop   ? ip : iur;
+         surrounding[4] = atTop              ? ip : iuc;
+         surrounding[5] = atBot              ? ip : idc;
+         surrounding[6] = atBot   || atLeft  ? ip : idl;
+         surrounding[7] = atBot   || atRight ? ip : idr;
+         return surrounding;
+      }
+         /**
+          * Set the element of a cell, and note that this cell's chunk
+          * changed.  This counts as a reaction of the element in this
+          * cell.
+          *
+          * @param i index of the cell to set
+          * @param el element to put in the cell
+          */
+
+      public void set(int i, byte el)
+      {
+         cells[i] = el;
+         changed[ic] = true;
+         if (ElementCounts.ENABLED)
+            ++counts[(p << ElementCounts.SHIFT) + ElementCounts.REACTIONS];
+      }
+         /**
+          * Swap the element in this cell with the one in another cell.
+          *
+          * @param dest index of the cell to swap with
+          */
+
+      public void swap(int dest)
+      {
+         byte d = cells[dest];
+         if (ElementCounts.ENABLED)
+            ++counts[(p << ElementCounts.SHIFT) +
+                     (d == AIR ? ElementCounts.MOVES : ElementCounts.SWAPS)];
+         cells[ip] = d;
+         cells[dest] = p;
+         changed[ic] = true;
+      }
+         /**
+          * Keep the chunk of this cell awake on the next update cycle,
+          * as if something had changed.  Rules which might change a
+          * cell on the next cycle by chance must call this.
+          */
+
+      public void stir()
+      {
+         changed[ic] = true;
+      }
+         /**
+          * Roll for a 1 in X chance.
+          *
+          * @param in the X in 1 in X
+          * @return True with a probablity of 1 in X.
+          */
+
+      public boolean chance(int in)
+      {
+         return rnd.nextInt(in) == 0;
+      }
+         /**
+          * Flip a coin.
+          *
+          * @return True or false with equal probablity.
+          */
+
+      public boolean coin()
+      {
+         return rnd.nextBoolean();
+      }
+}
@@ -0,0 +1,209 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+   /**
+    * LatencyHistogram counts durations in nanoseconds in logarithmic
+    * buckets, four buckets to each power of two, so any duration is
+    * placed within 25% of its true value.  Recording is a few
+    * arithmetic operations and allocates nothing, so it can be left on
+    * all the time.  Only one thread may record into a histogram, but
+    * any thread may take a {@link Snapshot} of it.
+    */
+
+public class LatencyHistogram
+{
+         // globals
+
+
+         /** bits of each duration below its highest bit used to pick
+          * a bucket */
+
+      public static final int SUB_BITS = 2;
+
+         /** buckets to each power of two */
+
+      public static final int SUB      = 1 << SUB_BITS;
+
+         /** total number of buckets, enough for any positive long */
+
+      public static final int BUCKETS  = 64 * SUB;
+
+         /** count of durations in each bucket */
+
+      protected final long[] counts = new long[BUCKETS];
+
+         /** number of durations recorded */
+
+      protected volatile long count;
+
+         /** sum of durations recorded */
+
+      protected long sum;
+
+         /** longest duration recorded */
+
+      protected long max;
+
+         /**
+          * Record a duration.
+          *
+          * @param nanos duration in nanoseconds
+          */
+
+      public void record(long nanos)
+      {
+         if (nanos < 0)
+            nanos = 0;
+         ++counts[bucket(nanos)];
+         sum += nanos;
+         if (nanos > max)
+            max = nanos;
+         ++count;
+      }
+         /**
+          * Forget all recorded durations.  This should be called by the
+          * recording thread.
+          */
+
+      public void reset()
+      {
+         java.util.Arrays.fill(counts, 0);
+         sum = 0;
+         max = 0;
+         count = 0;
+      }
+         /**
+          * Return a copy of the current state of this histogram.
+          *
+          * @return A snapshot of this histogram.
+          */
+
+      public Snapshot snapshot()
+      {
+         return new Snapshot(this);
+      }
+         /**
+          * Return the bucket a duration falls into.
+          *
+          * @param nanos duration in nanoseconds
+          * @return The index of the bucket.
+          */
+
+      static int bucket(long nanos)
+      {
+         if (nanos < SUB)
+            return (int)nanos;
+         int msb = 63 - Long.numberOfLeadingZeros(nanos);
+         int sub = (int)(nanos >>> (msb - SUB_BITS)) & (SUB - 1);
+         return (msb - SUB_BITS + 1) * SUB + sub;
+      }
+         /**
+          * Return the longest duration which falls into a bucket.
+          *
+          * @param bucket index of bucket
+          * @return The upper bound of the bucket in nanoseconds.
+          */
+
+      static long upperBound(int bucket)
+      {
+         if (bucket < SUB)
+            return bucket;
+         int shift = bucket / SUB - 1;
+         long lower = (long)(SUB + bucket % SUB) << shift;
+         return lower + (1L << shift) - 1;
+      }
+         /**
+          * A copy of the state of a histogram at some moment.
+          */
+
+      public static class Snapshot
+      {
+         final long[] counts;
+         final long   count;
+         final long   sum;
+         final long   max;
+
+         Snapshot(LatencyHistogram h)
+         {
+            count = h.count;
+            counts = h.counts.clone();
+            sum = h.sum;
+            max = h.max;
+         }
+            /** @return The number of durations recorded. */
+
+         public long getCount()
+         {
+            return count;
+         }
+            /** @return The mean duration in nanoseconds. */
+
+         public double getMean()
+         {
+            return count == 0 ? 0 : (double)sum / count;
+         }
+            /** @return The longest duration in nanoseconds. */
+
+         public long getMax()
+         {
+            return max;
+         }
+            /**
+             * Return the duration below which a given percentage of
+             * durations fall.
+             *
+             * @param percent percentage, 50 for the median
+             * @return The duration in nanoseconds.
+             */
+
+         public long getPercentile(double percent)
+         {
+            long total = 0;
+            for (long c: counts)
+               total += c;
+            long target = (long)Math.ceil(total * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i)
+               if ((seen += counts[i]) >= target && seen > 0)
+                  return Math.min(upperBound(i), max);
+            return max;
+         }
+            /**
+             * Return this snapshot as a string, with durations in
+             * milliseconds.
+             *
+             * @return This snapshot as a string.
+             */
+
+         public String toString()
+         {
+            return String.format(
+               "n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+               count, getMean() / 1e6, getPercentile(50) / 1e6,
+               getPercentile(99) / 1e6, max / 1e6);
+         }
+      }
+}
@@ -0,0 +1,637 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * OffHeapWorld is a world whose cells are held in direct byte
+    * buffers outside of the java heap, so worlds far larger than a
+    * {@link World}, such as 32k by 32k cells, can be simulated
+    * without multi gigabyte arrays on the heap.  No image of the
+    * whole world is ever kept, only a requested viewport is painted
+    * into an image.
+    *
+    * <p>The same {@link Kernel} and element rules update the world.
+    * Each band is updated from the bottom up in strips of {@link
+    * #STRIP_ROWS} rows, each strip being copied with the row above and
+    * below it into a small heap buffer, updated there and copied back.
+    * Because the strips of a band are visited in the same order as
+    * the rows of a {@link World} are, an off heap world with the same
+    * cells, seed and bands updates identically to an on heap one.
+    * Strips in which every chunk is asleep are not copied at all.</p>
+    *
+    * <p>Direct memory is limited by the JVM, so very large worlds
+    * need a large enough -XX:MaxDirectMemorySize.</p>
+    */
+
+public class OffHeapWorld implements Simulation
+{
+         // globals
+
+
+         /** most bytes held in one direct buffer, well below the 2GB
+          * limit of a buffer */
+
+      public static final int SLAB_BYTES = 1 << 30;
+
+         /** number of rows updated in each strip copied to the heap */
+
+      public static final int STRIP_ROWS = 64;
+
+         /** width of the world */
+
+      protected final int width;
+
+         /** height of the world */
+
+      protected final int height;
+
+         /** number of rows held in each slab */
+
+      protected final int slabRows;
+
+         /** direct buffers holding the element id of each cell, row
+          * by row, {@link #slabRows} rows to a buffer */
+
+      protected final ByteBuffer[] slabs;
+
+         /** views of the slabs used to edit and paint the world from
+          * the calling thread */
+
+      protected final ByteBuffer[] views;
+
+         /** which chunks of the world are awake */
+
+      protected final ChunkMap chunks;
+
+         /** arrays of random numbers used to visit cells in a given
+          * row in a random order */
+
+      protected final int[][] xRndIndex;
+
+         /** generator from which row orders and kernels are seeded */
+
+      protected Random rnd;
+
+         /** seed from which all randomness in the world is derived */
+
+      protected long   seed;
+
+         /** number of update cycles since the world was seeded */
+
+      protected long   tick;
+
+         /** number of horizontal bands the world is split into on
+          * each update */
+
+      protected int    bands = 1;
+
+         /** stagers which update the bands, one for each band */
+
+      protected Stager[] stagers = new Stager[0];
+
+         /** action which updates the bands, reused on every update */
+
+      protected BandsAction bandsAction;
+
+         /** time taken by each update */
+
+      protected final LatencyHistogram tickLatency = new LatencyHistogram();
+
+         /** pool on which bands are updated in parallel */
+
+      protected static final ForkJoinPool BAND_POOL = new ForkJoinPool();
+
+         /**
+          * Construct an off heap world of a given size, background
+          * element and seed.
+          *
+          * @param width width of world to create
+          * @param height height of world to create
+          * @param bgElement element to fill world with
+          * @param seed seed from which all randomness is derived
+          */
+
+      public OffHeapWorld(int width, int height, Element bgElement, long seed)
+      {
+         this.width = width;
+         this.height = height;
+
+            // allocate the cells in slabs of whole rows
+
+         slabRows = Math.max(1, SLAB_BYTES / width);
+         slabs = new ByteBuffer[(height + slabRows - 1) / slabRows];
+         for (int i = 0; i < slabs.length; ++i)
+            slabs[i] = ByteBuffer.allocateDirect(
+               Math.min(slabRows, height - i * slabRows) * width);
+         views = createViews();
+         chunks = new ChunkMap(width, height);
+
+            // fill background and establish random state
+
+         fill(bgElement);
+         xRndIndex = new int[RND_INDEX_CNT][width];
+         reseed(seed);
+      }
+         /**
+          * Construct an off heap world of a given size and seed, and
+          * set the background to air.
+          *
+          * @param width width of world to create
+          * @param height height of world to create
+          * @param seed seed from which all randomness is derived
+          */
+
+      public OffHeapWorld(int width, int height, long seed)
+      {
+         this(width, height, Element.AIR_EL, seed);
+      }
+         /**
+          * Seed the world and reset the tick count to zero.
+          *
+          * @param seed seed from which all randomness is derived
+          * @see World#reseed(long)
+          */
+
+      public void reseed(long seed)
+      {
+         this.seed = seed;
+         tick = 0;
+         rnd = new Random(seed);
+
+            // fill random index array with lots of random indicies
+
+         for (int[] row: xRndIndex)
+            for (int i = 0; i < row.length; ++i)
+               row[i] = rnd.nextInt(row.length);
+      }
+         /** @return The seed from which all randomness is derived. */
+
+      public long getSeed()
+      {
+         return seed;
+      }
+         /** @return The number of update cycles since seeding. */
+
+      public long getTick()
+      {
+         return tick;
+      }
+         /** @return The width of the world. */
+
+      public int getWidth()
+      {
+         return width;
+      }
+         /** @return The height of the world. */
+
+      public int getHeight()
+      {
+         return height;
+      }
+         /**
+          * Create a set of views of the slabs.  A view has its own
+          * position, so each thread copying rows needs its own views.
+          *
+          * @return New views of the slabs.
+          */
+
+      protected ByteBuffer[] createViews()
+      {
+         ByteBuffer[] views = new ByteBuffer[slabs.length];
+         for (int i = 0; i < slabs.length; ++i)
+            views[i] = slabs[i].duplicate();
+         return views;
+      }
+         /**
+          * Copy part of a row of cells out of the world.
+          *
+          * @param views views of the slabs owned by the calling thread
+          * @param x left most cell to copy
+          * @param y row to copy
+          * @param dst array to copy into
+          * @param offset offset in array to copy to
+          * @param length number of cells to copy
+          */
+
+      protected void getRow(ByteBuffer[] views, int x, int y,
+                            byte[] dst, int offset, int length)
+      {
+         ByteBuffer view = views[y / slabRows];
+         view.position((y % slabRows) * width + x);
+         view.get(dst, offset, length);
+      }
+         /**
+          * Copy part of a row of cells into the world.
+          *
+          * @param views views of the slabs owned by the calling thread
+          * @param x left most cell to copy
+          * @param y row to copy
+          * @param src array to copy from
+          * @param offset offset in array to copy from
+          * @param length number of cells to copy
+          */
+
+      protected void putRow(ByteBuffer[] views, int x, int y,
+                            byte[] src, int offset, int length)
+      {
+         ByteBuffer view = views[y / slabRows];
+         view.position((y % slabRows) * width + x);
+         view.put(src, offset, length);
+      }
+         /**
+          * Return the element in a cell.
+          *
+          * @param x x location of cell
+          * @param y y location of cell
+          * @return The element in the cell.
+          */
+
+      public Element getElement(int x, int y)
+      {
+         return Element.fromId(slabs[y / slabRows].get(
+                                  (y % slabRows) * width + x));
+      }
+         /**
+          * Fill entire world with provided element.
+          *
+          * @param el element to paint world
+          */
+
+      public void fill(Element el)
+      {
+         byte[] row = new byte[width];
+         Arrays.fill(row, el.getId());
+         for (int y = 0; y < height; ++y)
+            putRow(views, 0, y, row, 0, width);
+         chunks.wake(0, 0, width, height);
+      }
+         /**
+          * Fill a shape with the provided element.  The shape is
+          * rasterized without antialiasing, a block of rows at a time,
+          * so that filling a large shape needs little memory.
+          *
+          * @param shape shape to fill, in world coordinates
+          * @param el element to fill shape with
+          */
+
+      public void fill(Shape shape, Element el)
+      {
+            // find the part of the shape inside the world
+
+         Rectangle bounds = shape.getBounds().intersection(
+            new Rectangle(0, 0, width, height));
+         if (bounds.isEmpty())
+            return;
+
+            // rasterize the shape into a mask a block at a time
+
+         int blockRows = Math.min(bounds.height, STRIP_ROWS);
+         BufferedImage mask = new BufferedImage(
+            bounds.width, blockRows, BufferedImage.TYPE_BYTE_GRAY);
+         byte[] maskPixels = ((DataBufferByte)mask.getRaster()
+                              .getDataBuffer()).getData();
+         byte[] row = new byte[bounds.width];
+         byte id = el.getId();
+
+         for (int top = 0; top < bounds.height; top += blockRows)
+         {
+            Arrays.fill(maskPixels, (byte)0);
+            Graphics2D g = (Graphics2D)mask.getGraphics();
+            g.translate(-bounds.x, -(bounds.y + top));
+            g.setColor(Color.WHITE);
+            g.fill(shape);
+            g.dispose();
+
+               // fill cells under the mask
+
+            int rows = Math.min(blockRows, bounds.height - top);
+            for (int y = 0; y < rows; ++y)
+            {
+               int wy = bounds.y + top + y;
+               getRow(views, bounds.x, wy, row, 0, bounds.width);
+               for (int x = 0; x < bounds.width; ++x)
+                  if (maskPixels[y * bounds.width + x] != 0)
+                     row[x] = id;
+               putRow(views, bounds.x, wy, row, 0, bounds.width);
+            }
+         }
+         chunks.wake(bounds.x, bounds.y, bounds.width, bounds.height);
+      }
+         /**
+          * Draw an image into the world.  The cells of a {@link World}
+          * are copied directly, otherwise each pixel becomes the
+          * element with the exactly matching color, or if there is
+          * none, the element with the nearest color.
+          *
+          * @param image image to draw into the world
+          * @param x left edge of image in world
+          * @param y top edge of image in world
+          */
+
+      public void drawImage(Image image, int x, int y)
+      {
+            // get the image as element ids
+
+         World source = image instanceof World
+            ? (World)image
+            : new World(image);
+
+            // copy those cells which land inside the world
+
+         Rectangle bounds = new Rectangle(
+            x, y, source.width, source.height).intersection(
+               new Rectangle(0, 0, width, height));
+         if (bounds.isEmpty())
+            return;
+
+         for (int wy = bounds.y; wy < bounds.y + bounds.height; ++wy)
+            putRow(views, bounds.x, wy, source.cells,
+                   (wy - y) * source.width + bounds.x - x, bounds.width);
+         chunks.wake(bounds.x, bounds.y, bounds.width, bounds.height);
+      }
+         /**
+          * Paint a region of the world into an image from its cells,
+          * one pixel per cell.
+          *
+          * @param region region to paint, clipped to the world
+          * @param image image to paint into, or null or an image of
+          *  another size to create a new one
+          * @return The image painted into.
+          */
+
+      public BufferedImage getViewport(Rectangle region, BufferedImage image)
+      {
+         Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+         if (r.isEmpty())
+            r.setBounds(0, 0, 1, 1);
+         if (image == null || image.getWidth() != r.width ||
+             image.getHeight() != r.height)
+            image = new BufferedImage(
+               r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+         int[] view = ((DataBufferInt)image.getRaster()
+                       .getDataBuffer()).getData();
+
+            // painting may happen on another thread, so use own views
+
+         ByteBuffer[] views = createViews();
+         byte[] row = new byte[r.width];
+         for (int y = 0; y < r.height; ++y)
+         {
+            getRow(views, r.x, r.y + y, row, 0, r.width);
+            for (int x = 0; x < r.width; ++x)
+               view[y * r.width + x] = PALETTE[row[x]];
+         }
+         return image;
+      }
+         /**
+          * Update the world state.  If the world is split into more
+          * than one band, the even bands are updated in parallel, then
+          * the odd ones, as a {@link World} does.
+          */
+
+      public void update()
+      {
+         long start = System.nanoTime();
+         int n = getEffectiveBands();
+         if (stagers.length < n)
+            createStagers(n);
+
+            // seed the kernel of each band for this tick
+
+         long tickSeed = seed + tick * 0x9E3779B97F4A7C15L;
+         for (int i = 0; i < n; ++i)
+            stagers[i].kernel.rnd.setSeed(tickSeed + i);
+
+         if (n <= 1)
+            stagers[0].update(0, height - 1);
+         else
+         {
+            if (bandsAction == null || bandsAction.count != n)
+               bandsAction = new BandsAction(n);
+            bandsAction.reinitialize();
+            BAND_POOL.invoke(bandsAction);
+         }
+            // establish which chunks to process next time
+
+         chunks.settle();
+         ++tick;
+         tickLatency.record(System.nanoTime() - start);
+      }
+         /**
+          * Set the number of horizontal bands the world is split into
+          * on each update.
+          *
+          * @param bands number of bands to split world into
+          */
+
+      public void setBands(int bands)
+      {
+         this.bands = Math.max(1, bands);
+      }
+         /** @return The number of bands requested. */
+
+      public int getBands()
+      {
+         return bands;
+      }
+         /**
+          * Return the number of bands actually used to update the
+          * world, which may be less than requested for a short world.
+          *
+          * @return The number of bands used on each update.
+          */
+
+      public int getEffectiveBands()
+      {
+         return Math.max(1, Math.min(bands, height / MIN_BAND_HEIGHT));
+      }
+         /**
+          * Return the number of chunks which will be processed on the
+          * next update cycle.
+          *
+          * @return The number of awake chunks.
+          */
+
+      public int getAwakeChunkCount()
+      {
+         return chunks.getAwakeCount();
+      }
+         /**
+          * Return the total number of chunks the world is divided into.
+          *
+          * @return The number of chunks.
+          */
+
+      public int getChunkCount()
+      {
+         return chunks.getCount();
+      }
+         /** @return The histogram of the time taken by each update. */
+
+      public LatencyHistogram getTickLatency()
+      {
+         return tickLatency;
+      }
+         /** @return What the rules of each element have done so far. */
+
+      public ElementCounts getElementCounts()
+      {
+         ElementCounts counts = new ElementCounts();
+         for (Stager s: stagers)
+            counts.add(s.kernel);
+         return counts;
+      }
+         /**
+          * Create a stager for each band, up to a given number.
+          *
+          * @param count number of stagers to create
+          */
+
+      protected void createStagers(int count)
+      {
+         Stager[] stagers = Arrays.copyOf(this.stagers, count);
+         for (int i = this.stagers.length; i < count; ++i)
+            stagers[i] = new Stager();
+         this.stagers = stagers;
+      }
+         /**
+          * Stager updates the rows of a band by copying strips of them
+          * onto the heap, with the row above and below each strip, and
+          * running a kernel over the copy.
+          */
+
+      protected class Stager
+      {
+         final Kernel       kernel = new Kernel(
+            new XorShiftRandom(rnd.nextLong()));
+         final ByteBuffer[] views = createViews();
+         final byte[]       strip = new byte[(STRIP_ROWS + 2) * width];
+
+         void update(int top, int bottom)
+         {
+            for (int last = bottom; last >= top; last -= STRIP_ROWS)
+            {
+               int first = Math.max(top, last - STRIP_ROWS + 1);
+
+                  // skip strips in which every chunk is asleep
+
+               if (!chunks.isAwake(first, last))
+                  continue;
+
+                  // copy the strip and the rows around it to the heap
+
+               int above = Math.max(0, first - 1);
+               int below = Math.min(height - 1, last + 1);
+               for (int y = above; y <= below; ++y)
+                  getRow(views, 0, y, strip, (y - above) * width, width);
+
+                  // update the strip and copy it back
+
+               kernel.bind(strip, width, height, chunks, xRndIndex);
+               kernel.update(first - above, last - above, above);
+               for (int y = above; y <= below; ++y)
+                  putRow(views, 0, y, strip, (y - above) * width, width);
+            }
+         }
+      }
+         /**
+          * Update the even bands in parallel, then the odd ones.
+          */
+
+      protected class BandsAction extends RecursiveAction
+      {
+         private static final long serialVersionUID = 1L;
+
+         final int count;
+         final BandAction[] even;
+         final BandAction[] odd;
+
+         BandsAction(int count)
+         {
+            this.count = count;
+            even = createPhase(0);
+            odd = createPhase(1);
+         }
+         BandAction[] createPhase(int phase)
+         {
+            BandAction[] actions = new BandAction[(count - phase + 1) / 2];
+            for (int i = 0; i < actions.length; ++i)
+               actions[i] = new BandAction(count, phase + 2 * i);
+            return actions;
+         }
+         protected void compute()
+         {
+            invokePhase(even);
+            invokePhase(odd);
+         }
+         void invokePhase(BandAction[] actions)
+         {
+            for (BandAction action: actions)
+               action.reinitialize();
+            invokeAll(actions);
+         }
+      }
+         /**
+          * Update the rows of a single band.
+          */
+
+      protected class BandAction extends RecursiveAction
+      {
+         private static final long serialVersionUID = 1L;
+
+         final Stager stager;
+         final int    top;
+         final int    bottom;
+
+         BandAction(int count, int band)
+         {
+            stager = stagers[band];
+            top = band * height / count;
+            bottom = (band + 1) * height / count - 1;
+         }
+         protected void compute()
+         {
+            stager.update(top, bottom);
+         }
+      }
+}
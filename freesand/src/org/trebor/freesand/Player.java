@@ -0,0 +1,518 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.Recorder.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+   /**
+    * Player plays back a recording made by a {@link Recorder}.  The
+    * recording is indexed when opened, so any frame may be sought to
+    * by decoding forward from the keyframe at or before it.  Frames
+    * may be exported as a sequence of png images, from the command
+    * line with:
+    *
+    * <pre>
+    * java -Djava.awt.headless=true -cp freesand.jar org.trebor.freesand.Player
+    *    [-from N] [-to N] [-every N] recording.fsrec directory
+    * </pre>
+    */
+
+public class Player implements Closeable
+{
+         // globals
+
+
+         /** usage message */
+
+      public static final String USAGE =
+         "usage: Player [-from N] [-to N] [-every N] recording." +
+         FILE_EXTENSION + " directory";
+
+         /** size of recorded world */
+
+      protected final int         width, height;
+
+         /** file being played */
+
+      protected final FileChannel channel;
+
+         /** file offset of each frame */
+
+      protected long[]            offsets = new long[64];
+
+         /** tick of each frame */
+
+      protected long[]            ticks = new long[64];
+
+         /** number of frames */
+
+      protected int               frames;
+
+         /** cells of the current frame */
+
+      protected final byte[]      cells;
+
+         /** index of the current frame, -1 before the first */
+
+      protected int               current = -1;
+
+         /** decoded frame */
+
+      protected byte[]            raw;
+
+         /** compressed frame */
+
+      protected byte[]            packed = new byte[0];
+
+         /** inflater frames are decompressed with */
+
+      protected final Inflater    inflater = new Inflater();
+
+         /**
+          * Open a recording and index its frames.
+          *
+          * @param file recording to play
+          * @throws IOException if the file can not be read or is not a
+          *  recording
+          */
+
+      public Player(File file) throws IOException
+      {
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         try
+         {
+            ByteBuffer header = read(0, 16);
+            if (header.getInt() != MAGIC)
+               throw new IOException(file + " is not a recording");
+            int version = header.getInt();
+            if (version != VERSION)
+               throw new IOException(
+                  file + " is recording version " + version +
+                  ", only version " + VERSION + " can be played");
+            width = header.getInt();
+            height = header.getInt();
+            if (width < 1 || height < 1 ||
+                (long)width * height > Integer.MAX_VALUE)
+               throw new IOException(file + " has a bad header");
+            cells = new byte[width * height];
+            raw = new byte[cells.length];
+
+               // index the frames, a frame cut short by a crash is
+               // left out
+
+            long offset = 16;
+            long size = channel.size();
+            while (offset + FRAME_HEADER <= size)
+            {
+               ByteBuffer frame = read(offset, FRAME_HEADER);
+               long tick = frame.getLong();
+               byte type = frame.get();
+               frame.getInt();
+               long next = offset + FRAME_HEADER + frame.getInt();
+               if (next > size)
+                  break;
+               if (frames == 0 && type != KEYFRAME)
+                  throw new IOException(file + " does not start with a keyframe");
+               if (frames == offsets.length)
+               {
+                  offsets = Arrays.copyOf(offsets, frames * 2);
+                  ticks = Arrays.copyOf(ticks, frames * 2);
+               }
+               offsets[frames] = offset;
+               ticks[frames++] = tick;
+               offset = next;
+            }
+         }
+         catch (IOException e)
+         {
+            channel.close();
+            throw e;
+         }
+      }
+         /**
+          * Read bytes from the file.
+          *
+          * @param offset file offset to read from
+          * @param length number of bytes to read
+          * @return A buffer holding the bytes.
+          * @throws IOException if the file ends first
+          */
+
+      protected ByteBuffer read(long offset, int length) throws IOException
+      {
+         ByteBuffer buffer = ByteBuffer.allocate(length);
+         readFully(offset, buffer);
+         buffer.flip();
+         return buffer;
+      }
+         /**
+          * Fill a buffer from the file.
+          *
+          * @param offset file offset to read from
+          * @param buffer buffer to fill
+          * @throws IOException if the file ends first
+          */
+
+      protected void readFully(long offset, ByteBuffer buffer)
+         throws IOException
+      {
+         while (buffer.hasRemaining())
+         {
+            int n = channel.read(buffer, offset);
+            if (n < 0)
+               throw new EOFException("recording ends early");
+            offset += n;
+         }
+      }
+         /** @return The width of the recorded world. */
+
+      public int getWidth()
+      {
+         return width;
+      }
+         /** @return The height of the recorded world. */
+
+      public int getHeight()
+      {
+         return height;
+      }
+         /** @return The number of frames in the recording. */
+
+      public int getFrameCount()
+      {
+         return frames;
+      }
+         /**
+          * Return the tick at which a frame was recorded.
+          *
+          * @param frame index of frame
+          * @return The tick of the frame.
+          */
+
+      public long getTick(int frame)
+      {
+         return ticks[frame];
+      }
+         /**
+          * Return the index of the last frame recorded at or before a
+          * tick.
+          *
+          * @param tick tick to find
+          * @return The index of the frame, or -1 if every frame is
+          *  after the tick.
+          */
+
+      public int findFrame(long tick)
+      {
+         int index = Arrays.binarySearch(ticks, 0, frames, tick);
+         return index >= 0 ? index : -index - 2;
+      }
+         /** @return The index of the current frame, -1 before the first. */
+
+      public int getFrame()
+      {
+         return current;
+      }
+         /**
+          * Seek to a frame, decoding forward from the nearest keyframe
+          * or from the current frame, whichever is closer.
+          *
+          * @param frame index of frame to seek to
+          * @throws IOException if the recording can not be read
+          */
+
+      public void seek(int frame) throws IOException
+      {
+         if (frame < 0 || frame >= frames)
+            throw new IndexOutOfBoundsException("no frame " + frame);
+
+            // find the keyframe at or before the frame
+
+         int start = frame;
+         while (type(start) != KEYFRAME)
+            --start;
+         if (current < start || current > frame)
+            current = start - 1;
+         while (current < frame)
+            decode(++current);
+      }
+         /**
+          * Advance to the next frame.
+          *
+          * @return False if there is no next frame.
+          * @throws IOException if the recording can not be read
+          */
+
+      public boolean next() throws IOException
+      {
+         if (current + 1 >= frames)
+            return false;
+         decode(++current);
+         return true;
+      }
+         /**
+          * Return the type of a frame.
+          *
+          * @param frame index of frame
+          * @return {@link Recorder#KEYFRAME} or {@link Recorder#DELTA}.
+          * @throws IOException if the recording can not be read
+          */
+
+      protected byte type(int frame) throws IOException
+      {
+         return read(offsets[frame] + 8, 1).get();
+      }
+         /**
+          * Decode a frame into the cells.  A delta is applied to the
+          * cells of the frame before it.
+          *
+          * @param frame index of frame to decode
+          * @throws IOException if the recording can not be read
+          */
+
+      protected void decode(int frame) throws IOException
+      {
+         ByteBuffer header = read(offsets[frame], FRAME_HEADER);
+         header.getLong();
+         byte type = header.get();
+         int length = header.getInt();
+         int size = header.getInt();
+         if (length < 0 || length > raw.length || size < 0)
+            throw new IOException("bad frame " + frame);
+         if (packed.length < size)
+            packed = new byte[size];
+         readFully(offsets[frame] + FRAME_HEADER, ByteBuffer.wrap(packed, 0, size));
+
+            // decompress
+
+         inflater.reset();
+         inflater.setInput(packed, 0, size);
+         try
+         {
+            int n = 0;
+            while (n < length && !inflater.finished())
+            {
+               int got = inflater.inflate(raw, n, length - n);
+               if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                  break;
+               n += got;
+            }
+            if (n != length)
+               throw new IOException("frame " + frame + " is short");
+         }
+         catch (DataFormatException e)
+         {
+            throw new IOException("frame " + frame + " is corrupt");
+         }
+            // a keyframe is the cells, a delta the changed runs
+
+         if (type == KEYFRAME)
+         {
+            if (length != cells.length)
+               throw new IOException("keyframe " + frame + " is the wrong size");
+            System.arraycopy(raw, 0, cells, 0, length);
+            return;
+         }
+         int i = 0;
+         int n = 0;
+         while (n < length)
+         {
+            int skip = 0;
+            for (int shift = 0; ; shift += 7)
+            {
+               byte b = raw[n++];
+               skip |= (b & 0x7f) << shift;
+               if (b >= 0)
+                  break;
+            }
+            int count = 0;
+            for (int shift = 0; ; shift += 7)
+            {
+               byte b = raw[n++];
+               count |= (b & 0x7f) << shift;
+               if (b >= 0)
+                  break;
+            }
+            i += skip;
+            if (i + count > cells.length || n + count > length)
+               throw new IOException("delta " + frame + " is corrupt");
+            System.arraycopy(raw, n, cells, i, count);
+            i += count;
+            n += count;
+         }
+      }
+         /**
+          * Return the cells of the current frame.  The array is
+          * reused for every frame.
+          *
+          * @return The element id of each cell.
+          */
+
+      public byte[] getCells()
+      {
+         return cells;
+      }
+         /**
+          * Paint the current frame into an image, one pixel per cell.
+          *
+          * @param image image to paint into, or null or an image of
+          *  another size to create a new one
+          * @return The image painted into.
+          */
+
+      public BufferedImage getImage(BufferedImage image)
+      {
+         if (image == null || image.getWidth() != width ||
+             image.getHeight() != height ||
+             image.getType() != BufferedImage.TYPE_INT_ARGB)
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+         int[] pixels = ((DataBufferInt)image.getRaster()
+                         .getDataBuffer()).getData();
+         for (int i = 0; i < pixels.length; ++i)
+            pixels[i] = World.PALETTE[cells[i]];
+         return image;
+      }
+         /**
+          * Export a range of frames to a directory as png images named
+          * by tick.
+          *
+          * @param directory directory to write images to
+          * @param from index of first frame
+          * @param to index of last frame
+          * @param every export every this many frames
+          * @return The number of images written.
+          * @throws IOException if a frame can not be read or written
+          */
+
+      public int export(File directory, int from, int to, int every)
+         throws IOException
+      {
+         if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("unable to create " + directory);
+         BufferedImage image = null;
+         int count = 0;
+         for (int frame = Math.max(0, from);
+              frame <= Math.min(to, frames - 1);
+              frame += Math.max(1, every))
+         {
+            seek(frame);
+            image = getImage(image);
+            File file = new File(directory,
+                                 String.format("frame-%010d.png", ticks[frame]));
+            if (!ImageIO.write(image, "png", file))
+               throw new IOException("unable to write image " + file);
+            ++count;
+         }
+         return count;
+      }
+         /**
+          * Close the recording.
+          *
+          * @throws IOException if the file can not be closed
+          */
+
+      public void close() throws IOException
+      {
+         inflater.end();
+         channel.close();
+      }
+         /**
+          * Export frames of a recording to png images from the command
+          * line.
+          *
+          * @param args command line arguments, see {@link #USAGE}
+          */
+
+      public static void main(String[] args)
+      {
+         System.setProperty("java.awt.headless", "true");
+
+         int  from  = 0;
+         int  to    = Integer.MAX_VALUE;
+         int  every = 1;
+         File input = null;
+         File output = null;
+
+         try
+         {
+            for (int i = 0; i < args.length; ++i)
+            {
+               String arg = args[i];
+               if (arg.equals("-from"))
+                  from = Integer.parseInt(args[++i]);
+               else if (arg.equals("-to"))
+                  to = Integer.parseInt(args[++i]);
+               else if (arg.equals("-every"))
+                  every = Integer.parseInt(args[++i]);
+               else if (arg.startsWith("-"))
+                  throw new IllegalArgumentException("unknown option " + arg);
+               else if (input == null)
+                  input = new File(arg);
+               else if (output == null)
+                  output = new File(arg);
+               else
+                  throw new IllegalArgumentException("too many files");
+            }
+            if (input == null || output == null)
+               throw new IllegalArgumentException("missing file");
+         }
+         catch (RuntimeException e)
+         {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+         }
+         try
+         {
+            Player player = new Player(input);
+            long start = System.nanoTime();
+            int count = player.export(output, from, to, every);
+            player.close();
+            System.out.printf("exported   %d of %d frames in %.3f s%n",
+                              count, player.getFrameCount(),
+                              (System.nanoTime() - start) / 1e9);
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+      }
+}
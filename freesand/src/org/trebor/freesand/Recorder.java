@@ -0,0 +1,468 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+   /**
+    * Recorder writes the run of a {@link World} to a file as a stream
+    * of frames, for a {@link Player} to play back.  Most frames are
+    * deltas, holding only the cells which changed since the frame
+    * before, and every so often a keyframe holds every cell so that a
+    * player can seek without decoding from the start.  Each frame is
+    * compressed.
+    *
+    * <p>The world hands its cells to the recorder at the end of each
+    * update, which costs only a copy into a spare buffer.  Frames are
+    * encoded and written on a thread of the recorder's own.  If that
+    * thread falls behind and no buffer is spare, the frame is dropped
+    * rather than holding up the world; the next delta is then taken
+    * from the last frame written.</p>
+    *
+    * <pre>
+    *   int    magic, "FSRC"
+    *   int    version
+    *   int    width, height
+    *   frames, each:
+    *     long   tick
+    *     byte   {@link #KEYFRAME} or {@link #DELTA}
+    *     int    length of frame before compression
+    *     int    length of frame after compression
+    *     bytes  frame, deflated
+    * </pre>
+    *
+    * A keyframe is the element id of each cell.  A delta is a list of
+    * runs of changed cells, each the number of unchanged cells
+    * skipped as a varint, the number of changed cells as a varint,
+    * then their element ids.
+    *
+    * @see World#setRecorder(Recorder)
+    */
+
+public class Recorder implements Closeable
+{
+         // globals
+
+
+         /** extension of recording files */
+
+      public static final String FILE_EXTENSION = "fsrec";
+
+         /** first int of a recording file */
+
+      public static final int    MAGIC = 0x46535243;
+
+         /** version of the recording file format */
+
+      public static final int    VERSION = 1;
+
+         /** frame type of a keyframe */
+
+      public static final byte   KEYFRAME = 0;
+
+         /** frame type of a delta */
+
+      public static final byte   DELTA = 1;
+
+         /** bytes in the header of a frame */
+
+      public static final int    FRAME_HEADER = 17;
+
+         /** default number of frames from one keyframe to the next */
+
+      public static final int    DEFAULT_KEYFRAME_INTERVAL = 100;
+
+         /** fewest unchanged cells which end a run of changed cells in
+          * a delta, shorter gaps cost less as part of the run */
+
+      protected static final int MIN_GAP = 4;
+
+         /** number of frame buffers, one of which is held as the last
+          * frame written */
+
+      protected static final int BUFFERS = 4;
+
+         /** size of world being recorded */
+
+      protected final int        width, height;
+
+         /** record a frame every this many ticks */
+
+      protected final int        every;
+
+         /** number of frames from one keyframe to the next */
+
+      protected final int        keyframeInterval;
+
+         /** file frames are written to */
+
+      protected final FileChannel channel;
+
+         /** buffers free to capture frames into */
+
+      protected final BlockingQueue<Frame> free =
+         new ArrayBlockingQueue<Frame>(BUFFERS);
+
+         /** captured frames waiting to be written */
+
+      protected final BlockingQueue<Frame> full =
+         new ArrayBlockingQueue<Frame>(BUFFERS + 1);
+
+         /** frame put on the full queue to stop the writer */
+
+      protected final Frame      end = new Frame(0);
+
+         /** thread which encodes and writes frames */
+
+      protected final Thread     writer;
+
+         /** number of frames captured */
+
+      protected volatile long    captured;
+
+         /** number of frames dropped because the writer fell behind */
+
+      protected volatile long    dropped;
+
+         /** number of frames written */
+
+      protected volatile long    written;
+
+         /** number of bytes written */
+
+      protected volatile long    bytes;
+
+         /** first error met by the writer, reported on close */
+
+      protected volatile IOException failure;
+
+         /**
+          * Start recording a world of a given size to a file.
+          *
+          * @param file file to record to
+          * @param width width of world to record
+          * @param height height of world to record
+          * @param every record a frame every this many ticks
+          * @param keyframeInterval number of frames from one keyframe
+          *  to the next
+          * @throws IOException if the file can not be written
+          */
+
+      public Recorder(File file, int width, int height,
+                      int every, int keyframeInterval)
+         throws IOException
+      {
+         this.width = width;
+         this.height = height;
+         this.every = Math.max(1, every);
+         this.keyframeInterval = Math.max(1, keyframeInterval);
+         for (int i = 0; i < BUFFERS; ++i)
+            free.add(new Frame(width * height));
+
+         channel = FileChannel.open(
+            file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         ByteBuffer header = ByteBuffer.allocate(16);
+         header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+         header.flip();
+         write(header);
+
+         writer = new Thread("recorder " + file.getName())
+            {
+               public void run()
+               {
+                  writeFrames();
+               }
+            };
+         writer.setDaemon(true);
+         writer.start();
+      }
+         /**
+          * Capture the cells of a world as a frame, if the tick is one
+          * to be recorded.  This is called by the world at the end of
+          * each update, and allocates nothing.
+          *
+          * @param world world to capture
+          * @param tick tick the world has reached
+          */
+
+      public void capture(World world, long tick)
+      {
+         if (tick % every != 0 || failure != null)
+            return;
+         Frame frame = free.poll();
+         if (frame == null)
+         {
+            ++dropped;
+            return;
+         }
+         System.arraycopy(world.cells, 0, frame.cells, 0, frame.cells.length);
+         frame.tick = tick;
+         ++captured;
+         full.add(frame);
+      }
+         /**
+          * Encode and write frames until the recorder is closed.  This
+          * runs on the writer thread.
+          */
+
+      protected void writeFrames()
+      {
+         Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+         int cellCount = width * height;
+         byte[] raw = new byte[cellCount];
+         byte[] packed = new byte[cellCount + cellCount / 100 + 64];
+         ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+         Frame last = null;
+
+         try
+         {
+            while (true)
+            {
+               Frame frame = full.take();
+               if (frame == end)
+                  break;
+               if (failure != null)
+               {
+                  free.add(frame);
+                  continue;
+               }
+                  // a delta if due and smaller than the frame itself
+
+               byte type = KEYFRAME;
+               int length = -1;
+               if (last != null && written % keyframeInterval != 0)
+                  length = delta(last.cells, frame.cells, raw);
+               if (length >= 0)
+                  type = DELTA;
+               else
+               {
+                  System.arraycopy(frame.cells, 0, raw, 0, cellCount);
+                  length = cellCount;
+               }
+                  // compress, the changed cells of a delta are too
+                  // scattered for matching to pay, so only its
+                  // symbols are coded
+
+               deflater.reset();
+               deflater.setStrategy(type == DELTA
+                                    ? Deflater.HUFFMAN_ONLY
+                                    : Deflater.DEFAULT_STRATEGY);
+               deflater.setInput(raw, 0, length);
+               deflater.finish();
+               int size = 0;
+               while (!deflater.finished())
+               {
+                  if (size == packed.length)
+                  {
+                     byte[] bigger = new byte[packed.length * 2];
+                     System.arraycopy(packed, 0, bigger, 0, size);
+                     packed = bigger;
+                  }
+                  size += deflater.deflate(packed, size, packed.length - size);
+               }
+                  // write
+
+               try
+               {
+                  header.clear();
+                  header.putLong(frame.tick).put(type)
+                     .putInt(length).putInt(size);
+                  header.flip();
+                  write(header);
+                  write(ByteBuffer.wrap(packed, 0, size));
+                  bytes += FRAME_HEADER + size;
+                  ++written;
+               }
+               catch (IOException e)
+               {
+                  failure = e;
+               }
+                  // keep this frame to take the next delta from
+
+               if (last != null)
+                  free.add(last);
+               last = frame;
+            }
+         }
+         catch (InterruptedException e)
+         {
+            failure = new IOException("recorder interrupted");
+         }
+         finally
+         {
+            deflater.end();
+         }
+      }
+         /**
+          * Encode the runs of cells which differ between two frames.
+          *
+          * @param from cells of the frame before
+          * @param to cells of this frame
+          * @param out array to encode the runs into
+          * @return The number of bytes encoded, or -1 if the delta
+          *  would be no smaller than a keyframe.
+          */
+
+      protected static int delta(byte[] from, byte[] to, byte[] out)
+      {
+         int n = 0;
+         int limit = out.length - 10;
+         int i = 0;
+         int skipFrom = 0;
+
+         while (true)
+         {
+               // skip unchanged cells
+
+            while (i < to.length && from[i] == to[i])
+               ++i;
+            if (i == to.length)
+               return n;
+
+               // take changed cells, along with any gaps too short to
+               // be worth a run of their own
+
+            int start = i;
+            int last = i;
+            while (i < to.length && i - last < MIN_GAP)
+               if (from[i++] != to[i - 1])
+                  last = i;
+            i = last;
+            int count = i - start;
+            if (n + count >= limit)
+               return -1;
+            n = putVarint(out, n, start - skipFrom);
+            n = putVarint(out, n, count);
+            System.arraycopy(to, start, out, n, count);
+            n += count;
+            skipFrom = i;
+         }
+      }
+         /**
+          * Put a non negative int as a varint, seven bits to a byte,
+          * least significant first.
+          *
+          * @param out array to put varint into
+          * @param n index to put varint at
+          * @param value value to put
+          * @return The index after the varint.
+          */
+
+      protected static int putVarint(byte[] out, int n, int value)
+      {
+         while (value >= 0x80)
+         {
+            out[n++] = (byte)(value | 0x80);
+            value >>>= 7;
+         }
+         out[n++] = (byte)value;
+         return n;
+      }
+         /**
+          * Write all of a buffer to the file.
+          *
+          * @param buffer buffer to write
+          * @throws IOException if the file can not be written
+          */
+
+      protected void write(ByteBuffer buffer) throws IOException
+      {
+         while (buffer.hasRemaining())
+            channel.write(buffer);
+      }
+         /**
+          * Stop recording, waiting for the frames captured so far to be
+          * written.
+          *
+          * @throws IOException if a frame could not be written
+          */
+
+      public void close() throws IOException
+      {
+         try
+         {
+            full.put(end);
+            writer.join();
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("interrupted closing recorder");
+         }
+         finally
+         {
+            channel.close();
+         }
+         if (failure != null)
+            throw failure;
+      }
+         /** @return The number of frames captured. */
+
+      public long getCaptured()
+      {
+         return captured;
+      }
+         /** @return The number of frames dropped because the writer
+          * fell behind. */
+
+      public long getDropped()
+      {
+         return dropped;
+      }
+         /** @return The number of frames written. */
+
+      public long getWritten()
+      {
+         return written;
+      }
+         /** @return The number of bytes written. */
+
+      public long getBytes()
+      {
+         return bytes;
+      }
+         /**
+          * The cells of a world at a given tick.
+          */
+
+      protected static class Frame
+      {
+         final byte[] cells;
+         long         tick;
+
+         Frame(int size)
+         {
+            cells = new byte[size];
+         }
+      }
+}
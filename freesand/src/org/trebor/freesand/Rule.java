@@ -0,0 +1,443 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.*;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * Rule provides the behavior of an element: how it moves, reacts
+    * with its neighbors and spawns new elements.  The {@link Kernel}
+    * applies the rule of each element to every cell holding that
+    * element.  Sets of elements a rule responds to are held as tables
+    * indexed by element id, rather than chains of comparisons.
+    */
+
+public abstract class Rule
+{
+         /**
+          * Apply this rule to the current cell of a kernel.
+          *
+          * @param k kernel holding the cell and its neighborhood
+          * @param p element in the cell
+          */
+
+      public abstract void apply(Kernel k, byte p);
+
+         /**
+          * Create the table of rules for all elements, indexed by
+          * element id, with the usual chances of things happening.
+          * Inert elements (air, rock, earth and columbine) have no
+          * rule.
+          *
+          * @return The table of rules.
+          */
+
+      static Rule[] createRules()
+      {
+         return createRules(FIRE_CHANCE_IN, WATER_CHANCE_IN,
+                            PLANT_CHANCE_IN, SAND_CHANCE_IN);
+      }
+         /**
+          * Create the table of rules for all elements, indexed by
+          * element id, with given chances of things happening.
+          *
+          * @param fireChanceIn chance in X that fire will spread
+          * @param waterChanceIn chance in X that a water source spouts
+          * @param plantChanceIn chance in X that plant will grow
+          * @param sandChanceIn chance in X that a sand source spouts
+          * @return The table of rules.
+          * @see World#FIRE_CHANCE_IN
+          */
+
+      static Rule[] createRules(int fireChanceIn, int waterChanceIn,
+                                int plantChanceIn, int sandChanceIn)
+      {
+         Rule[] rules = new Rule[Element.values().length];
+
+            // movement
+
+         Rule powder = new Powder(set(AIR, WATER));
+         rules[SAND]   = powder;
+         rules[GOLD]   = powder;
+         rules[SILVER] = powder;
+         rules[COPPER] = powder;
+         rules[WATER]  = new Liquid(set(AIR, OIL));
+         rules[OIL]    = new Liquid(set(AIR));
+
+            // reactions
+
+         rules[FIRE1]  = new Fire(FIRE3, fireChanceIn);
+         rules[FIRE2]  = new Fire(FIRE3, fireChanceIn);
+         rules[FIRE3]  = new Fire(FIRE4, fireChanceIn);
+         rules[FIRE4]  = new Fire(FIRE5, fireChanceIn);
+         rules[FIRE5]  = new Fire(FIRE6, fireChanceIn);
+         rules[FIRE6]  = new Fire(AIR,   fireChanceIn);
+         rules[STEAM]  = new Decay(AIR);
+
+            // spawning
+
+         rules[AIR_SOURCE]   = new Source(AIR,   1,               all());
+         rules[WATER_SOURCE] = new Source(WATER, waterChanceIn,   set(AIR));
+         rules[SAND_SOURCE]  = new Source(SAND,  sandChanceIn,    set(AIR));
+         rules[OIL_SOURCE]   = new Source(OIL,   1,               set(AIR));
+         rules[FIRE_SOURCE]  = new Source(FIRE1, 1,               set(PLANT, OIL));
+         rules[PLANT]        = new Plant(plantChanceIn);
+
+         return rules;
+      }
+         /**
+          * Create a table of elements, indexed by element id, which is
+          * true for the provided elements.
+          *
+          * @param ids ids of elements in the set
+          * @return The table of elements.
+          */
+
+      static boolean[] set(byte... ids)
+      {
+         boolean[] set = new boolean[Element.values().length];
+         for (byte id: ids)
+            set[id] = true;
+         return set;
+      }
+         /**
+          * Create a table of elements, indexed by element id, which is
+          * true for every element.
+          *
+          * @return The table of all elements.
+          */
+
+      static boolean[] all()
+      {
+         boolean[] set = new boolean[Element.values().length];
+         java.util.Arrays.fill(set, true);
+         return set;
+      }
+         /**
+          * Powder falls straight down or slides diagonally down through
+          * the elements it sinks into.  Sand and metals are powders.
+          */
+
+      public static class Powder extends Rule
+      {
+            /** elements this powder sinks into */
+
+         final boolean[] sinksInto;
+
+         public Powder(boolean[] sinksInto)
+         {
+            this.sinksInto = sinksInto;
+         }
+         public void apply(Kernel k, byte p)
+         {
+            boolean dl;
+            boolean dr;
+
+               // if something to sink into underneath, go down
+
+            if (sinksInto[k.down()])
+               k.swap(k.idc);
+
+               // if so on both sides below, pick one
+
+            else if ((dl = sinksInto[k.downLeft()]) &
+                     (dr = sinksInto[k.downRight()]))
+               k.swap(k.coin() ? k.idl : k.idr);
+
+               // if only down left, go left
+
+            else if (dl)
+               k.swap(k.idl);
+
+               // if only down right, go right
+
+            else if (dr)
+               k.swap(k.idr);
+         }
+      }
+         /**
+          * Liquid erodes sand and earth above it, falls through the
+          * elements it sinks into, and flows sideways over air, sand
+          * and earth, spreading up to two cells on either side.
+          */
+
+      public static class Liquid extends Rule
+      {
+            /** elements this liquid erodes upward through */
+
+         static final boolean[] ERODES = set(EARTH, SAND);
+
+            /** elements this liquid flows sideways into */
+
+         static final boolean[] FLOWS_INTO = set(AIR, EARTH, SAND);
+
+            /** elements this liquid sinks into */
+
+         final boolean[] sinksInto;
+
+         public Liquid(boolean[] sinksInto)
+         {
+            this.sinksInto = sinksInto;
+         }
+         public void apply(Kernel k, byte p)
+         {
+            boolean a;
+            boolean b;
+
+               // if there is sand/earth above, erode that
+
+            if (ERODES[k.up()])
+               k.swap(k.iuc);
+
+               // if up left and up right sand/earth, pick one
+
+            else if (ERODES[k.upLeft()] && ERODES[k.upRight()])
+               k.swap(k.coin() ? k.iul : k.iur);
+
+               // if something to sink into underneath, go down
+
+            else if (sinksInto[k.down()])
+               k.swap(k.idc);
+
+               // if so on both sides below, pick one
+
+            else if ((a = sinksInto[k.downLeft()]) &
+                     (b = sinksInto[k.downRight()]))
+               k.swap(k.coin() ? k.idl : k.idr);
+
+               // if only down left, go left
+
+            else if (a)
+               k.swap(k.idl);
+
+               // if only down right, go right
+
+            else if (b)
+               k.swap(k.idr);
+
+               // if room to flow on both sides, pick one
+
+            else if ((a = FLOWS_INTO[k.left()]) &
+                     (b = FLOWS_INTO[k.right()]))
+               k.swap(k.coin() ? k.il : k.ir);
+
+               // if room only left, go left
+
+            else if (a)
+               k.swap(k.il);
+
+               // if room only right, go right
+
+            else if (b)
+               k.swap(k.ir);
+
+               // the case where liquid flows out two cells
+
+            else
+            {
+               a = k.leftLeft()   == AIR;
+               b = k.rightRight() == AIR;
+
+                  // if air on both sides, pick one
+
+               if (a && b)
+                  k.swap(k.coin() ? k.ip + 2 : k.ip - 2);
+
+                  // if air only right right, go right right
+
+               else if (b)
+                  k.swap(k.ip + 2);
+
+                  // if air only left left, go left left
+
+               else if (a)
+                  k.swap(k.ip - 2);
+            }
+         }
+      }
+         /**
+          * Fire sets flammable neighbors alight and boils water into
+          * steam, which puts it out.  Otherwise it burns down to the
+          * next stage of fire.
+          */
+
+      public static class Fire extends Rule
+      {
+            /** elements which catch fire */
+
+         static final boolean[] FLAMMABLE = set(PLANT, OIL, COLUMBINE);
+
+            /** stage this fire burns down to */
+
+         final byte next;
+
+            /** chance in X of setting fire to a given cell */
+
+         final int chanceIn;
+
+         public Fire(byte next, int chanceIn)
+         {
+            this.next = next;
+            this.chanceIn = chanceIn;
+         }
+         public void apply(Kernel k, byte p)
+         {
+            byte[] cells = k.cells;
+
+            for (int ib: k.adjacent())
+            {
+               byte b = cells[ib];
+
+                  // fire burns plants and oil
+
+               if (FLAMMABLE[b] && k.chance(chanceIn))
+                  k.set(ib, FIRE1);
+
+                  // makes steam out of water, and goes out
+
+               else if (b == WATER)
+               {
+                  k.set(ib, STEAM);
+                  if (!k.atTop)
+                     k.set(k.iuc, STEAM);
+                  k.set(k.ip, AIR);
+                  return;
+               }
+            }
+               // move fire along
+
+            k.set(k.ip, next);
+         }
+      }
+         /**
+          * Decay turns an element into another on the next cycle, as
+          * steam evaporates into air.
+          */
+
+      public static class Decay extends Rule
+      {
+            /** element this decays into */
+
+         final byte into;
+
+         public Decay(byte into)
+         {
+            this.into = into;
+         }
+         public void apply(Kernel k, byte p)
+         {
+            k.set(k.ip, into);
+         }
+      }
+         /**
+          * Source spouts an element into adjacent cells, replacing
+          * those elements it consumes.
+          */
+
+      public static class Source extends Rule
+      {
+            /** element this source spouts */
+
+         final byte output;
+
+            /** chance in X of spouting into a given cell */
+
+         final int chanceIn;
+
+            /** elements which are replaced by output */
+
+         final boolean[] consumes;
+
+         public Source(byte output, int chanceIn, boolean[] consumes)
+         {
+            this.output = output;
+            this.chanceIn = chanceIn;
+            this.consumes = consumes;
+         }
+         public void apply(Kernel k, byte p)
+         {
+            byte[] cells = k.cells;
+
+            for (int it: k.adjacent())
+            {
+               byte t = cells[it];
+               if (consumes[t] && t != output)
+               {
+                     // stay awake while this source might spout
+
+                  k.stir();
+                  if (chanceIn <= 1 || k.chance(chanceIn))
+                     k.set(it, output);
+               }
+            }
+         }
+      }
+         /**
+          * Plant grows into water next to it, if there is also air next
+          * to it.  A plant surrounded by plant below and to the sides,
+          * with water above, blooms into a columbine.
+          */
+
+      public static class Plant extends Rule
+      {
+            /** chance in X of growing into a given cell */
+
+         final int chanceIn;
+
+         public Plant(int chanceIn)
+         {
+            this.chanceIn = chanceIn;
+         }
+         public void apply(Kernel k, byte p)
+         {
+            byte[] cells = k.cells;
+
+               // bloom into a flower
+
+            if (!k.atTop && !k.atBot && !k.atLeft && !k.atRight &&
+                cells[k.idl] == PLANT && cells[k.idc] == PLANT &&
+                cells[k.idr] == PLANT && cells[k.ir] == PLANT &&
+                cells[k.il] == PLANT && cells[k.iuc] == WATER)
+               k.set(k.ip, COLUMBINE);
+
+               // grow into water, where there is air
+
+            int[] targets = k.surrounding();
+            for (int ix: targets)
+               if (cells[ix] == AIR)
+                  for (int it: targets)
+                     if (cells[it] == WATER)
+                     {
+                           // stay awake while the plant might grow
+
+                        k.stir();
+                        if (k.chance(chanceIn))
+                           k.set(it, PLANT);
+                     }
+         }
+      }
+}
@@ -0,0 +1,491 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+   /**
+    * Runner updates a world from the command line, with no window, so
+    * that simulations can be run in batches on headless machines.  A
+    * world is loaded from a png image, converting pixels to the nearest
+    * element as the game does, or from an {@link InputLog} which is
+    * then replayed with the seed and bands it was recorded with.  The world is updated for a number of ticks or a
+    * number of seconds, the result is written to a png image and the
+    * throughput is printed.
+    *
+    * <p>With -offheap the world is an {@link OffHeapWorld}, which may be
+    * made far larger than the input image with -size, the image being
+    * placed centered on its floor.  With -tiled the world is an
+    * unbounded {@link TiledWorld} evicting idle tiles to the given
+    * file, which must be new or empty, or limited to -size if given,
+    * and is always updated serially.  With -view only a region of
+    * the world is written.  With -record the run is recorded every N
+    * ticks by a {@link Recorder}, to be played back by a {@link
+    * Player}.  Input and output may be snapshots, named with the
+    * {@link Snapshot#FILE_EXTENSION} extension, in place of png
+    * images; a snapshot keeps its seed, tick and bands unless they are
+    * given.</p>
+    *
+    * <pre>
+    * java -Djava.awt.headless=true -cp freesand.jar org.trebor.freesand.Runner
+    *    [-ticks N | -seconds S] [-bands N] [-seed N]
+    *    [(-offheap | -tiled file) [-size WxH]] [-view X,Y,W,H]
+    *    [-record file [-every N] [-keyframes N]]
+    *    (input.png | input.fsworld | -replay input.fsinput)
+    *    (output.png | output.fsworld)
+    * </pre>
+    */
+
+public class Runner
+{
+         // globals
+
+
+         /** number of ticks to run if neither ticks nor seconds are
+          * given */
+
+      public static final long DEFAULT_TICKS = 1000;
+
+         /** usage message */
+
+      public static final String USAGE =
+         "usage: Runner [-ticks N | -seconds S] [-bands N] [-seed N]\n" +
+         "              [(-offheap | -tiled file) [-size WxH]]\n" +
+         "              [-view X,Y,W,H] [-record file [-every N] [-keyframes N]]\n" +
+         "              (input.png | input." + Snapshot.FILE_EXTENSION +
+         " | -replay input." + InputLog.FILE_EXTENSION + ")\n" +
+         "              (output.png | output." + Snapshot.FILE_EXTENSION + ")";
+
+         /** world being updated */
+
+      protected Simulation world;
+
+         /** input log being replayed, or null */
+
+      protected InputLog   replay;
+
+         /** ticks run by the last call to {@link #run} */
+
+      protected long       ticks;
+
+         /** nanoseconds taken by the last call to {@link #run} */
+
+      protected long       nanos;
+
+         /**
+          * Construct a runner for a world.
+          *
+          * @param world world to update
+          */
+
+      public Runner(Simulation world)
+      {
+         this.world = world;
+      }
+         /**
+          * Construct a runner which replays an input log.
+          *
+          * @param replay input log to replay
+          */
+
+      public Runner(InputLog replay)
+      {
+         this(replay.createWorld(), replay);
+      }
+         /**
+          * Construct a runner which replays an input log in a given
+          * simulation, which must be seeded and filled as the world
+          * created by {@link InputLog#createWorld()} is.
+          *
+          * @param world simulation to replay in
+          * @param replay input log to replay
+          */
+
+      public Runner(Simulation world, InputLog replay)
+      {
+         this(world);
+         this.replay = replay;
+      }
+         /**
+          * Load a world from a snapshot, or from an image file,
+          * converting each pixel to the nearest element.
+          *
+          * @param file snapshot or image file to load
+          * @return The loaded world.
+          * @throws IOException if the image can not be read
+          */
+
+      public static World readWorld(File file) throws IOException
+      {
+         if (Snapshot.isSnapshot(file))
+            return Snapshot.read(file);
+         BufferedImage image = ImageIO.read(file);
+         if (image == null)
+            throw new IOException("unable to read image " + file);
+         return new World(image);
+      }
+         /**
+          * Copy a world into an off heap world of the same seed and
+          * bands.  If the off heap world is larger the world is placed
+          * centered on its floor.
+          *
+          * @param world world to copy
+          * @param size size of the off heap world, or null for the size
+          *  of the world
+          * @return The off heap world.
+          */
+
+      public static OffHeapWorld toOffHeap(World world, Dimension size)
+      {
+         if (size == null)
+            size = new Dimension(world.getWidth(), world.getHeight());
+         OffHeapWorld offHeap = new OffHeapWorld(
+            size.width, size.height, world.getSeed());
+         offHeap.setBands(world.getBands());
+         offHeap.drawImage(world, (size.width - world.getWidth()) / 2,
+                           size.height - world.getHeight());
+         return offHeap;
+      }
+         /**
+          * Copy a world into a tiled world of the same seed.  If a size
+          * is given the tiled world is limited to it and the world is
+          * placed centered on its floor, otherwise the tiled world is
+          * unbounded.
+          *
+          * @param world world to copy
+          * @param backing backing file of the tiled world
+          * @param size size to limit the tiled world to, or null
+          * @return The tiled world.
+          * @throws IOException if the backing file can not be opened
+          */
+
+      public static TiledWorld toTiled(World world, File backing, Dimension size)
+         throws IOException
+      {
+         TiledWorld tiled = new TiledWorld(
+            backing, world.getSeed(),
+            size == null ? null : new Rectangle(size));
+         if (size == null)
+            tiled.drawImage(world, 0, 0);
+         else
+         {
+            tiled.fill(new Rectangle(size), World.Element.AIR_EL);
+            tiled.drawImage(world, (size.width - world.getWidth()) / 2,
+                            size.height - world.getHeight());
+         }
+         return tiled;
+      }
+         /**
+          * Write a region of the world to an image file, or all of an
+          * on heap world to a snapshot if the file is named as one.
+          *
+          * @param file png or snapshot file to write
+          * @param region region of the world to write, or null for all
+          *  of it
+          * @throws IOException if the image can not be written
+          */
+
+      public void writeWorld(File file, Rectangle region) throws IOException
+      {
+         if (Snapshot.isSnapshot(file))
+         {
+            if (!(world instanceof World) || region != null)
+               throw new IOException(
+                  "only a whole world which is not off heap or tiled " +
+                  "can be written to a snapshot");
+            Snapshot.write((World)world, file);
+            return;
+         }
+         if (region == null)
+            region = world instanceof TiledWorld
+               ? ((TiledWorld)world).getContentBounds()
+               : new Rectangle(0, 0, world.getWidth(), world.getHeight());
+         if (!ImageIO.write(world.getViewport(region, null), "png", file))
+            throw new IOException("unable to write image " + file);
+      }
+         /**
+          * Update the world for a number of ticks, or until a time
+          * limit passes, whichever comes first.
+          *
+          * @param maxTicks maximum number of ticks to run
+          * @param maxNanos maximum time to run in nanoseconds
+          */
+
+      public void run(long maxTicks, long maxNanos)
+      {
+         long start = System.nanoTime();
+         long end = start + maxNanos;
+         ticks = 0;
+
+         while (ticks < maxTicks && (maxNanos == Long.MAX_VALUE ||
+                                     System.nanoTime() - end < 0))
+         {
+            if (replay != null)
+               replay.replay(world);
+            world.update();
+            ++ticks;
+         }
+         nanos = System.nanoTime() - start;
+      }
+         /**
+          * Return the world being updated.
+          *
+          * @return The world being updated.
+          */
+
+      public Simulation getWorld()
+      {
+         return world;
+      }
+         /**
+          * Return the number of ticks run by the last call to {@link
+          * #run}.
+          *
+          * @return The number of ticks run.
+          */
+
+      public long getTicks()
+      {
+         return ticks;
+      }
+         /**
+          * Return the time taken by the last call to {@link #run}.
+          *
+          * @return The time taken in nanoseconds.
+          */
+
+      public long getNanos()
+      {
+         return nanos;
+      }
+         /**
+          * Return the throughput of the last call to {@link #run} in
+          * cells per second.  Every cell of the world counts on every
+          * tick, whether or not it was asleep.
+          *
+          * @return The number of cells updated per second.
+          */
+
+      public double getCellsPerSecond()
+      {
+         return nanos == 0
+            ? 0
+            : (double)world.getWidth() * world.getHeight() * ticks * 1e9 / nanos;
+      }
+         /**
+          * Print a report of the last run.
+          */
+
+      public void report()
+      {
+         System.out.printf("world      %dx%d%s, %d band(s), seed %d%n",
+                           world.getWidth(), world.getHeight(),
+                           world instanceof OffHeapWorld ? " off heap" :
+                           world instanceof TiledWorld ? " tiled" : "",
+                           world.getEffectiveBands(), world.getSeed());
+         System.out.printf("ticks      %d%n", ticks);
+         System.out.printf("time       %.3f s%n", nanos / 1e9);
+         System.out.printf("tick       %.3f ms%n",
+                           ticks == 0 ? 0 : nanos / 1e6 / ticks);
+         System.out.printf("rate       %.1f ticks/s, %.2f Mcells/s%n",
+                           ticks * 1e9 / Math.max(1, nanos),
+                           getCellsPerSecond() / 1e6);
+         System.out.println("latency    " +
+                            world.getTickLatency().snapshot());
+         Recorder recorder = world instanceof World
+            ? ((World)world).getRecorder()
+            : null;
+         if (recorder != null)
+            System.out.printf(
+               "recorded   %d frames, %d dropped, %d bytes%n",
+               recorder.getWritten(), recorder.getDropped(),
+               recorder.getBytes());
+         if (world instanceof TiledWorld)
+         {
+            TiledWorld tiled = (TiledWorld)world;
+            System.out.printf(
+               "tiles      %d, %d resident, %d paged in, %d evicted%n",
+               tiled.getTileCount(), tiled.getResidentCount(),
+               tiled.getPageIns(), tiled.getEvictions());
+         }
+         System.out.println();
+         System.out.print(world.getElementCounts());
+      }
+         /**
+          * Run the simulation from the command line.
+          *
+          * @param args command line arguments, see {@link #USAGE}
+          */
+
+      public static void main(String[] args)
+      {
+         System.setProperty("java.awt.headless", "true");
+
+         long      maxTicks = -1;
+         double    seconds  = -1;
+         Integer   bands    = null;
+         Long      seed     = null;
+         File      replay   = null;
+         File      input    = null;
+         File      output   = null;
+         boolean   offHeap  = false;
+         File      tiled    = null;
+         File      record   = null;
+         int       every    = 1;
+         int       keyframes = Recorder.DEFAULT_KEYFRAME_INTERVAL;
+         Dimension size     = null;
+         Rectangle view     = null;
+
+         try
+         {
+               // parse arguments
+
+            for (int i = 0; i < args.length; ++i)
+            {
+               String arg = args[i];
+               if (arg.equals("-ticks"))
+                  maxTicks = Long.parseLong(args[++i]);
+               else if (arg.equals("-seconds"))
+                  seconds = Double.parseDouble(args[++i]);
+               else if (arg.equals("-bands"))
+                  bands = Integer.parseInt(args[++i]);
+               else if (arg.equals("-seed"))
+                  seed = Long.valueOf(args[++i]);
+               else if (arg.equals("-offheap"))
+                  offHeap = true;
+               else if (arg.equals("-tiled"))
+                  tiled = new File(args[++i]);
+               else if (arg.equals("-size"))
+               {
+                  String[] wh = args[++i].split("x");
+                  size = new Dimension(Integer.parseInt(wh[0]),
+                                       Integer.parseInt(wh[1]));
+               }
+               else if (arg.equals("-view"))
+               {
+                  String[] r = args[++i].split(",");
+                  view = new Rectangle(
+                     Integer.parseInt(r[0]), Integer.parseInt(r[1]),
+                     Integer.parseInt(r[2]), Integer.parseInt(r[3]));
+               }
+               else if (arg.equals("-record"))
+                  record = new File(args[++i]);
+               else if (arg.equals("-every"))
+                  every = Integer.parseInt(args[++i]);
+               else if (arg.equals("-keyframes"))
+                  keyframes = Integer.parseInt(args[++i]);
+               else if (arg.equals("-replay"))
+                  replay = new File(args[++i]);
+               else if (arg.startsWith("-"))
+                  throw new IllegalArgumentException("unknown option " + arg);
+               else if (input == null && replay == null)
+                  input = new File(arg);
+               else if (output == null)
+                  output = new File(arg);
+               else
+                  throw new IllegalArgumentException("too many files");
+            }
+            if ((input == null && replay == null) || output == null)
+               throw new IllegalArgumentException("missing file");
+            if (offHeap && tiled != null)
+               throw new IllegalArgumentException(
+                  "-offheap and -tiled can not be used together");
+            if (size != null && ((!offHeap && tiled == null) || replay != null))
+               throw new IllegalArgumentException(
+                  "-size needs -offheap or -tiled and an input image");
+            if (record != null && (offHeap || tiled != null))
+               throw new IllegalArgumentException(
+                  "-record can not be used with -offheap or -tiled");
+            if (replay != null && (bands != null || seed != null))
+               throw new IllegalArgumentException(
+                  "-bands and -seed can not be used with -replay, " +
+                  "which uses those of the log");
+            if (bands != null && tiled != null)
+               throw new IllegalArgumentException(
+                  "-bands can not be used with -tiled, which is serial");
+         }
+         catch (RuntimeException e)
+         {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+         }
+            // with no limit run the default number of ticks
+
+         if (maxTicks < 0 && seconds < 0)
+            maxTicks = DEFAULT_TICKS;
+
+         try
+         {
+               // establish the world
+
+            InputLog log = null;
+            World world;
+            if (replay != null)
+            {
+               log = InputLog.read(replay);
+               world = log.createWorld();
+            }
+            else
+            {
+               world = readWorld(input);
+               if (bands != null)
+                  world.setBands(bands);
+               if (seed != null)
+                  world.reseed(seed);
+            }
+            Runner runner = new Runner(
+               offHeap ? toOffHeap(world, size) :
+               tiled != null ? toTiled(world, tiled, size) :
+               world, log);
+               // run and report
+
+            Recorder recorder = null;
+            if (record != null)
+            {
+               recorder = new Recorder(record, world.getWidth(),
+                                       world.getHeight(), every, keyframes);
+               world.setRecorder(recorder);
+            }
+            runner.run(maxTicks < 0 ? Long.MAX_VALUE : maxTicks,
+                       seconds < 0 ? Long.MAX_VALUE : (long)(seconds * 1e9));
+            if (recorder != null)
+               recorder.close();
+            runner.writeWorld(output, view);
+            runner.report();
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+      }
+}
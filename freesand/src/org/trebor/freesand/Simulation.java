@@ -0,0 +1,127 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * Simulation is what any store of cells which the element rules run
+    * on provides, whether the cells are in an on heap {@link World} or
+    * somewhere else, so that tools such as the {@link Runner} and
+    * {@link InputLog} work with any of them.
+    */
+
+public interface Simulation
+{
+         /** @return The width of the simulation in cells. */
+
+      int getWidth();
+
+         /** @return The height of the simulation in cells. */
+
+      int getHeight();
+
+         /**
+          * Seed the simulation and reset the tick count to zero.
+          *
+          * @param seed seed from which all randomness is derived
+          * @see World#reseed(long)
+          */
+
+      void reseed(long seed);
+
+         /** @return The seed from which all randomness is derived. */
+
+      long getSeed();
+
+         /** @return The number of update cycles since seeding. */
+
+      long getTick();
+
+         /**
+          * Set the number of horizontal bands updated in parallel.
+          *
+          * @param bands number of bands, 1 updates serially
+          */
+
+      void setBands(int bands);
+
+         /** @return The number of bands used on each update. */
+
+      int getEffectiveBands();
+
+         /**
+          * Update the simulation by one tick.
+          */
+
+      void update();
+
+         /**
+          * Fill a shape with an element.
+          *
+          * @param shape shape to fill, in cell coordinates
+          * @param el element to fill shape with
+          */
+
+      void fill(Shape shape, Element el);
+
+         /**
+          * Draw an image into the simulation, converting each pixel to
+          * the element of the matching or nearest color.
+          *
+          * @param image image to draw
+          * @param x left edge of image in cells
+          * @param y top edge of image in cells
+          */
+
+      void drawImage(Image image, int x, int y);
+
+         /**
+          * Paint a region of cells into an image, one pixel per cell.
+          * Only the region is painted, so a small view of a very large
+          * simulation is cheap.
+          *
+          * @param region region of cells to paint, clipped to the
+          *  simulation
+          * @param image image to paint into, or null or an image of
+          *  another size to create a new one
+          * @return The image painted into.
+          */
+
+      BufferedImage getViewport(Rectangle region, BufferedImage image);
+
+         /** @return The histogram of the time taken by each update. */
+
+      LatencyHistogram getTickLatency();
+
+         /** @return What the rules of each element have done so far. */
+
+      ElementCounts getElementCounts();
+}
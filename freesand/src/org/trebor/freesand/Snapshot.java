@@ -0,0 +1,409 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * Snapshot saves a {@link World} as its cells rather than as an
+    * image, so that it loads without matching colors to elements and
+    * resumes exactly where it was saved.  A snapshot is a header
+    * holding the size, seed, tick and bands of the world, the color of
+    * each element id, and which chunks are awake, followed by the
+    * cells in row order as runs of a single element.  Element ids are
+    * mapped back through their colors, so snapshots survive elements
+    * being added or reordered.  A snapshot may also be captured in
+    * memory, to be written or rendered away from the world.
+    *
+    * <pre>
+    *   int    magic, "FSWD"
+    *   int    version
+    *   int    width, height
+    *   long   seed, tick
+    *   int    bands
+    *   int    element count, followed by the color of each id
+    *   int    chunk count, followed by the state of each chunk
+    *   runs   element id byte, then run length as a varint, until
+    *          every cell is covered
+    * </pre>
+    */
+
+public class Snapshot
+{
+         // globals
+
+
+         /** extension of snapshot files */
+
+      public static final String FILE_EXTENSION = "fsworld";
+
+         /** first int of a snapshot file */
+
+      public static final int    MAGIC = 0x46535744;
+
+         /** version of the snapshot file format */
+
+      public static final int    VERSION = 1;
+
+         /** size of the buffer files are read and written through */
+
+      public static final int    BUFFER_SIZE = 1 << 16;
+
+         /** most bytes a single run takes */
+
+      protected static final int MAX_RUN_BYTES = 6;
+
+         /** size of the world */
+
+      protected final int    width, height;
+
+         /** seed and tick of the world */
+
+      protected final long   seed, tick;
+
+         /** number of bands the world was updated with */
+
+      protected final int    bands;
+
+         /** state of each chunk, see {@link ChunkMap#getState(byte[])} */
+
+      protected final byte[] state;
+
+         /** element id of each cell */
+
+      protected final byte[] cells;
+
+         /**
+          * Take a snapshot of a world, sharing or copying its cells.
+          *
+          * @param world world to take a snapshot of
+          * @param cells cells of the world, or a copy of them
+          */
+
+      protected Snapshot(World world, byte[] cells)
+      {
+         width = world.getWidth();
+         height = world.getHeight();
+         seed = world.getSeed();
+         tick = world.getTick();
+         bands = world.getBands();
+         state = new byte[world.chunks.getCount()];
+         world.chunks.getState(state);
+         this.cells = cells;
+      }
+         /**
+          * Copy a world into a snapshot held in memory, which may be
+          * written or rendered while the world goes on updating.  The
+          * world should be captured between updates, so that the
+          * snapshot is of a single tick.
+          *
+          * @param world world to capture
+          * @return A snapshot of the world.
+          */
+
+      public static Snapshot capture(World world)
+      {
+         return new Snapshot(world, world.cells.clone());
+      }
+         /**
+          * Test if a file is named as a snapshot.
+          *
+          * @param file file to test
+          * @return True if the file has the snapshot extension.
+          */
+
+      public static boolean isSnapshot(File file)
+      {
+         return file.getName().toLowerCase().endsWith("." + FILE_EXTENSION);
+      }
+         /**
+          * Write a world to a snapshot file.  The world should not be
+          * updating while it is written.
+          *
+          * @param world world to write
+          * @param file file to write
+          * @throws IOException if the file can not be written
+          */
+
+      public static void write(World world, File file) throws IOException
+      {
+         new Snapshot(world, world.cells).write(file);
+      }
+         /**
+          * Write this snapshot to a file.
+          *
+          * @param file file to write
+          * @throws IOException if the file can not be written
+          */
+
+      public void write(File file) throws IOException
+      {
+         FileChannel channel = FileChannel.open(
+            file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         try
+         {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            Element[] elements = Element.values();
+
+               // header
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(width);
+            buffer.putInt(height);
+            buffer.putLong(seed);
+            buffer.putLong(tick);
+            buffer.putInt(bands);
+            buffer.putInt(elements.length);
+            for (Element e: elements)
+               buffer.putInt(e.getValue());
+            buffer.putInt(state.length);
+            for (int i = 0; i < state.length; )
+            {
+               int length = Math.min(buffer.remaining(), state.length - i);
+               buffer.put(state, i, length);
+               i += length;
+               if (!buffer.hasRemaining())
+                  flush(channel, buffer);
+            }
+               // cells as runs
+
+            int i = 0;
+            while (i < cells.length)
+            {
+               byte id = cells[i];
+               int end = i + 1;
+               while (end < cells.length && cells[end] == id)
+                  ++end;
+               if (buffer.remaining() < MAX_RUN_BYTES)
+                  flush(channel, buffer);
+               buffer.put(id);
+               for (int run = end - i; ; run >>>= 7)
+               {
+                  if (run < 0x80)
+                  {
+                     buffer.put((byte)run);
+                     break;
+                  }
+                  buffer.put((byte)(run | 0x80));
+               }
+               i = end;
+            }
+            flush(channel, buffer);
+         }
+         finally
+         {
+            channel.close();
+         }
+      }
+         /**
+          * Paint the cells of this snapshot into a new image, one pixel
+          * per cell.
+          *
+          * @return An image of the snapshot.
+          */
+
+      public BufferedImage toImage()
+      {
+         BufferedImage image = new BufferedImage(
+            width, height, BufferedImage.TYPE_INT_ARGB);
+         int[] pixels = ((DataBufferInt)image.getRaster()
+                         .getDataBuffer()).getData();
+         for (int i = 0; i < pixels.length; ++i)
+            pixels[i] = World.PALETTE[cells[i]];
+         return image;
+      }
+         /** @return The width of the snapshot in cells. */
+
+      public int getWidth()
+      {
+         return width;
+      }
+         /** @return The height of the snapshot in cells. */
+
+      public int getHeight()
+      {
+         return height;
+      }
+         /** @return The tick of the world when it was captured. */
+
+      public long getTick()
+      {
+         return tick;
+      }
+         /**
+          * Read a world from a snapshot file.  The world is seeded, at
+          * the tick, and with the chunks awake, that it was saved with.
+          *
+          * @param file file to read
+          * @return The world read.
+          * @throws IOException if the file can not be read or is not a
+          *  snapshot
+          */
+
+      public static World read(File file) throws IOException
+      {
+         FileChannel channel = FileChannel.open(
+            file.toPath(), StandardOpenOption.READ);
+         try
+         {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.limit(0);
+
+               // header
+
+            fill(channel, buffer, 40);
+            if (buffer.getInt() != MAGIC)
+               throw new IOException(file + " is not a snapshot");
+            int version = buffer.getInt();
+            if (version != VERSION)
+               throw new IOException(
+                  file + " is snapshot version " + version +
+                  ", only version " + VERSION + " can be read");
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            long seed = buffer.getLong();
+            long tick = buffer.getLong();
+            int bands = buffer.getInt();
+            int count = buffer.getInt();
+            if (width < 1 || height < 1 || (long)width * height > Integer.MAX_VALUE ||
+                count < 0 || count > 256)
+               throw new IOException(file + " has a bad header");
+
+               // map saved ids to elements through their colors
+
+            byte[] ids = new byte[256];
+            for (int i = 0; i < count; ++i)
+            {
+               fill(channel, buffer, 4);
+               int color = buffer.getInt();
+               Element e = Element.lookup(color);
+               if (e == null)
+                  throw new IOException(String.format(
+                     "%s has unknown element color %08x", file, color));
+               ids[i] = e.getId();
+            }
+            World world = new World(width, height, seed);
+            world.setBands(bands);
+            world.tick = tick;
+
+               // chunk state
+
+            fill(channel, buffer, 4);
+            byte[] state = new byte[buffer.getInt()];
+            if (state.length != world.chunks.getCount())
+               throw new IOException(file + " has a bad chunk count");
+            for (int i = 0; i < state.length; )
+            {
+               fill(channel, buffer, 1);
+               int length = Math.min(buffer.remaining(), state.length - i);
+               buffer.get(state, i, length);
+               i += length;
+            }
+            world.chunks.setState(state);
+
+               // cells
+
+            byte[] cells = world.cells;
+            int i = 0;
+            while (i < cells.length)
+            {
+               if (buffer.remaining() < MAX_RUN_BYTES)
+                  fill(channel, buffer, 2);
+               int id = buffer.get() & 0xff;
+               int run = 0;
+               for (int shift = 0; ; shift += 7)
+               {
+                  if (!buffer.hasRemaining())
+                     fill(channel, buffer, 1);
+                  byte b = buffer.get();
+                  run |= (b & 0x7f) << shift;
+                  if (b >= 0)
+                     break;
+                  if (shift >= 28)
+                     throw new IOException(file + " has a bad run");
+               }
+               if (id >= count || run < 1 || run > cells.length - i)
+                  throw new IOException(file + " has a bad run");
+               Arrays.fill(cells, i, i + run, ids[id]);
+               i += run;
+            }
+            world.render();
+            return world;
+         }
+         finally
+         {
+            channel.close();
+         }
+      }
+         /**
+          * Write out what is in a buffer and clear it.
+          *
+          * @param channel channel to write to
+          * @param buffer buffer to write out
+          * @throws IOException if the channel can not be written
+          */
+
+      protected static void flush(FileChannel channel, ByteBuffer buffer)
+         throws IOException
+      {
+         buffer.flip();
+         while (buffer.hasRemaining())
+            channel.write(buffer);
+         buffer.clear();
+      }
+         /**
+          * Read from a channel until a buffer has at least a number of
+          * bytes remaining, keeping those it already had.
+          *
+          * @param channel channel to read from
+          * @param buffer buffer to read into, ready for getting
+          * @param need number of bytes needed
+          * @throws IOException if the channel ends first
+          */
+
+      protected static void fill(FileChannel channel, ByteBuffer buffer, int need)
+         throws IOException
+      {
+         if (buffer.remaining() >= need)
+            return;
+         buffer.compact();
+         while (buffer.position() < need)
+            if (channel.read(buffer) < 0)
+               throw new EOFException("snapshot ends early");
+         buffer.flip();
+      }
+}
@@ -0,0 +1,677 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+   /**
+    * StripNode updates one horizontal strip of a world in a process of
+    * its own, so that a world too big for one machine can be split
+    * across several.  The strips are the bands a {@link World} would
+    * use, and as with bands the even strips are updated at the same
+    * time, then the odd ones.  Each node is linked to the nodes above
+    * and below it by a socket.  Before a node updates its strip it is
+    * sent the edge row of each neighbor, and after the update it sends
+    * those rows back, with whatever particles fell or rose into them.
+    * Then neighbors swap which chunks near their border changed, so
+    * chunks wake across borders as they do in a world.  A world split
+    * across N nodes therefore updates identically to a {@link World}
+    * of the same seed updated in N bands.
+    *
+    * <p>With -launch, N nodes are started as local processes talking
+    * over loopback, their strips are joined into the output image,
+    * and the report of each node is printed.  Otherwise a single node
+    * is run, which writes its own strip, and -hosts names the host of
+    * each node.</p>
+    *
+    * <pre>
+    * java -cp freesand.jar org.trebor.freesand.StripNode -launch N
+    *    [-ticks N] [-seed N] [-port P] input.png output.png
+    * java -cp freesand.jar org.trebor.freesand.StripNode -node I -nodes N
+    *    [-ticks N] [-seed N] [-port P] [-hosts h0,h1,...] input.png strip.png
+    * </pre>
+    */
+
+public class StripNode implements Closeable
+{
+         // globals
+
+
+         /** port node 0 listens on, node I listens on this plus I */
+
+      public static final int    DEFAULT_PORT = 24500;
+
+         /** milliseconds to keep trying to reach the node above */
+
+      public static final int    CONNECT_TIMEOUT = 30000;
+
+         /** usage message */
+
+      public static final String USAGE =
+         "usage: StripNode -launch N [options] input.png output.png\n" +
+         "       StripNode -node I -nodes N [options] [-hosts h0,h1,...]\n" +
+         "                 input.png strip.png\n" +
+         "options: [-ticks N] [-seed N] [-port P]";
+
+         /** index of this node, 0 is the top strip */
+
+      protected final int node;
+
+         /** number of nodes */
+
+      protected final int nodes;
+
+         /** width of the whole world */
+
+      protected final int width;
+
+         /** height of the whole world */
+
+      protected final int height;
+
+         /** top and bottom rows of the strip this node owns */
+
+      protected final int top, bottom;
+
+         /** rows of the world held by this node, the strip and the
+          * edge rows of its neighbors */
+
+      protected final int first, last;
+
+         /** cells of rows first through last */
+
+      protected final byte[]   cells;
+
+         /** chunk map of the whole world, only the chunks of the strip
+          * and those next to it are kept up to date */
+
+      protected final ChunkMap chunks;
+
+         /** arrays of random numbers used to visit cells in a given
+          * row in a random order */
+
+      protected final int[][]  xRndIndex;
+
+         /** kernel which applies the element rules to the strip */
+
+      protected final Kernel   kernel;
+
+         /** seed from which all randomness in the world is derived */
+
+      protected final long     seed;
+
+         /** number of update cycles run */
+
+      protected long           tick;
+
+         /** links to the nodes above and below, null at the top and
+          * bottom of the world */
+
+      protected Link           up, down;
+
+         /** chunk flags sent to and received from a neighbor */
+
+      protected final byte[]   flags;
+
+         /** time taken by each tick, exchanges included */
+
+      protected final LatencyHistogram tickLatency = new LatencyHistogram();
+
+         /** time spent each tick exchanging rows and chunk flags with
+          * neighbors, waiting for them included */
+
+      protected final LatencyHistogram exchangeLatency = new LatencyHistogram();
+
+         /**
+          * Construct a node for one strip of a world.
+          *
+          * @param image image of the whole world
+          * @param node index of this node, 0 is the top strip
+          * @param nodes number of nodes
+          * @param seed seed from which all randomness is derived
+          */
+
+      public StripNode(BufferedImage image, int node, int nodes, long seed)
+      {
+         this.node = node;
+         this.nodes = nodes;
+         this.seed = seed;
+         width = image.getWidth();
+         height = image.getHeight();
+
+            // strips must be at least two chunks high, so chunk flags
+            // are only ever needed from the nodes next door
+
+         if (nodes < 1 || nodes > height / (2 * CHUNK_SIZE))
+            throw new IllegalArgumentException(
+               "a world " + height + " high can be split across at most " +
+               height / (2 * CHUNK_SIZE) + " nodes");
+         if (node < 0 || node >= nodes)
+            throw new IllegalArgumentException("no node " + node);
+
+            // take the strip and the rows next to it
+
+         top    = node * height / nodes;
+         bottom = (node + 1) * height / nodes - 1;
+         first  = Math.max(0, top - 1);
+         last   = Math.min(height - 1, bottom + 1);
+         cells  = new World(image.getSubimage(
+                               0, first, width, last - first + 1)).cells;
+
+            // every chunk starts awake, as in a new world
+
+         chunks = new ChunkMap(width, height);
+         chunks.wake(0, 0, width, height);
+         flags = new byte[3 * chunks.cols];
+
+            // the row orders are those of a world of the same seed
+
+         Random rnd = new Random(seed);
+         xRndIndex = new int[RND_INDEX_CNT][width];
+         for (int[] row: xRndIndex)
+            for (int i = 0; i < row.length; ++i)
+               row[i] = rnd.nextInt(row.length);
+         kernel = new Kernel(new XorShiftRandom(seed));
+         kernel.bind(cells, width, height, chunks, xRndIndex);
+      }
+         /**
+          * Connect to the neighbors of this node.  Each node but the
+          * last listens on the port plus its index for the node below,
+          * and each node but the first connects to the node above.
+          *
+          * @param hosts host of each node
+          * @param port port of node 0
+          * @throws IOException if a neighbor can not be reached
+          */
+
+      public void connect(String[] hosts, int port) throws IOException
+      {
+         ServerSocket server = node < nodes - 1
+            ? new ServerSocket(port + node)
+            : null;
+         try
+         {
+            if (node > 0)
+               up = new Link(connect(hosts[node - 1], port + node - 1));
+            if (server != null)
+               down = new Link(server.accept());
+         }
+         finally
+         {
+            if (server != null)
+               server.close();
+         }
+      }
+         /**
+          * Connect to a node, retrying until it is listening.
+          *
+          * @param host host of the node
+          * @param port port of the node
+          * @return The connected socket.
+          * @throws IOException if the node can not be reached in time
+          */
+
+      protected static Socket connect(String host, int port)
+         throws IOException
+      {
+         long end = System.currentTimeMillis() + CONNECT_TIMEOUT;
+         while (true)
+         {
+            try
+            {
+               return new Socket(host, port);
+            }
+            catch (ConnectException e)
+            {
+               if (System.currentTimeMillis() > end)
+                  throw e;
+               try
+               {
+                  Thread.sleep(50);
+               }
+               catch (InterruptedException ie)
+               {
+                  throw new IOException("interrupted connecting to " + host);
+               }
+            }
+         }
+      }
+         /**
+          * Update the strip by one tick, exchanging rows and chunk
+          * flags with the neighbors.
+          *
+          * @throws IOException if a neighbor fails
+          */
+
+      public void update() throws IOException
+      {
+         long start = System.nanoTime();
+         long exchange = 0;
+         int topRow = (top - first) * width;
+         int bottomRow = (bottom - first) * width;
+         int aboveRow = 0;
+         int belowRow = (last - first) * width;
+
+         for (int phase = 0; phase < 2; ++phase)
+         {
+            long t = System.nanoTime();
+            if (node % 2 == phase)
+            {
+                  // take the edge rows of the neighbors and update
+
+               if (up != null)
+                  up.receive(cells, aboveRow, width);
+               if (down != null)
+                  down.receive(cells, belowRow, width);
+               exchange += System.nanoTime() - t;
+
+               kernel.rnd.setSeed(seed + tick * 0x9E3779B97F4A7C15L + node);
+               kernel.update(top - first, bottom - first, first);
+
+                  // give them back with whatever moved into them
+
+               t = System.nanoTime();
+               if (up != null)
+                  up.send(cells, aboveRow, width);
+               if (down != null)
+                  down.send(cells, belowRow, width);
+            }
+            else
+            {
+                  // lend the edge rows to the neighbors updating now
+
+               if (up != null)
+                  up.send(cells, topRow, width);
+               if (down != null)
+                  down.send(cells, bottomRow, width);
+               if (up != null)
+                  up.receive(cells, topRow, width);
+               if (down != null)
+                  down.receive(cells, bottomRow, width);
+            }
+            exchange += System.nanoTime() - t;
+         }
+            // swap chunk flags near each border, then settle
+
+         long t = System.nanoTime();
+         if (up != null)
+            sendFlags(up, top);
+         if (down != null)
+            sendFlags(down, bottom + 1);
+         if (up != null)
+            receiveFlags(up, top);
+         if (down != null)
+            receiveFlags(down, bottom + 1);
+         exchange += System.nanoTime() - t;
+
+         chunks.settle(top >> CHUNK_SHIFT, bottom >> CHUNK_SHIFT);
+         ++tick;
+         exchangeLatency.record(exchange);
+         tickLatency.record(System.nanoTime() - start);
+      }
+         /**
+          * Return the first chunk row of the flags swapped across a
+          * border.  The node above needs the chunk row below its last
+          * one, and the node below the chunk row above its first one.
+          *
+          * @param border first row of the node below the border
+          * @return The first chunk row swapped.
+          */
+
+      protected int flagsTop(int border)
+      {
+         return Math.max(0, (border >> CHUNK_SHIFT) - 1);
+      }
+         /**
+          * Return the last chunk row of the flags swapped across a
+          * border.
+          *
+          * @param border first row of the node below the border
+          * @return The last chunk row swapped.
+          */
+
+      protected int flagsBottom(int border)
+      {
+         return Math.min(chunks.rows - 1, ((border - 1) >> CHUNK_SHIFT) + 1);
+      }
+         /**
+          * Send which chunks near a border changed.
+          *
+          * @param link link across the border
+          * @param border first row of the node below the border
+          * @throws IOException if the neighbor fails
+          */
+
+      protected void sendFlags(Link link, int border) throws IOException
+      {
+         int from = flagsTop(border) * chunks.cols;
+         int length = (flagsBottom(border) + 1) * chunks.cols - from;
+         for (int i = 0; i < length; ++i)
+            flags[i] = (byte)(chunks.changed[from + i] ? 1 : 0);
+         link.send(flags, 0, length);
+      }
+         /**
+          * Receive which chunks near a border the neighbor changed, and
+          * add them to those this node changed.
+          *
+          * @param link link across the border
+          * @param border first row of the node below the border
+          * @throws IOException if the neighbor fails
+          */
+
+      protected void receiveFlags(Link link, int border) throws IOException
+      {
+         int from = flagsTop(border) * chunks.cols;
+         int length = (flagsBottom(border) + 1) * chunks.cols - from;
+         link.receive(flags, 0, length);
+         for (int i = 0; i < length; ++i)
+            if (flags[i] != 0)
+               chunks.changed[from + i] = true;
+      }
+         /**
+          * Paint the strip of this node into an image.
+          *
+          * @return An image of the strip.
+          */
+
+      public BufferedImage getStripImage()
+      {
+         BufferedImage image = new BufferedImage(
+            width, bottom - top + 1, BufferedImage.TYPE_INT_ARGB);
+         int[] pixels = ((DataBufferInt)image.getRaster()
+                         .getDataBuffer()).getData();
+         int offset = (top - first) * width;
+         for (int i = 0; i < pixels.length; ++i)
+            pixels[i] = PALETTE[cells[offset + i]];
+         return image;
+      }
+         /**
+          * Print a report of the ticks run so far.
+          */
+
+      public void report()
+      {
+         System.out.printf("node       %d of %d, rows %d-%d of %dx%d%n",
+                           node, nodes, top, bottom, width, height);
+         System.out.println("tick       " + tickLatency.snapshot());
+         System.out.println("exchange   " + exchangeLatency.snapshot());
+      }
+         /**
+          * Close the links to the neighbors.
+          *
+          * @throws IOException if a link can not be closed
+          */
+
+      public void close() throws IOException
+      {
+         if (up != null)
+            up.close();
+         if (down != null)
+            down.close();
+      }
+         /**
+          * Launch nodes as local processes, wait for them, join their
+          * strips into one image and print their reports.
+          *
+          * @param nodes number of nodes to launch
+          * @param options options passed to each node
+          * @param input input image
+          * @param output output image
+          * @return True if every node succeeded.
+          * @throws IOException if a node or image fails
+          */
+
+      public static boolean launch(int nodes, List<String> options,
+                                   File input, File output)
+         throws IOException
+      {
+         String java = new File(new File(System.getProperty("java.home"), "bin"),
+                                "java").getPath();
+         File[] strips = new File[nodes];
+         File[] logs = new File[nodes];
+         Process[] processes = new Process[nodes];
+
+            // start the nodes
+
+         long start = System.nanoTime();
+         for (int i = 0; i < nodes; ++i)
+         {
+            strips[i] = File.createTempFile("freesand-strip", ".png");
+            logs[i] = File.createTempFile("freesand-node", ".log");
+            List<String> command = new ArrayList<String>(Arrays.asList(
+               java, "-Djava.awt.headless=true",
+               "-cp", System.getProperty("java.class.path"),
+               StripNode.class.getName(),
+               "-node", String.valueOf(i), "-nodes", String.valueOf(nodes)));
+            command.addAll(options);
+            command.add(input.getPath());
+            command.add(strips[i].getPath());
+            processes[i] = new ProcessBuilder(command)
+               .redirectErrorStream(true)
+               .redirectOutput(logs[i])
+               .start();
+         }
+            // wait for them and print their reports
+
+         boolean ok = true;
+         for (int i = 0; i < nodes; ++i)
+         {
+            try
+            {
+               ok &= processes[i].waitFor() == 0;
+            }
+            catch (InterruptedException e)
+            {
+               throw new IOException("interrupted waiting for node " + i);
+            }
+            System.out.print(new String(Files.readAllBytes(logs[i].toPath())));
+            System.out.println();
+            logs[i].delete();
+         }
+         System.out.printf("wall       %.3f s%n", (System.nanoTime() - start) / 1e9);
+
+            // join the strips
+
+         if (ok)
+         {
+            BufferedImage[] images = new BufferedImage[nodes];
+            int height = 0;
+            for (int i = 0; i < nodes; ++i)
+               height += (images[i] = ImageIO.read(strips[i])).getHeight();
+            BufferedImage joined = new BufferedImage(
+               images[0].getWidth(), height, BufferedImage.TYPE_INT_ARGB);
+            int y = 0;
+            for (BufferedImage image: images)
+            {
+               joined.getGraphics().drawImage(image, 0, y, null);
+               y += image.getHeight();
+            }
+            if (!ImageIO.write(joined, "png", output))
+               throw new IOException("unable to write image " + output);
+         }
+         for (File strip: strips)
+            strip.delete();
+         return ok;
+      }
+         /**
+          * Run a node, or launch several, from the command line.
+          *
+          * @param args command line arguments, see {@link #USAGE}
+          */
+
+      public static void main(String[] args)
+      {
+         System.setProperty("java.awt.headless", "true");
+
+         int      launch  = 0;
+         int      node    = -1;
+         int      nodes   = 0;
+         long     ticks   = Runner.DEFAULT_TICKS;
+         long     seed    = 0;
+         int      port    = DEFAULT_PORT;
+         String[] hosts   = null;
+         File     input   = null;
+         File     output  = null;
+         List<String> options = new ArrayList<String>();
+
+         try
+         {
+               // parse arguments, keeping those passed on to nodes
+
+            for (int i = 0; i < args.length; ++i)
+            {
+               String arg = args[i];
+               if (arg.equals("-launch"))
+                  launch = Integer.parseInt(args[++i]);
+               else if (arg.equals("-node"))
+                  node = Integer.parseInt(args[++i]);
+               else if (arg.equals("-nodes"))
+                  nodes = Integer.parseInt(args[++i]);
+               else if (arg.equals("-hosts"))
+                  hosts = args[++i].split(",");
+               else if (arg.equals("-ticks") || arg.equals("-seed") ||
+                        arg.equals("-port"))
+               {
+                  String value = args[++i];
+                  if (arg.equals("-ticks"))
+                     ticks = Long.parseLong(value);
+                  else if (arg.equals("-seed"))
+                     seed = Long.parseLong(value);
+                  else
+                     port = Integer.parseInt(value);
+                  options.add(arg);
+                  options.add(value);
+               }
+               else if (arg.startsWith("-"))
+                  throw new IllegalArgumentException("unknown option " + arg);
+               else if (input == null)
+                  input = new File(arg);
+               else if (output == null)
+                  output = new File(arg);
+               else
+                  throw new IllegalArgumentException("too many files");
+            }
+            if (input == null || output == null)
+               throw new IllegalArgumentException("missing file");
+            if (launch == 0 && (node < 0 || nodes < 1))
+               throw new IllegalArgumentException("-launch or -node and -nodes needed");
+            if (hosts == null)
+            {
+               hosts = new String[Math.max(nodes, 1)];
+               Arrays.fill(hosts, "localhost");
+            }
+            if (hosts.length < nodes)
+               throw new IllegalArgumentException("a host is needed for each node");
+         }
+         catch (RuntimeException e)
+         {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+         }
+         try
+         {
+            if (launch > 0)
+               System.exit(launch(launch, options, input, output) ? 0 : 1);
+
+               // run a single node
+
+            BufferedImage image = ImageIO.read(input);
+            if (image == null)
+               throw new IOException("unable to read image " + input);
+            StripNode strip = new StripNode(image, node, nodes, seed);
+            strip.connect(hosts, port);
+            for (long i = 0; i < ticks; ++i)
+               strip.update();
+            strip.close();
+            if (!ImageIO.write(strip.getStripImage(), "png", output))
+               throw new IOException("unable to write image " + output);
+            strip.report();
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+      }
+         /**
+          * A socket to a neighboring node.
+          */
+
+      protected static class Link implements Closeable
+      {
+         final Socket           socket;
+         final DataInputStream  in;
+         final DataOutputStream out;
+
+         Link(Socket socket) throws IOException
+         {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(
+               new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(
+               new BufferedOutputStream(socket.getOutputStream()));
+         }
+         void send(byte[] b, int offset, int length) throws IOException
+         {
+            out.write(b, offset, length);
+            out.flush();
+         }
+         void receive(byte[] b, int offset, int length) throws IOException
+         {
+            in.readFully(b, offset, length);
+         }
+         public void close() throws IOException
+         {
+            socket.close();
+         }
+      }
+}
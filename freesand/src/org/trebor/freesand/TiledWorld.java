@@ -0,0 +1,957 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import static org.trebor.freesand.World.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.trebor.freesand.World.Element;
+
+   /**
+    * TiledWorld is a world without fixed edges, made of square tiles
+    * of {@link #TILE} cells which are created wherever something is
+    * drawn or a particle goes, so it can grow in any direction.  Tiles
+    * which have not been used for a while are evicted: their cells are
+    * written to a slot in a memory mapped backing file and dropped
+    * from the heap, to be paged back in when a particle or a brush
+    * reaches them again.  So only the active parts of a world need to
+    * fit in memory.
+    *
+    * <p>Cells are addressed in world coordinates, which may be
+    * negative.  The area updated, the extent, is the bounding box of
+    * the tiles grown by an empty tile on every side, so a particle
+    * which leaves the tiles lands in an empty tile, which is then
+    * created.  The extent is updated with the same {@link Kernel} and
+    * rules as a {@link World}, in strips of rows copied out of the
+    * tiles with the row above and below them, as {@link OffHeapWorld}
+    * does.  Only the tiles within reach of an awake chunk are copied,
+    * and rows run straight across tile borders, so there are no seams
+    * between tiles.  A tiled world limited to the size of a world,
+    * with the same cells and seed, updates identically to a
+    * serially updated {@link World}.</p>
+    *
+    * <p>A tiled world is always updated serially.</p>
+    */
+
+public class TiledWorld implements Simulation, Closeable
+{
+         // globals
+
+
+         /** log base 2 of the width and height of a tile */
+
+      public static final int TILE_SHIFT   = 8;
+
+         /** width and height of a tile in cells */
+
+      public static final int TILE         = 1 << TILE_SHIFT;
+
+         /** number of cells in a tile */
+
+      public static final int TILE_CELLS   = TILE * TILE;
+
+         /** number of rows updated in each strip copied from the
+          * tiles */
+
+      public static final int STRIP_ROWS   = 64;
+
+         /** number of tile slots in each mapped region of the backing
+          * file */
+
+      public static final int REGION_TILES = 1024;
+
+         /** most random row order entries kept, fewer than {@link
+          * World#RND_INDEX_CNT} row orders are kept for very wide
+          * worlds */
+
+      public static final int RND_INDEX_INTS = 1 << 23;
+
+         /** default number of ticks a tile may go unused before it is
+          * evicted */
+
+      public static final int DEFAULT_IDLE_TICKS = 100;
+
+         /** rectangle outside of which no tiles are created, or null
+          * if the world is unbounded */
+
+      protected final Rectangle limit;
+
+         /** backing file to which tiles are evicted */
+
+      protected final RandomAccessFile file;
+
+         /** channel of the backing file */
+
+      protected final FileChannel channel;
+
+         /** mapped regions of the backing file */
+
+      protected final List<MappedByteBuffer> regions =
+         new ArrayList<MappedByteBuffer>();
+
+         /** next unused slot of the backing file */
+
+      protected int        nextSlot;
+
+         /** tiles within the extent, row by row, null where no tile
+          * has been created */
+
+      protected Tile[]     grid;
+
+         /** tile column and row of the first tile of the grid */
+
+      protected int        gridX, gridY;
+
+         /** number of tile columns and rows in the grid */
+
+      protected int        gridCols, gridRows;
+
+         /** bounding box of the tiles created, in tiles */
+
+      protected int        minTx, maxTx, minTy, maxTy;
+
+         /** bounding box the extent was last laid out for */
+
+      protected int[]      laidOut;
+
+         /** area of the world which is updated, in cells */
+
+      protected Rectangle  extent = new Rectangle();
+
+         /** which chunks of the extent are awake */
+
+      protected ChunkMap   chunks;
+
+         /** arrays of random numbers used to visit cells in a given
+          * row of the extent in a random order */
+
+      protected int[][]    xRndIndex;
+
+         /** rows of the extent copied out of the tiles for updating */
+
+      protected byte[]     strip;
+
+         /** grid columns copied into the strip being updated */
+
+      protected boolean[]  staged;
+
+         /** tiles whose cells are on the heap */
+
+      protected final List<Tile> resident = new ArrayList<Tile>();
+
+         /** cell arrays of evicted tiles, for reuse */
+
+      protected final List<byte[]> spare = new ArrayList<byte[]>();
+
+         /** ticks a tile may go unused before it is evicted */
+
+      protected int        idleTicks = DEFAULT_IDLE_TICKS;
+
+         /** number of tiles created */
+
+      protected int        tileCount;
+
+         /** number of tiles paged in from the backing file */
+
+      protected long       pageIns;
+
+         /** number of tiles evicted to the backing file */
+
+      protected long       evictions;
+
+         /** seed from which all randomness in the world is derived */
+
+      protected long       seed;
+
+         /** number of update cycles since the world was seeded */
+
+      protected long       tick;
+
+         /** kernel which applies the element rules */
+
+      protected Kernel     kernel;
+
+         /** time taken by each update */
+
+      protected final LatencyHistogram tickLatency = new LatencyHistogram();
+
+         /**
+          * Construct an empty tiled world.
+          *
+          * @param backing backing file to evict tiles to, which must
+          *  be new or empty, or null for a temporary file
+          * @param seed seed from which all randomness is derived
+          * @param limit rectangle outside of which no tiles are
+          *  created, or null for an unbounded world
+          * @throws IOException if the backing file can not be opened
+          *  or is not empty
+          */
+
+      public TiledWorld(File backing, long seed, Rectangle limit)
+         throws IOException
+      {
+         if (backing == null)
+         {
+            backing = File.createTempFile("freesand", ".tiles");
+            backing.deleteOnExit();
+         }
+         else if (backing.length() > 0)
+            throw new IOException(
+               backing + " is not empty, not using it as a backing file");
+         file = new RandomAccessFile(backing, "rw");
+         channel = file.getChannel();
+         this.limit = limit == null ? null : new Rectangle(limit);
+
+            // start with the tile at the origin
+
+         if (limit != null)
+         {
+            minTx = maxTx = limit.x >> TILE_SHIFT;
+            minTy = maxTy = limit.y >> TILE_SHIFT;
+         }
+         this.seed = seed;
+         layout();
+      }
+         /**
+          * Seed the world and reset the tick count to zero.
+          *
+          * @param seed seed from which all randomness is derived
+          * @see World#reseed(long)
+          */
+
+      public void reseed(long seed)
+      {
+         this.seed = seed;
+         tick = 0;
+         xRndIndex = createRndIndex(extent.width);
+      }
+         /**
+          * Create the random row orders for an extent of a given
+          * width.  They are derived from the seed alone, as those of a
+          * {@link World} are.
+          *
+          * @param width width of the extent
+          * @return The random row orders.
+          */
+
+      protected int[][] createRndIndex(int width)
+      {
+         Random rnd = new Random(seed);
+         int rows = Math.max(16, Math.min(RND_INDEX_CNT, RND_INDEX_INTS / width));
+         int[][] index = new int[rows][width];
+         for (int[] row: index)
+            for (int i = 0; i < row.length; ++i)
+               row[i] = rnd.nextInt(row.length);
+         return index;
+      }
+         /** @return The seed from which all randomness is derived. */
+
+      public long getSeed()
+      {
+         return seed;
+      }
+         /** @return The number of update cycles since seeding. */
+
+      public long getTick()
+      {
+         return tick;
+      }
+         /** @return The width of the extent. */
+
+      public int getWidth()
+      {
+         return extent.width;
+      }
+         /** @return The height of the extent. */
+
+      public int getHeight()
+      {
+         return extent.height;
+      }
+         /**
+          * Return the area which is updated, in world coordinates.
+          *
+          * @return The extent of the world.
+          */
+
+      public Rectangle getExtent()
+      {
+         return new Rectangle(extent);
+      }
+         /**
+          * Return the bounding box of the tiles created, in world
+          * coordinates.
+          *
+          * @return The bounds of the content of the world.
+          */
+
+      public Rectangle getContentBounds()
+      {
+         Rectangle r = new Rectangle(
+            minTx << TILE_SHIFT, minTy << TILE_SHIFT,
+            (maxTx - minTx + 1) << TILE_SHIFT, (maxTy - minTy + 1) << TILE_SHIFT);
+         return limit == null ? r : r.intersection(limit);
+      }
+         /**
+          * Tiled worlds are always updated serially, so this does
+          * nothing.
+          *
+          * @param bands currently ignored
+          */
+
+      public void setBands(int bands)
+      {
+      }
+         /** @return Always one, tiled worlds are updated serially. */
+
+      public int getEffectiveBands()
+      {
+         return 1;
+      }
+         /**
+          * Set how many ticks a tile may go unused before it is
+          * evicted to the backing file.
+          *
+          * @param idleTicks ticks before an unused tile is evicted
+          */
+
+      public void setIdleTicks(int idleTicks)
+      {
+         this.idleTicks = idleTicks;
+      }
+         /** @return The number of tiles created. */
+
+      public int getTileCount()
+      {
+         return tileCount;
+      }
+         /** @return The number of tiles whose cells are on the heap. */
+
+      public int getResidentCount()
+      {
+         return resident.size();
+      }
+         /** @return The number of tiles paged in from the backing file. */
+
+      public long getPageIns()
+      {
+         return pageIns;
+      }
+         /** @return The number of tiles evicted to the backing file. */
+
+      public long getEvictions()
+      {
+         return evictions;
+      }
+         /**
+          * Lay out the extent, grid, chunk map and strip for the
+          * current bounding box of the tiles, if it has changed.  The
+          * extent only ever grows, and which chunks are awake is
+          * carried over.
+          */
+
+      protected void layout()
+      {
+         if (laidOut != null && laidOut[0] == minTx && laidOut[1] == maxTx &&
+             laidOut[2] == minTy && laidOut[3] == maxTy)
+            return;
+         laidOut = new int[] {minTx, maxTx, minTy, maxTy};
+
+            // grow the bounding box by a tile on every side
+
+         Rectangle ext = new Rectangle(
+            (minTx - 1) << TILE_SHIFT, (minTy - 1) << TILE_SHIFT,
+            (maxTx - minTx + 3) << TILE_SHIFT, (maxTy - minTy + 3) << TILE_SHIFT);
+         if (limit != null)
+            ext = ext.intersection(limit);
+         if (ext.equals(extent))
+            return;
+
+            // move the tiles into a new grid
+
+         int gx = ext.x >> TILE_SHIFT;
+         int gy = ext.y >> TILE_SHIFT;
+         int gc = ((ext.x + ext.width - 1) >> TILE_SHIFT) - gx + 1;
+         int gr = ((ext.y + ext.height - 1) >> TILE_SHIFT) - gy + 1;
+         Tile[] g = new Tile[gc * gr];
+         if (grid != null)
+            for (Tile t: grid)
+               if (t != null)
+                  g[(t.ty - gy) * gc + t.tx - gx] = t;
+
+            // carry over which chunks are awake
+
+         ChunkMap c = new ChunkMap(ext.width, ext.height);
+         if (chunks != null)
+         {
+            int dx = extent.x - ext.x;
+            int dy = extent.y - ext.y;
+            if (dx % CHUNK_SIZE == 0 && dy % CHUNK_SIZE == 0)
+               c.copy(chunks, dx >> CHUNK_SHIFT, dy >> CHUNK_SHIFT);
+            else
+               c.wake(0, 0, ext.width, ext.height);
+         }
+            // size the row orders and strip for the new width
+
+         if (ext.width != extent.width)
+         {
+            xRndIndex = createRndIndex(ext.width);
+            strip = new byte[(STRIP_ROWS + 2) * ext.width];
+         }
+         grid = g;
+         gridX = gx;
+         gridY = gy;
+         gridCols = gc;
+         gridRows = gr;
+         staged = new boolean[gc];
+         chunks = c;
+         extent = ext;
+      }
+         /**
+          * Return the tile at a given tile location.
+          *
+          * @param tx tile column
+          * @param ty tile row
+          * @return The tile, or null if it has not been created.
+          */
+
+      protected Tile getTile(int tx, int ty)
+      {
+         int col = tx - gridX;
+         int row = ty - gridY;
+         return col < 0 || row < 0 || col >= gridCols || row >= gridRows
+            ? null
+            : grid[row * gridCols + col];
+      }
+         /**
+          * Create the tile at a given tile location, filled with air.
+          * This grows the extent if the tile lies outside of it.
+          *
+          * @param tx tile column
+          * @param ty tile row
+          * @return The new tile.
+          */
+
+      protected Tile createTile(int tx, int ty)
+      {
+         Tile t = new Tile(tx, ty);
+         t.cells = allocateCells();
+         t.lastUsed = tick;
+         resident.add(t);
+         ++tileCount;
+
+            // grow the bounding box, and the grid if needed
+
+         minTx = Math.min(minTx, tx);
+         maxTx = Math.max(maxTx, tx);
+         minTy = Math.min(minTy, ty);
+         maxTy = Math.max(maxTy, ty);
+         if (tx < gridX || ty < gridY ||
+             tx >= gridX + gridCols || ty >= gridY + gridRows)
+            layout();
+         grid[(ty - gridY) * gridCols + tx - gridX] = t;
+         return t;
+      }
+         /**
+          * Return an array of cells for a tile, filled with air.
+          *
+          * @return The cells for a tile.
+          */
+
+      protected byte[] allocateCells()
+      {
+         if (spare.isEmpty())
+            return new byte[TILE_CELLS];
+         byte[] cells = spare.remove(spare.size() - 1);
+         Arrays.fill(cells, AIR);
+         return cells;
+      }
+         /**
+          * Return the cells of a tile, paging them in from the backing
+          * file if the tile was evicted, and note that it was used.
+          *
+          * @param t tile to use
+          * @return The cells of the tile.
+          */
+
+      protected byte[] use(Tile t)
+      {
+         if (t.cells == null)
+         {
+            byte[] cells = allocateCells();
+            ByteBuffer region = region(t.slot);
+            region.position(slotOffset(t.slot));
+            region.get(cells);
+            t.cells = cells;
+            resident.add(t);
+            ++pageIns;
+         }
+         t.lastUsed = tick;
+         return t.cells;
+      }
+         /**
+          * Evict a tile, writing its cells to its slot of the backing
+          * file.
+          *
+          * @param t tile to evict
+          */
+
+      protected void evict(Tile t)
+      {
+         if (t.slot < 0)
+            t.slot = nextSlot++;
+         ByteBuffer region = region(t.slot);
+         region.position(slotOffset(t.slot));
+         region.put(t.cells);
+         spare.add(t.cells);
+         t.cells = null;
+         ++evictions;
+      }
+         /**
+          * Evict the tiles which have not been used for longer than
+          * the idle time.
+          */
+
+      protected void evictIdle()
+      {
+         int kept = 0;
+         for (int i = 0; i < resident.size(); ++i)
+         {
+            Tile t = resident.get(i);
+            if (tick - t.lastUsed > idleTicks)
+               evict(t);
+            else
+               resident.set(kept++, t);
+         }
+         while (resident.size() > kept)
+            resident.remove(resident.size() - 1);
+      }
+         /**
+          * Return the mapped region of the backing file which holds a
+          * slot, mapping it if needed.
+          *
+          * @param slot slot of a tile
+          * @return The region holding the slot.
+          */
+
+      protected MappedByteBuffer region(int slot)
+      {
+         try
+         {
+            while (regions.size() <= slot / REGION_TILES)
+               regions.add(channel.map(
+                  FileChannel.MapMode.READ_WRITE,
+                  (long)regions.size() * REGION_TILES * TILE_CELLS,
+                  REGION_TILES * TILE_CELLS));
+         }
+         catch (IOException e)
+         {
+            throw new IllegalStateException("unable to map backing file", e);
+         }
+         return regions.get(slot / REGION_TILES);
+      }
+         /**
+          * Return the offset of a slot in its region.
+          *
+          * @param slot slot of a tile
+          * @return The offset of the slot in bytes.
+          */
+
+      protected static int slotOffset(int slot)
+      {
+         return (slot % REGION_TILES) * TILE_CELLS;
+      }
+         /**
+          * Fill a shape with the provided element.  Tiles are created
+          * where the shape puts anything other than air.
+          *
+          * @param shape shape to fill, in world coordinates
+          * @param el element to fill shape with
+          */
+
+      public void fill(Shape shape, Element el)
+      {
+         Rectangle bounds = shape.getBounds();
+         if (limit != null)
+            bounds = bounds.intersection(limit);
+         if (bounds.isEmpty())
+            return;
+
+         byte id = el.getId();
+         for (int ty = bounds.y >> TILE_SHIFT;
+              ty <= (bounds.y + bounds.height - 1) >> TILE_SHIFT; ++ty)
+            for (int tx = bounds.x >> TILE_SHIFT;
+                 tx <= (bounds.x + bounds.width - 1) >> TILE_SHIFT; ++tx)
+            {
+                  // filling an absent tile with air changes nothing
+
+               Tile t = getTile(tx, ty);
+               if (t == null && id == AIR)
+                  continue;
+
+                  // rasterize the part of the shape on this tile
+
+               Rectangle r = new Rectangle(
+                  tx << TILE_SHIFT, ty << TILE_SHIFT, TILE, TILE)
+                  .intersection(bounds);
+               BufferedImage mask = new BufferedImage(
+                  r.width, r.height, BufferedImage.TYPE_BYTE_GRAY);
+               Graphics2D g = (Graphics2D)mask.getGraphics();
+               g.translate(-r.x, -r.y);
+               g.setColor(Color.WHITE);
+               g.fill(shape);
+               g.dispose();
+               byte[] maskPixels = ((DataBufferByte)mask.getRaster()
+                                    .getDataBuffer()).getData();
+
+               if (t == null)
+               {
+                  boolean any = false;
+                  for (int i = 0; !any && i < maskPixels.length; ++i)
+                     any = maskPixels[i] != 0;
+                  if (!any)
+                     continue;
+                  t = createTile(tx, ty);
+               }
+                  // fill cells under the mask
+
+               byte[] cells = use(t);
+               for (int y = 0; y < r.height; ++y)
+               {
+                  int offset = ((r.y + y) & (TILE - 1)) * TILE +
+                     (r.x & (TILE - 1));
+                  for (int x = 0; x < r.width; ++x)
+                     if (maskPixels[y * r.width + x] != 0)
+                        cells[offset + x] = id;
+               }
+            }
+         chunks.wake(bounds.x - extent.x, bounds.y - extent.y,
+                     bounds.width, bounds.height);
+      }
+         /**
+          * Draw an image into the world.  The cells of a {@link World}
+          * are copied directly, otherwise each pixel becomes the
+          * element with the exactly matching color, or if there is
+          * none, the element with the nearest color.
+          *
+          * @param image image to draw into the world
+          * @param x left edge of image in world
+          * @param y top edge of image in world
+          */
+
+      public void drawImage(Image image, int x, int y)
+      {
+         World source = image instanceof World
+            ? (World)image
+            : new World(image);
+         Rectangle bounds = new Rectangle(x, y, source.width, source.height);
+         if (limit != null)
+            bounds = bounds.intersection(limit);
+         if (bounds.isEmpty())
+            return;
+
+         for (int ty = bounds.y >> TILE_SHIFT;
+              ty <= (bounds.y + bounds.height - 1) >> TILE_SHIFT; ++ty)
+            for (int tx = bounds.x >> TILE_SHIFT;
+                 tx <= (bounds.x + bounds.width - 1) >> TILE_SHIFT; ++tx)
+            {
+               Rectangle r = new Rectangle(
+                  tx << TILE_SHIFT, ty << TILE_SHIFT, TILE, TILE)
+                  .intersection(bounds);
+
+                  // only create a tile if there is more than air for it
+
+               Tile t = getTile(tx, ty);
+               if (t == null)
+               {
+                  boolean any = false;
+                  for (int wy = r.y; !any && wy < r.y + r.height; ++wy)
+                     for (int wx = r.x; !any && wx < r.x + r.width; ++wx)
+                        any = source.cells[(wy - y) * source.width + wx - x] != AIR;
+                  if (!any)
+                     continue;
+                  t = createTile(tx, ty);
+               }
+               byte[] cells = use(t);
+               for (int wy = r.y; wy < r.y + r.height; ++wy)
+                  System.arraycopy(source.cells, (wy - y) * source.width + r.x - x,
+                                   cells, (wy & (TILE - 1)) * TILE + (r.x & (TILE - 1)),
+                                   r.width);
+            }
+         chunks.wake(bounds.x - extent.x, bounds.y - extent.y,
+                     bounds.width, bounds.height);
+      }
+         /**
+          * Paint a region of the world into an image from its cells,
+          * one pixel per cell.  Evicted tiles are read straight from
+          * the backing file without being paged in.  This should not
+          * be called during an update.
+          *
+          * @param region region to paint, in world coordinates, clipped
+          *  to the limit of the world if it has one
+          * @param image image to paint into, or null or an image of
+          *  another size to create a new one
+          * @return The image painted into.
+          */
+
+      public BufferedImage getViewport(Rectangle region, BufferedImage image)
+      {
+         Rectangle r = limit == null
+            ? new Rectangle(region)
+            : region.intersection(limit);
+         if (r.isEmpty())
+            r.setBounds(r.x, r.y, 1, 1);
+         if (image == null || image.getWidth() != r.width ||
+             image.getHeight() != r.height)
+            image = new BufferedImage(
+               r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+         int[] view = ((DataBufferInt)image.getRaster()
+                       .getDataBuffer()).getData();
+
+         byte[] row = new byte[TILE];
+         for (int y = 0; y < r.height; ++y)
+         {
+            int wy = r.y + y;
+            int rowOffset = (wy & (TILE - 1)) * TILE;
+            for (int wx = r.x; wx < r.x + r.width;)
+            {
+               int tx = wx >> TILE_SHIFT;
+               int end = Math.min(r.x + r.width, (tx + 1) << TILE_SHIFT);
+               int col = wx & (TILE - 1);
+               int length = end - wx;
+               int out = y * r.width + wx - r.x;
+
+               Tile t = getTile(tx, wy >> TILE_SHIFT);
+               byte[] cells = t == null ? null : t.cells;
+               if (t == null)
+                  Arrays.fill(view, out, out + length, PALETTE[AIR]);
+               else
+               {
+                  int offset = rowOffset + col;
+                  if (cells == null)
+                  {
+                     ByteBuffer slot = region(t.slot).duplicate();
+                     slot.position(slotOffset(t.slot) + offset);
+                     slot.get(row, 0, length);
+                     cells = row;
+                     offset = 0;
+                  }
+                  for (int i = 0; i < length; ++i)
+                     view[out + i] = PALETTE[cells[offset + i]];
+               }
+               wx = end;
+            }
+         }
+         return image;
+      }
+         /**
+          * Update the world state.  The extent is updated from the
+          * bottom up a strip at a time, then idle tiles are evicted and
+          * the extent grows to take in any tiles created.
+          */
+
+      public void update()
+      {
+         long start = System.nanoTime();
+         if (kernel == null)
+            kernel = new Kernel(new XorShiftRandom(seed));
+         kernel.rnd.setSeed(seed + tick * 0x9E3779B97F4A7C15L);
+         kernel.bind(strip, extent.width, extent.height, chunks, xRndIndex);
+
+         for (int last = extent.height - 1; last >= 0; last -= STRIP_ROWS)
+         {
+            int first = Math.max(0, last - STRIP_ROWS + 1);
+
+               // skip strips in which every chunk is asleep
+
+            if (!chunks.isAwake(first, last))
+               continue;
+
+               // copy the strip and the rows around it, update it, and
+               // copy it back
+
+            int above = Math.max(0, first - 1);
+            int below = Math.min(extent.height - 1, last + 1);
+            markColumns(first, last);
+            copyRows(above, below, true);
+            kernel.update(first - above, last - above, above);
+            copyRows(above, below, false);
+         }
+            // establish which chunks to process next time, evict idle
+            // tiles and take in new ones
+
+         chunks.settle();
+         ++tick;
+         evictIdle();
+         layout();
+         tickLatency.record(System.nanoTime() - start);
+      }
+         /**
+          * Mark the grid columns within reach of an awake chunk in a
+          * range of rows of the extent.
+          *
+          * @param first top most row of the extent
+          * @param last bottom most row of the extent
+          */
+
+      protected void markColumns(int first, int last)
+      {
+         Arrays.fill(staged, false);
+         boolean[] awake = chunks.awake;
+         int cols = chunks.cols;
+
+         for (int cy = first >> CHUNK_SHIFT; cy <= last >> CHUNK_SHIFT; ++cy)
+            for (int cx = 0; cx < cols; ++cx)
+               if (awake[cy * cols + cx])
+               {
+                     // a particle reaches two cells to either side
+
+                  int left  = Math.max(0, (cx << CHUNK_SHIFT) - 2);
+                  int right = Math.min(extent.width - 1,
+                                       (cx << CHUNK_SHIFT) + CHUNK_SIZE + 1);
+                  int t0 = ((extent.x + left) >> TILE_SHIFT) - gridX;
+                  int t1 = ((extent.x + right) >> TILE_SHIFT) - gridX;
+                  for (int t = t0; t <= t1; ++t)
+                     staged[t] = true;
+               }
+      }
+         /**
+          * Copy rows of the marked grid columns between the tiles and
+          * the strip.  Absent tiles read as air, and are created when
+          * something other than air is copied back into them.
+          *
+          * @param above top most row of the extent to copy
+          * @param below bottom most row of the extent to copy
+          * @param in true to copy into the strip, false to copy back
+          */
+
+      protected void copyRows(int above, int below, boolean in)
+      {
+         for (int col = 0; col < gridCols; ++col)
+         {
+            if (!staged[col])
+               continue;
+
+               // find the part of this tile column within the extent
+
+            int tx = gridX + col;
+            int xs = Math.max(0, (tx << TILE_SHIFT) - extent.x);
+            int xe = Math.min(extent.width, ((tx + 1) << TILE_SHIFT) - extent.x);
+            int tileX = (extent.x + xs) & (TILE - 1);
+            int length = xe - xs;
+
+            for (int y = above; y <= below; ++y)
+            {
+               int wy = extent.y + y;
+               int s = (y - above) * extent.width + xs;
+               Tile t = getTile(tx, wy >> TILE_SHIFT);
+               if (t == null)
+               {
+                  if (in)
+                  {
+                     Arrays.fill(strip, s, s + length, AIR);
+                     continue;
+                  }
+                  boolean any = false;
+                  for (int i = s; !any && i < s + length; ++i)
+                     any = strip[i] != AIR;
+                  if (!any)
+                     continue;
+                  t = createTile(tx, wy >> TILE_SHIFT);
+               }
+               int c = (wy & (TILE - 1)) * TILE + tileX;
+               if (in)
+                  System.arraycopy(use(t), c, strip, s, length);
+               else
+                  System.arraycopy(strip, s, use(t), c, length);
+            }
+         }
+      }
+         /** @return The histogram of the time taken by each update. */
+
+      public LatencyHistogram getTickLatency()
+      {
+         return tickLatency;
+      }
+         /** @return What the rules of each element have done so far. */
+
+      public ElementCounts getElementCounts()
+      {
+         ElementCounts counts = new ElementCounts();
+         if (kernel != null)
+            counts.add(kernel);
+         return counts;
+      }
+         /**
+          * Close the backing file.  The world can not be used after
+          * it is closed.
+          *
+          * @throws IOException if the file can not be closed
+          */
+
+      public void close() throws IOException
+      {
+         channel.close();
+         file.close();
+      }
+         /**
+          * A square of cells, whose cells are either on the heap or in
+          * a slot of the backing file.
+          */
+
+      protected static class Tile
+      {
+         final int tx;
+         final int ty;
+         byte[]    cells;
+         int       slot = -1;
+         long      lastUsed;
+
+         Tile(int tx, int ty)
+         {
+            this.tx = tx;
+            this.ty = ty;
+         }
+      }
+}
@@ -0,0 +1,226 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+   /**
+    * TripleBuffer hands frames from the thread which draws them to the
+    * thread which presents them, without either waiting on the other.
+    * Of the three frames, the drawing thread owns the back frame and
+    * the presenting thread owns the front frame.  The third is the
+    * latest completed frame, which is swapped atomically with the back
+    * frame when a frame is published and with the front frame when a
+    * new frame is taken.  A frame published before the previous one
+    * was taken is dropped.
+    */
+
+public class TripleBuffer
+{
+         // globals
+
+
+         /** bits of the exchange state holding the index of the
+          * latest frame */
+
+      protected static final int INDEX = 3;
+
+         /** bit of the exchange state set when the latest frame has
+          * not been taken yet */
+
+      protected static final int FRESH = 4;
+
+         /** the three frames */
+
+      protected final BufferedImage[] frames = new BufferedImage[3];
+
+         /** graphics for each frame */
+
+      protected final Graphics2D[]    graphics = new Graphics2D[3];
+
+         /** time in nanoseconds each frame was published */
+
+      protected final long[]          published = new long[3];
+
+         /** index of the latest frame, and whether it is fresh */
+
+      protected final AtomicInteger   latest = new AtomicInteger(2);
+
+         /** index of the frame being drawn, owned by the drawing
+          * thread */
+
+      protected int                   back = 0;
+
+         /** index of the frame being presented, owned by the
+          * presenting thread */
+
+      protected int                   front = 1;
+
+         /** number of frames dropped without being presented */
+
+      protected volatile long         dropped;
+
+         /** number of frames presented */
+
+      protected volatile long         presented;
+
+         /** time in nanoseconds from publishing to taking the most
+          * recently taken frame */
+
+      protected volatile long         latency;
+
+         /** time from publishing to taking of each frame taken,
+          * recorded by the presenting thread */
+
+      protected final LatencyHistogram presentLatency = new LatencyHistogram();
+
+         /**
+          * Construct a triple buffer of frames of a given size.
+          *
+          * @param width width of frames
+          * @param height height of frames
+          */
+
+      public TripleBuffer(int width, int height)
+      {
+         for (int i = 0; i < frames.length; ++i)
+         {
+            frames[i] = new BufferedImage(
+               width, height, BufferedImage.TYPE_INT_ARGB);
+            graphics[i] = (Graphics2D)frames[i].getGraphics();
+         }
+      }
+         /**
+          * Return the graphics of the back frame, to draw the next
+          * frame with.  Only the drawing thread may call this.
+          *
+          * @return The graphics of the back frame.
+          */
+
+      public Graphics2D getBackGraphics()
+      {
+         return graphics[back];
+      }
+         /**
+          * Return the back frame, to draw the next frame into directly.
+          * Only the drawing thread may call this.
+          *
+          * @return The back frame.
+          */
+
+      public BufferedImage getBackImage()
+      {
+         return frames[back];
+      }
+         /**
+          * Return the index of the back frame, from 0 to 2, so that the
+          * drawing thread may keep track of what is in each frame.
+          * Only the drawing thread may call this.
+          *
+          * @return The index of the back frame.
+          */
+
+      public int getBackIndex()
+      {
+         return back;
+      }
+         /**
+          * Publish the back frame as the latest frame, and take a new
+          * back frame.  Only the drawing thread may call this.
+          */
+
+      public void publish()
+      {
+         published[back] = System.nanoTime();
+         int previous = latest.getAndSet(back | FRESH);
+         if ((previous & FRESH) != 0)
+            ++dropped;
+         back = previous & INDEX;
+      }
+         /**
+          * Take the latest frame if one has been published since the
+          * last call, and return the front frame.  Only the presenting
+          * thread may call this.
+          *
+          * @return The most recent frame.
+          */
+
+      public BufferedImage take()
+      {
+         if ((latest.get() & FRESH) != 0)
+         {
+            front = latest.getAndSet(front) & INDEX;
+            latency = System.nanoTime() - published[front];
+            presentLatency.record(latency);
+            ++presented;
+         }
+         return frames[front];
+      }
+         /**
+          * Return the number of frames dropped without being
+          * presented.
+          *
+          * @return The number of dropped frames.
+          */
+
+      public long getDropped()
+      {
+         return dropped;
+      }
+         /**
+          * Return the number of frames presented.
+          *
+          * @return The number of presented frames.
+          */
+
+      public long getPresented()
+      {
+         return presented;
+      }
+         /**
+          * Return the time from publishing to presenting of the most
+          * recently presented frame.
+          *
+          * @return The present latency in nanoseconds.
+          */
+
+      public long getLatency()
+      {
+         return latency;
+      }
+         /**
+          * Return the histogram of the time from publishing to
+          * presenting of each presented frame.
+          *
+          * @return The present latency histogram.
+          */
+
+      public LatencyHistogram getPresentLatency()
+      {
+         return presentLatency;
+      }
+}
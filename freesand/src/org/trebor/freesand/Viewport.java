@@ -0,0 +1,257 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+
+   /**
+    * Viewport is the rectangle of a world shown on the screen, and the
+    * whole number of pixels each cell is drawn as along each side.
+    * The top left cell of the view is drawn at the top left of the
+    * screen, and each cell is drawn as a square of pixels of its
+    * element's color, so a view costs only as much to draw as the
+    * cells it shows.  Viewports are not changed once made, a changed
+    * view is a new viewport.
+    */
+
+public class Viewport
+{
+         // globals
+
+
+         /** greatest number of pixels a cell may be drawn as along
+          * each side */
+
+      public static final int MAX_ZOOM = 64;
+
+         /** column of the cell at the left of the view */
+
+      protected final int     x;
+
+         /** row of the cell at the top of the view */
+
+      protected final int     y;
+
+         /** pixels each cell is drawn as along each side */
+
+      protected final int     zoom;
+
+         /** width of the view on the screen in pixels */
+
+      protected final int     width;
+
+         /** height of the view on the screen in pixels */
+
+      protected final int     height;
+
+         /**
+          * Construct a viewport.
+          *
+          * @param x column of the cell at the left of the view
+          * @param y row of the cell at the top of the view
+          * @param zoom pixels each cell is drawn as along each side
+          * @param width width of the view on the screen in pixels
+          * @param height height of the view on the screen in pixels
+          */
+
+      public Viewport(int x, int y, int zoom, int width, int height)
+      {
+         this.x = x;
+         this.y = y;
+         this.zoom = Math.max(1, Math.min(MAX_ZOOM, zoom));
+         this.width = Math.max(1, width);
+         this.height = Math.max(1, height);
+      }
+         /**
+          * Keep as much of a world in view as the view can hold, moving
+          * the view no further than needed.  If the world is smaller
+          * than the view it is shown at the top left.
+          *
+          * @param worldWidth width of the world
+          * @param worldHeight height of the world
+          * @return This viewport if it needs no move, otherwise the
+          *  moved viewport.
+          */
+
+      public Viewport clamp(int worldWidth, int worldHeight)
+      {
+         int cx = Math.max(0, Math.min(x, worldWidth - width / zoom));
+         int cy = Math.max(0, Math.min(y, worldHeight - height / zoom));
+         return cx == x && cy == y
+            ? this
+            : new Viewport(cx, cy, zoom, width, height);
+      }
+         /**
+          * Move the view by a number of cells.
+          *
+          * @param dx columns to move right
+          * @param dy rows to move down
+          * @return The moved viewport.
+          */
+
+      public Viewport pan(int dx, int dy)
+      {
+         return new Viewport(x + dx, y + dy, zoom, width, height);
+      }
+         /**
+          * Change the zoom of the view, keeping the cell under a point
+          * on the screen where it is.
+          *
+          * @param newZoom new number of pixels along each side of a
+          *  cell
+          * @param px x of the point on the screen
+          * @param py y of the point on the screen
+          * @return The zoomed viewport.
+          */
+
+      public Viewport zoom(int newZoom, int px, int py)
+      {
+         newZoom = Math.max(1, Math.min(MAX_ZOOM, newZoom));
+         return new Viewport(
+            (int)Math.round(toCellX(px) - (double)px / newZoom),
+            (int)Math.round(toCellY(py) - (double)py / newZoom),
+            newZoom, width, height);
+      }
+         /**
+          * Change the size of the view on the screen, keeping its top
+          * left cell and zoom.
+          *
+          * @param newWidth new width of the view in pixels
+          * @param newHeight new height of the view in pixels
+          * @return This viewport if it is already that size, otherwise
+          *  the resized viewport.
+          */
+
+      public Viewport resize(int newWidth, int newHeight)
+      {
+         return newWidth == width && newHeight == height
+            ? this
+            : new Viewport(x, y, zoom, newWidth, newHeight);
+      }
+         /**
+          * Find the column of the world under a point on the screen.
+          *
+          * @param px x of the point on the screen
+          * @return The column, with the fraction of the cell across.
+          */
+
+      public double toCellX(double px)
+      {
+         return x + px / zoom;
+      }
+         /**
+          * Find the row of the world under a point on the screen.
+          *
+          * @param py y of the point on the screen
+          * @return The row, with the fraction of the cell down.
+          */
+
+      public double toCellY(double py)
+      {
+         return y + py / zoom;
+      }
+         /**
+          * Map a shape on the screen, such as a brush, onto the cells
+          * of the world it covers.
+          *
+          * @param shape shape on the screen
+          * @return The shape in cells of the world.
+          */
+
+      public Shape toCells(Shape shape)
+      {
+         if (x == 0 && y == 0 && zoom == 1)
+            return shape;
+         AffineTransform t = AffineTransform.getTranslateInstance(x, y);
+         t.scale(1.0 / zoom, 1.0 / zoom);
+         return t.createTransformedShape(shape);
+      }
+         /**
+          * Find the pixels of the screen which show a rectangle of
+          * cells, clipped to the view.
+          *
+          * @param cells rectangle of cells of the world
+          * @return The rectangle of pixels, which is empty if none of
+          *  the cells are in view.
+          */
+
+      public Rectangle toScreen(Rectangle cells)
+      {
+         int left = Math.max(0, (cells.x - x) * zoom);
+         int top = Math.max(0, (cells.y - y) * zoom);
+         int right = Math.min(width, (cells.x + cells.width - x) * zoom);
+         int bottom = Math.min(height, (cells.y + cells.height - y) * zoom);
+         return new Rectangle(left, top,
+                              Math.max(0, right - left),
+                              Math.max(0, bottom - top));
+      }
+         /** @return The column of the cell at the left of the view. */
+
+      public int getX()
+      {
+         return x;
+      }
+         /** @return The row of the cell at the top of the view. */
+
+      public int getY()
+      {
+         return y;
+      }
+         /** @return The number of pixels each cell is drawn as along
+          * each side. */
+
+      public int getZoom()
+      {
+         return zoom;
+      }
+         /** @return The width of the view on the screen in pixels. */
+
+      public int getWidth()
+      {
+         return width;
+      }
+         /** @return The height of the view on the screen in pixels. */
+
+      public int getHeight()
+      {
+         return height;
+      }
+         /** @return The number of columns of cells the view shows,
+          * counting one only partly shown. */
+
+      public int getColumns()
+      {
+         return (width + zoom - 1) / zoom;
+      }
+         /** @return The number of rows of cells the view shows,
+          * counting one only partly shown. */
+
+      public int getRows()
+      {
+         return (height + zoom - 1) / zoom;
+      }
+}
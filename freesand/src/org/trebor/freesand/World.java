@@ -26,33 +26,46 @@ package org.trebor.freesand;
 
 import static java.awt.Color.BLACK;
 import static java.awt.Color.HSBtoRGB;
-import static java.lang.Math.abs;
-import static java.lang.System.out;
 import static org.trebor.freesand.World.ClrConst.*;
 import static org.trebor.freesand.World.Element.*;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
    /**
     * World provides the freesand simulation functionality and element
     * behavior.  User interface functionality occurs in {@link
-    * Game}.
+    * Game}.  The state of the world is held as one element id per
+    * cell, the image of the world is painted from those cells using
+    * the color of each element.
     */
 
-public class World extends BufferedImage implements Transferable
+public class World extends BufferedImage
+   implements Transferable, Simulation
 {
          // globals
 
 
+         /** element id of each cell, this is the simulation state of
+          * the world, the image pixels are only painted from it */
+
+      protected byte[]  cells;
+
          /** array providing direct access to image pixels */
 
       protected int[]   pixels;
@@ -63,9 +76,18 @@ public class World extends BufferedImage implements Transferable
 
       protected int[][] xRndIndex;
 
-         /** a handy dandy random number generater */
+         /** a handy dandy random number generater, seeded from the
+          * seed of the world */
+
+      protected Random  rnd;
+
+         /** seed from which all randomness in the world is derived */
 
-      protected Random  rnd = new Random();
+      protected long    seed;
+
+         /** number of update cycles since the world was seeded */
+
+      protected long    tick;
 
          /** width of the world */
 
@@ -75,9 +97,41 @@ public class World extends BufferedImage implements Transferable
 
       protected int     height;
 
-         /** background element */
+         /** number of horizontal bands the world is split into on
+          * each update, 1 updates serially on the calling thread */
+
+      protected int     bands = 1;
+
+         /** pool on which world bands are updated in parallel */
+
+      protected static final ForkJoinPool BAND_POOL = new ForkJoinPool();
+
+         /** kernels which apply element rules to the world, one for
+          * each band */
+
+      protected Kernel[] kernels = new Kernel[0];
+
+         /** action which updates the bands, reused on every update
+          * so that updating allocates nothing */
+
+      protected BandsAction bandsAction;
 
-      protected int     background = AIR;
+         /** time taken by each update */
+
+      protected final LatencyHistogram tickLatency = new LatencyHistogram();
+
+         /** rules of each element, indexed by element id */
+
+      protected Rule[]  rules = Kernel.RULES;
+
+         /** which chunks of the world are awake */
+
+      protected ChunkMap chunks;
+
+         /** recorder handed the cells at the end of each update, or
+          * null if the world is not being recorded */
+
+      protected volatile Recorder recorder;
 
 
          /** indicates that a given pixel is not going to change this
@@ -89,6 +143,26 @@ public class World extends BufferedImage implements Transferable
 
       public static final int   RND_INDEX_CNT  = 200;
 
+         /** minimum number of rows in a band, a particle never reaches
+          * more than one row above or below itself, so bands at least
+          * this high can never collide with a band two away */
+
+      public static final int   MIN_BAND_HEIGHT = 4;
+
+         /** fewest cells scanned by a single task when finding the
+          * bounds of the content of a world */
+
+      public static final int   MIN_SCAN_BLOCK = 1 << 20;
+
+         /** log base 2 of the width and height of a chunk, a chunk
+          * must be wider than the 2 pixel reach of a particle */
+
+      public static final int   CHUNK_SHIFT    = 5;
+
+         /** width and height of a chunk in pixels */
+
+      public static final int   CHUNK_SIZE     = 1 << CHUNK_SHIFT;
+
          // chance in X of something happening
 
 
@@ -208,6 +282,83 @@ public class World extends BufferedImage implements Transferable
          final int     value;
          final Element sourceOf;
 
+            /** all elements indexed by id */
+
+         private static final Element[] ELEMENTS = values();
+
+            /** the source or output of each element, indexed by id */
+
+         private static final Element[] PAIRED = new Element[ELEMENTS.length];
+
+            /** element colors placed by a perfect hash, so each slot
+             * holds at most one color, empty slots hold 0 which is no
+             * element color as they are all opaque */
+
+         private static final int[] HASHED_COLORS;
+
+            /** element whose color is in each slot of {@link
+             * #HASHED_COLORS} */
+
+         private static final Element[] HASHED_ELEMENTS;
+
+            /** multiplier of the perfect hash */
+
+         private static final int HASH_MULTIPLIER;
+
+            /** shift of the perfect hash, leaving the bits of a slot */
+
+         private static final int HASH_SHIFT;
+
+         static
+         {
+               // pair sources and outputs
+
+            for (Element e: ELEMENTS)
+               if (e.sourceOf != null)
+               {
+                  PAIRED[e.ordinal()] = e.sourceOf;
+                  PAIRED[e.sourceOf.ordinal()] = e;
+               }
+               // find a multiplier which sends each color to a slot of
+               // its own, growing the table until one does
+
+            int bits = 32 - Integer.numberOfLeadingZeros(ELEMENTS.length) + 1;
+            int multiplier = 0x9E3779B9;
+            int[] slots = null;
+            while (slots == null)
+            {
+               for (int tries = 0; slots == null && tries < 1000; ++tries)
+               {
+                  multiplier += 0x6A09E668;
+                  slots = new int[1 << bits];
+                  for (Element e: ELEMENTS)
+                  {
+                     int i = (e.value * (multiplier | 1)) >>> (32 - bits);
+                     if (slots[i] == e.value)
+                        continue;
+                     if (slots[i] != 0)
+                     {
+                        slots = null;
+                        break;
+                     }
+                     slots[i] = e.value;
+                  }
+               }
+               if (slots == null)
+                  ++bits;
+            }
+            HASH_MULTIPLIER = multiplier | 1;
+            HASH_SHIFT = 32 - bits;
+            HASHED_COLORS = slots;
+            HASHED_ELEMENTS = new Element[slots.length];
+            for (Element e: ELEMENTS)
+            {
+               int i = (e.value * HASH_MULTIPLIER) >>> HASH_SHIFT;
+               if (HASHED_ELEMENTS[i] == null)
+                  HASHED_ELEMENTS[i] = e;
+            }
+         }
+
             /** 
              * Construct an element given a name and HSB values for color.
              *
@@ -296,6 +447,28 @@ public class World extends BufferedImage implements Transferable
          public int getValue()
          {
             return value;
+         }
+            /** 
+             * Return the id of this element, which is how the element
+             * is stored in the cells of a world.
+             *
+             * @return The id of this element.
+             */
+
+         public byte getId()
+         {
+            return (byte)ordinal();
+         }
+            /** 
+             * Find the element with the provided id.
+             *
+             * @param id id of the element
+             * @return The element with the provided id.
+             */
+
+         static public Element fromId(byte id)
+         {
+            return ELEMENTS[id];
          }
             /** 
              * Convert element to string value.  This function returns
@@ -338,10 +511,8 @@ public class World extends BufferedImage implements Transferable
  
          static public Element lookup(int rgbValue)
          {
-            for (Element e: Element.values())
-               if (e.getValue() == rgbValue)
-                  return e;
-            return null;
+            int i = (rgbValue * HASH_MULTIPLIER) >>> HASH_SHIFT;
+            return HASHED_COLORS[i] == rgbValue ? HASHED_ELEMENTS[i] : null;
          }
             /** 
              * Find the element that is the nearest match to the
@@ -353,27 +524,20 @@ public class World extends BufferedImage implements Transferable
  
          static public Element nearest(Color c)
          {
-            int r = c.getRed();
-            int g = c.getGreen();
-            int b = c.getBlue();
-            int minDelta = Integer.MAX_VALUE;
-            Element nearest = null;
-
-            for (Element e: Element.values())
-            {
-               Color ec = e.getColor();
-               int delta = 
-                  abs(r - ec.getRed()) +
-                  abs(g - ec.getGreen()) +
-                  abs(b - ec.getBlue());
-
-               if (delta < minDelta)
-               {
-                  minDelta = delta;
-                  nearest = e;
-               }
-            }
-            return nearest;
+            return nearest(c.getRGB());
+         }
+            /** 
+             * Find the element that is the nearest match to the
+             * provided rgb value.
+             *
+             * @param rgbValue rgb value to match, alpha is ignored
+             * @return The nearest matching element.
+             * @see ColorCube
+             */
+ 
+         static public Element nearest(int rgbValue)
+         {
+            return ELEMENTS[ColorCube.nearest(rgbValue)];
          }
             /** 
              * Find an element's source or output.
@@ -384,105 +548,110 @@ public class World extends BufferedImage implements Transferable
  
          public Element lookupSourceOrOutput()
          {
-            for (Element e: Element.values())
-               if (e.sourceOf == this || this.sourceOf == e)
-                  return e;
-
-            return null;
+            return PAIRED[ordinal()];
          }
       }
-         /** air element integer value */
+         /** air element id */
+
+      public static final byte AIR    = AIR_EL  .getId();
+
+         /** water element id */
 
-      public static final int AIR    = AIR_EL  .getValue();
+      public static final byte WATER  = WATER_EL.getId();
 
-         /** water element integer value */
+         /** sand element id */
 
-      public static final int WATER  = WATER_EL.getValue();
+      public static final byte SAND   = SAND_EL .getId();
 
-         /** sand element integer value */
+         /** earth element id */
 
-      public static final int SAND   = SAND_EL .getValue();
+      public static final byte EARTH  = EARTH_EL.getId();
 
-         /** earth element integer value */
+         /** oil element id */
 
-      public static final int EARTH  = EARTH_EL.getValue();
+      public static final byte OIL    = OIL_EL  .getId();
 
-         /** oil element integer value */
+         /** plant element id */
 
-      public static final int OIL    = OIL_EL  .getValue();
+      public static final byte PLANT  = PLANT_EL.getId();
 
-         /** plant element integer value */
+         /** rock element id */
 
-      public static final int PLANT  = PLANT_EL.getValue();
+      public static final byte ROCK   = ROCK_EL .getId();
 
-         /** rock element integer value */
+         /** gold element id */
 
-      public static final int ROCK   = ROCK_EL .getValue();
+      public static final byte GOLD    = GOLD_EL.getId();
 
-         /** gold element integer value */
+         /** silver element id */
 
-      public static final int GOLD    = GOLD_EL.getValue();
+      public static final byte SILVER  = SILVER_EL.getId();
 
-         /** silver element integer value */
+         /** copper element id */
 
-      public static final int SILVER  = SILVER_EL.getValue();
+      public static final byte COPPER  = COPPER_EL.getId();
 
-         /** copper element integer value */
+         /** fire1 element id */
 
-      public static final int COPPER  = COPPER_EL.getValue();
+      public static final byte FIRE1  = FIRE1_EL.getId();
 
-         /** fire1 element integer value */
+         /** fire2 element id */
 
-      public static final int FIRE1  = FIRE1_EL.getValue();
+      public static final byte FIRE2  = FIRE2_EL.getId();
 
-         /** fire2 element integer value */
+         /** fire3 element id */
 
-      public static final int FIRE2  = FIRE2_EL.getValue();
+      public static final byte FIRE3  = FIRE3_EL.getId();
 
-         /** fire3 element integer value */
+         /** fire4 element id */
 
-      public static final int FIRE3  = FIRE3_EL.getValue();
+      public static final byte FIRE4  = FIRE4_EL.getId();
 
-         /** fire4 element integer value */
+         /** fire5 element id */
 
-      public static final int FIRE4  = FIRE4_EL.getValue();
+      public static final byte FIRE5  = FIRE5_EL.getId();
 
-         /** fire5 element integer value */
+         /** fire6 element id */
 
-      public static final int FIRE5  = FIRE5_EL.getValue();
+      public static final byte FIRE6  = FIRE6_EL.getId();
 
-         /** fire6 element integer value */
+         /** air source element id */
 
-      public static final int FIRE6  = FIRE6_EL.getValue();
+      public static final byte AIR_SOURCE   = AIR_SOURCE_EL.getId();
 
-         /** air source element integer value */
+         /** water source element id */
 
-      public static final int AIR_SOURCE   = AIR_SOURCE_EL.getValue();
+      public static final byte WATER_SOURCE = WATER_SOURCE_EL.getId();
 
-         /** water source element integer value */
+         /** steam element id */
 
-      public static final int WATER_SOURCE = WATER_SOURCE_EL.getValue();
+      public static final byte STEAM = STEAM_EL.getId();
 
-       /** steam source element integer value */
+         /** sand source element id */
 
-      public static final int STEAM = STEAM_EL.getValue();
+      public static final byte SAND_SOURCE  = SAND_SOURCE_EL.getId();
 
-         /** sand source element integer value */
+         /** fire source element id */
 
-      public static final int SAND_SOURCE  = SAND_SOURCE_EL.getValue();
+      public static final byte FIRE_SOURCE  = FIRE_SOURCE_EL.getId();
 
-         /** fire source element integer value */
+         /** oil source element id */
 
-      public static final int FIRE_SOURCE  = FIRE_SOURCE_EL.getValue();
+      public static final byte OIL_SOURCE   = OIL_SOURCE_EL.getId();
 
-         /** oil source element integer value */
+         /** columbine element id */
 
-      public static final int OIL_SOURCE   = OIL_SOURCE_EL.getValue();
+      public static final byte COLUMBINE   = COLUMBINE_EL.getId();
 
-         /** columbine source element integer value */
+         /** argb color of each element, indexed by element id */
 
-      public static final int COLUMBINE   = COLUMBINE_EL.getValue();
+      protected static final int[] PALETTE = new int[Element.values().length];
 
+      static
+      {
+         for (Element e: Element.values())
+            PALETTE[e.getId()] = e.getValue();
+      }
          /**
           * Construct a world, copying content from another world. Set
           * the background to air and the size to that of the other
@@ -494,7 +663,10 @@ public class World extends BufferedImage implements Transferable
       public World(Image other)
       {
          this(other.getWidth(null), other.getHeight(null), AIR_EL);
-         getGraphics().drawImage(other, 0, 0, null);
+         if (other instanceof World)
+            System.arraycopy(((World)other).cells, 0, cells, 0, cells.length);
+         else
+            drawImage(other, 0, 0);
       }
          /**
           * Construct a world, copying content from another world.  Set
@@ -528,60 +700,30 @@ public class World extends BufferedImage implements Transferable
 
          if (other.width == width && other.height == height)
          {
-            getGraphics().drawImage(other, 0, 0, null);
+            System.arraycopy(other.cells, 0, cells, 0, cells.length);
             return;
          }
-            // locate content on other world
-
-         int leftMost  = -1;
-         int rightMost = -1;
-         int topMost   = -1;
-         int botMost   = -1;
+            // locate content on other world, if there is none stop
+            // here
 
-            // find left most particle
-
-         for (int x = 0; leftMost == -1 && x < other.width; ++x)
-            for (int y = 0; leftMost == -1 && y < other.height; ++y)
-               if (other.getRGB(x, y) != background)
-                  leftMost = x;
-
-            // if no content on other world, stop here
-
-         if (leftMost == -1)
+         Rectangle content = other.getContentBounds(bgElement);
+         if (content == null)
             return;
 
-            // find right most particle
-
-         for (int x = other.width - 1; rightMost == -1 && x >= 0; --x)
-            for (int y = 0; rightMost == -1 && y < other.height; ++y)
-               if (other.getRGB(x, y) != background)
-                  rightMost = x;
-
-            // find top most particle
-
-         for (int y = 0; topMost == -1 && y < other.height; ++y)
-            for (int x = 0; topMost == -1 && x < other.width; ++x)
-               if (other.getRGB(x, y) != background)
-                  topMost = y;
+            // copy it centered on the floor of this world, clipping
+            // whatever does not fit
 
-            // find top most particle
-
-         for (int y = other.height - 1; botMost == -1 && y >= 0; --y)
-            for (int x = 0; botMost == -1 && x < other.width; ++x)
-               if (other.getRGB(x, y) != background)
-                  botMost = y;
-
-            // copy world centered into new world
-
-         int otherWidth = rightMost - leftMost + 1;
-         int otherHeight = botMost - topMost + 1;
-
-        BufferedImage content = other.getSubimage(
-           leftMost, topMost, otherWidth, otherHeight);
-        getGraphics().drawImage(content, 
-                                (width - otherWidth) / 2, 
-                                (height - otherHeight),
-                                null);
+         int dx = (width - content.width) / 2 - content.x;
+         int dy = (height - content.height) - content.y;
+         Rectangle bounds = content.intersection(
+            new Rectangle(-dx, -dy, width, height));
+         if (bounds.isEmpty())
+            return;
+         for (int y = bounds.y; y < bounds.y + bounds.height; ++y)
+            System.arraycopy(other.cells, y * other.width + bounds.x, cells,
+                             (y + dy) * width + bounds.x + dx, bounds.width);
+         bounds.translate(dx, dy);
+         wake(bounds);
       }
          /**
           * Construct a world of a given size and set the background to air.
@@ -603,6 +745,35 @@ public class World extends BufferedImage implements Transferable
           */
 
       public World(int width, int height, Element bgElement)
+      {
+         this(width, height, bgElement, new Random().nextLong());
+      }
+         /**
+          * Construct a world of a given size and seed, and set the
+          * background to air.
+          *
+          * @param width width of world to create
+          * @param height height of world to create
+          * @param seed seed from which all randomness is derived
+          * @see #reseed(long)
+          */
+
+      public World(int width, int height, long seed)
+      {
+         this(width, height, AIR_EL, seed);
+      }
+         /**
+          * Construct a world of a given size, background element and
+          * seed.
+          *
+          * @param width width of world to create
+          * @param height height of world to create
+          * @param bgElement element to fill world with
+          * @param seed seed from which all randomness is derived
+          * @see #reseed(long)
+          */
+
+      public World(int width, int height, Element bgElement, long seed)
       {                                        
             // construct parent
 
@@ -610,24 +781,73 @@ public class World extends BufferedImage implements Transferable
 
             // get world parameters
 
-         this.background = bgElement.getValue();
          this.width = width;
          this.height = height;
+         cells = new byte[width * height];
 
-            // fill background 
+            // establish the chunk map, with every chunk awake
 
-         fill(background);
+         chunks = new ChunkMap(width, height);
 
             // get the pixel array for the world
 
          pixels = ((DataBufferInt)getRaster().getDataBuffer()).getData();
+
+            // fill background 
+
+         fill(bgElement);
          
+            // establish random state
+
+         xRndIndex = new int[RND_INDEX_CNT][width];
+         reseed(seed);
+      }
+         /**
+          * Seed the world and reset the tick count to zero.  All
+          * randomness in an update is derived from the seed, the tick
+          * and the band, never from which thread runs a band.  So two
+          * worlds with the same cells, seed and number of bands, given
+          * the same edits between the same ticks, remain identical
+          * cell for cell.
+          *
+          * @param seed seed from which all randomness is derived
+          * @see #getTick()
+          */
+
+      public void reseed(long seed)
+      {
+         this.seed = seed;
+         tick = 0;
+         rnd = new Random(seed);
+
             // fill random index array with lots of random indicies
 
-         xRndIndex = new int[RND_INDEX_CNT][getWidth()];
          for (int[] row: xRndIndex)
             for (int i = 0; i < row.length; ++i)
                row[i] = rnd.nextInt(row.length);
+      }
+         /**
+          * Return the seed from which all randomness in the world is
+          * derived.
+          *
+          * @return The seed of the world.
+          */
+
+      public long getSeed()
+      {
+         return seed;
+      }
+         /**
+          * Return the number of update cycles since the world was
+          * seeded.  Edits made before update N are said to be made at
+          * tick N.
+          *
+          * @return The current tick.
+          */
+
+      public long getTick()
+      {
+         return tick;
       }
          /** 
           * Initialze world to some value.  This is provided as a
@@ -637,6 +857,22 @@ public class World extends BufferedImage implements Transferable
 
       public void initialize()
       {
+      }
+         /**
+          * Create the random number generator used by a kernel to
+          * update the world.  Each kernel gets its own generator, so it
+          * need not be thread safe.  This is provided as a virtual hook
+          * to programs which may wish to supply a different generator.
+          * The generator is reseeded on every update from the seed of
+          * the world, the tick and the band it updates.  This
+          * implementation returns an {@link XorShiftRandom}.
+          *
+          * @return A new random number generator.
+          */
+
+      protected Random createRandom()
+      {
+         return new XorShiftRandom(rnd.nextLong());
       }
          /**
           * Fill entire world with provided element.
@@ -646,7 +882,8 @@ public class World extends BufferedImage implements Transferable
 
       public void fill(Element el)
       {
-         fill(el.getColor());
+         Arrays.fill(cells, el.getId());
+         wake(0, 0, width, height);
       }
          /**
           * Fill entire world with provided color value.
@@ -659,498 +896,562 @@ public class World extends BufferedImage implements Transferable
          fill(new Color(color));
       }
          /**
-          * Fill entire world with provided color.
+          * Fill entire world with the element nearest to the provided
+          * color.
           *
           * @param color color to paint world
           */
 
       public void fill(Color color)
       {
-         Graphics2D g = (Graphics2D)getGraphics();
-         g.setColor(color);
-         g.fillRect(0, 0, width, height);
+         fill(Element.nearest(color));
       }
          /**
-          * Paint world onto provided graphics.
+          * Fill a shape with the provided element.  The shape is
+          * rasterized without antialiasing.
           *
-          * @param g graphics to paint world onto
+          * @param shape shape to fill, in world coordinates
+          * @param el element to fill shape with
           */
 
-      public void paint(Graphics2D g)
+      public void fill(Shape shape, Element el)
       {
-         g.drawImage(this, 0, 0, null);
-      }
-         /** 
-          * Update the world state.  Note that the following code is a
-          * morass of if conditionals.  This is done so that the code
-          * runs fast.  It would be easy to come up with an abstraction
-          * layer which would make this code more general and robust,
-          * but at the cost of performance.  I look forward to seeing a
-          * clever, low cost, abstraction, if someone can figure one
-          * out.
-          */
-      
-      public void update()
-      {
-            // start from the bottom of the world
-
-         for (int y = height - 1; y >= 0; --y)
-         {
-               // compute offset to this and next line
-
-            int thisOffset = y * width;
-            
-               // are we at top or bottom?
-
-            boolean atTop = y == 0;
-            boolean atBot = y == height - 1;
-
-               // process line in random order
-            
-            for (int x: xRndIndex[rnd.nextInt(RND_INDEX_CNT)])
-            {
-                  // index of this pixel
-               
-               int ip = thisOffset + x;
-               
-                  // value of this pixel
-
-               int p = pixels[ip];
-
-                  // don't process inert matter
-
-               if (p == AIR || p == ROCK || p == EARTH)
-                  continue;
-
-                  // are we on a left or right edge?
-
-               boolean atLeft = x == 0;
-               boolean atRight = x == width - 1;
-
-                  // indices of pixels around this particle
-
-               int iuc = ip - width;
-               int idc = ip + width;
-               int idl = idc - 1;
-               int idr = idc + 1;
-               int il = ip - 1;
-               int ir = ip + 1;
-
-                  // get pixels for each index
-
-               int uc = atTop            ? ROCK : pixels[iuc];
-               int dc = atBot            ? ROCK : pixels[idc];
-               int dl = atBot || atLeft  ? ROCK : pixels[idl];
-               int dr = atBot || atRight ? ROCK : pixels[idr];
-               int l =  atLeft           ? ROCK : pixels[il];
-               int r =  atRight          ? ROCK : pixels[ir];
-               
-                  // the following actions propogate elements around the
-                  // world, they do not conserve matter
-
-                  // if fire, propogate fire
-
-               if (p == FIRE1 || p == FIRE2 || p == FIRE3 || 
-                   p == FIRE4 || p == FIRE5 || p == FIRE6)
-               {
-                  int[] burn = {atLeft  ? ip : il,
-                                atRight ? ip : ir,
-                                atTop   ? ip : iuc,
-                                atBot   ? ip : idc};
-
-
-                  for (int ib: burn)
-                  {
-                     int b = pixels[ib];
-					 
-					 // fire burns plants and oil, makes steam out of water
-					 
-                     if ((b == PLANT || b == OIL || b == COLUMBINE) &&
-                         rnd.nextInt(FIRE_CHANCE_IN) == 0)
-                        pixels[ib] = FIRE1;
-                     else
-                        if (b == WATER)
-                        {
-                           pixels[ib] = STEAM;
-                           pixels[ip] = STEAM;
-						   pixels[iuc] = STEAM;
-                           p = STEAM;
-                           break;
-                        }
-                  }
-                     // move fire along
-
-                  if (p == FIRE1)
-                  {
-                     pixels[ip] = FIRE3;
-                     continue;
-                  }
-                  if (p == FIRE2)
-                  {
-                     pixels[ip] = FIRE3;
-                     continue;
-                  }
-                  if (p == FIRE3)
-                  {
-                     pixels[ip] = FIRE4;
-                     continue;
-                  }
-                  if (p == FIRE4)
-                  {
-                     pixels[ip] = FIRE5;
-                     continue;
-                  }
-                  if (p == FIRE5)
-                  {
-                     pixels[ip] = FIRE6;
-                     continue;
-                  }
-                  if (p == FIRE6)
-                  {
-                     pixels[ip] = AIR;
-                     continue;
-                  }
-               }
-                  // if this is steam, evaporate into air
-
-               if (p == STEAM)
-               {     pixels[ip] = AIR;
-                     continue;
-			   }
-
-                  // if this is an everything sucker
-
-               if (p == AIR_SOURCE)
-               {
-                  int[] targets = {atLeft  ? ip : il,
-                                   atRight ? ip : ir,
-                                   atTop   ? ip : iuc,
-                                   atBot   ? ip : idc};
-                  for (int it: targets)
-                        pixels[it] = AIR;
-                  continue;
-               }
-                  // if this is a water source
+            // find the part of the shape inside the world
 
-               if (p == WATER_SOURCE)
-               {
-                  int[] targets = {atLeft  ? ip : il,
-                                   atRight ? ip : ir,
-                                   atTop   ? ip : iuc,
-                                   atBot   ? ip : idc};
-                  for (int it: targets)
-                     if (pixels[it] == AIR &&
-                         rnd.nextInt(WATER_CHANCE_IN) == 0)
-                        pixels[it] = WATER;
-                  continue;
-               }
-                  // if this is a fire source
-
-               if (p == OIL_SOURCE)
-               {
-                  int[] targets = {atRight ? ip : ir,
-                                   atLeft  ? ip : il,
-                                   atTop   ? ip : iuc,
-                                   atBot   ? ip : idc};
-                  for (int it: targets)
-                     if (pixels[it] == AIR)
-                        pixels[it] = OIL;
-                  continue;
-               }
-                  // if this is a sand source
-
-               if (p == SAND_SOURCE)
-               {
-                  int[] targets = {atLeft  ? ip : il,
-                                   atRight ? ip : ir,
-                                   atTop   ? ip : iuc,
-                                   atBot   ? ip : idc};
-                  for (int it: targets)
-                     if (pixels[it] == AIR &&
-                         rnd.nextInt(SAND_CHANCE_IN) == 0)
-                        pixels[it] = SAND;
-                  continue;
-               }
-                  // if this is a plant, propogate growth
-
-               if (p == PLANT)
-               {
-
-                  int iul = iuc - 1;
-                  int iur = iuc + 1;
-
-                  int[] targets = {atLeft             ? ip : il,
-                                   atLeft  || atTop   ? ip : iul,
-                                   atRight            ? ip : ir,
-                                   atRight || atTop   ? ip : iur,
-                                   atTop              ? ip : iuc,
-                                   atBot              ? ip : idc,
-                                   atBot   || atLeft  ? ip : idl,
-                                   atBot   || atRight ? ip : idr,
-                  };
-				  if (pixels[idl] == PLANT && pixels[idc] == PLANT && 
-				      pixels[idr] == PLANT && pixels[ir] == PLANT && 
-					  pixels[il] == PLANT && pixels[iuc] == WATER)
-					    pixels[ip] = COLUMBINE;
-                  for (int ix: targets)
-                     if (pixels[ix] == AIR)
-                        for (int it: targets)
-                           if (pixels[it] == WATER && rnd.nextInt(PLANT_CHANCE_IN) == 0)
-                              pixels[it] = PLANT;
-				  continue;
-               }
-                  // if this is a flower
-
-               if (p == COLUMBINE)
-			   {
-			   continue;
-			   }
-                  // if this is a fire source
-
-               if (p == FIRE_SOURCE)
-               {
-                  int[] targets = {atLeft  ? ip : il,
-                                   atRight ? ip : ir,
-                                   atTop   ? ip : iuc,
-                                   atBot   ? ip : idc};
-                  for (int it: targets)
-                     if (pixels[it] == PLANT || pixels[it] == OIL)
-                        pixels[it] = FIRE1;
-                  continue;
-               }
-                  // all actions from this point on conserve matter
-                  // we only calculate the place to which this particle
-                  // will move, the the default is to do nothing
-
-               int dest = NO_CHANGE;
-                           
-                  // if it's a oil
+         Rectangle bounds = shape.getBounds().intersection(
+            new Rectangle(0, 0, width, height));
+         if (bounds.isEmpty())
+            return;
 
-               if (p == OIL)
-               {
-                     // compute indices for up left and up right
+            // rasterize the shape into a mask
 
-                  int iul = iuc - 1;
-                  int iur = iuc + 1;
+         BufferedImage mask = new BufferedImage(
+            bounds.width, bounds.height, TYPE_BYTE_GRAY);
+         Graphics2D g = (Graphics2D)mask.getGraphics();
+         g.translate(-bounds.x, -bounds.y);
+         g.setColor(Color.WHITE);
+         g.fill(shape);
+         byte[] maskPixels = ((DataBufferByte)mask.getRaster()
+                              .getDataBuffer()).getData();
 
-                     // get pixels for each index
+            // fill cells under the mask
 
-                  int ul = atTop || atLeft  ? ROCK : pixels[iul];
-                  int ur = atTop || atRight ? ROCK : pixels[iur];
+         byte id = el.getId();
+         for (int y = 0; y < bounds.height; ++y)
+         {
+            int offset = (bounds.y + y) * width + bounds.x;
+            for (int x = 0; x < bounds.width; ++x)
+               if (maskPixels[y * bounds.width + x] != 0)
+                  cells[offset + x] = id;
+         }
+         wake(bounds);
+      }
+         /**
+          * Draw an image into the world.  Each pixel of the image
+          * becomes the element with the exactly matching color, or if
+          * there is none, the element with the nearest color.
+          *
+          * @param image image to draw into the world
+          * @param x left edge of image in world
+          * @param y top edge of image in world
+          */
 
-                     // if there is sand/earth above, erode that
+      public void drawImage(Image image, int x, int y)
+      {
+            // get the image as argb pixels
 
-                  if (uc == EARTH || uc == SAND)
-                     dest = iuc;                     
+         BufferedImage argb = new BufferedImage(
+            image.getWidth(null), image.getHeight(null), TYPE_INT_ARGB);
+         argb.getGraphics().drawImage(image, 0, 0, null);
+         int[] argbPixels = ((DataBufferInt)argb.getRaster()
+                             .getDataBuffer()).getData();
 
-                     // if pixles up left and up right sand/water
+            // convert those pixels which land inside the world
 
-                  else if ((ul == EARTH || ul == SAND) && 
-                           (ur == EARTH || ur == SAND))
-                     dest = rnd.nextBoolean() ? iul : iur;
+         Rectangle bounds = new Rectangle(
+            x, y, argb.getWidth(), argb.getHeight()).intersection(
+               new Rectangle(0, 0, width, height));
+         if (bounds.isEmpty())
+            return;
 
-                     // if air underneath, go down
-                  
-                  else if (dc == AIR)
-                     dest = idc;
-                  
-                     // if air on both sides below, pick one
+         for (int wy = bounds.y; wy < bounds.y + bounds.height; ++wy)
+            for (int wx = bounds.x; wx < bounds.x + bounds.width; ++wx)
+            {
+               int rgb = argbPixels[(wy - y) * argb.getWidth() + wx - x];
+               Element el = Element.lookup(rgb);
+               cells[wy * width + wx] = el != null
+                  ? el.getId()
+                  : ColorCube.nearest(rgb);
+            }
+         wake(bounds);
+      }
+         /**
+          * Find the smallest rectangle holding every cell which is not
+          * a given element.  Cells are compared eight at a time, so
+          * rows of that element are passed over quickly, and the rows
+          * of a large world are split into blocks scanned in parallel.
+          *
+          * @param el element which is not content, usually air
+          * @return The bounds of the content, or null if every cell is
+          *  the element.
+          */
 
-                  else if (dl == AIR && dr == AIR)
-                     dest = rnd.nextBoolean() ? idl : idr;
+      public Rectangle getContentBounds(Element el)
+      {
+         BoundsScan scan = new BoundsScan(
+            ByteBuffer.wrap(cells), el.getId(), 0, height);
+         if ((long)width * height < MIN_SCAN_BLOCK)
+            scan.compute();
+         else
+            BAND_POOL.invoke(scan);
+         return scan.top > scan.bottom
+            ? null
+            : new Rectangle(scan.left, scan.top, scan.right - scan.left + 1,
+                            scan.bottom - scan.top + 1);
+      }
+         /**
+          * Paint the image pixels of the world from its cells.
+          */
 
-                     // if air only down left, go left
+      public void render()
+      {
+         for (int i = 0; i < cells.length; ++i)
+            pixels[i] = PALETTE[cells[i]];
+      }
+         /**
+          * Paint a region of the world into an image from its cells,
+          * one pixel per cell.
+          *
+          * @param region region to paint, clipped to the world
+          * @param image image to paint into, or null or an image of
+          *  another size to create a new one
+          * @return The image painted into.
+          */
 
-                  else if (dl == AIR)
-                     dest = idl;
+      public BufferedImage getViewport(Rectangle region, BufferedImage image)
+      {
+         Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+         if (r.isEmpty())
+            r.setBounds(0, 0, 1, 1);
+         if (image == null || image.getWidth() != r.width ||
+             image.getHeight() != r.height)
+            image = new BufferedImage(r.width, r.height, TYPE_INT_ARGB);
+         int[] view = ((DataBufferInt)image.getRaster()
+                       .getDataBuffer()).getData();
+
+         for (int y = 0; y < r.height; ++y)
+         {
+            int offset = (r.y + y) * width + r.x;
+            for (int x = 0; x < r.width; ++x)
+               view[y * r.width + x] = PALETTE[cells[offset + x]];
+         }
+         return image;
+      }
+         /**
+          * Wake the chunks covering a given rectangle, and those next
+          * to them, so that they are processed on the next update.
+          * This must be called after pixels are changed by anything
+          * other than {@link #update}, such as painting onto the world.
+          *
+          * @param x left edge of rectangle
+          * @param y top edge of rectangle
+          * @param w width of rectangle
+          * @param h height of rectangle
+          */
 
-                     // if air only down right, go right
+      public void wake(int x, int y, int w, int h)
+      {
+         chunks.wake(x, y, w, h);
+      }
+         /**
+          * Wake the chunks covering a given rectangle.
+          *
+          * @param r rectangle to wake
+          * @see #wake(int, int, int, int)
+          */
 
-                  else if (dr == AIR)
-                     dest = idr;
+      public void wake(Rectangle r)
+      {
+         wake(r.x, r.y, r.width, r.height);
+      }
+         /**
+          * Compute which chunks are awake for the next update cycle.  A
+          * chunk is awake if something changed in it, or in a chunk next
+          * to it, during the cycle just completed.
+          */
 
-                     // if air on both sides below, pick one
+      protected void settle()
+      {
+         chunks.settle();
+      }
+         /**
+          * Return the number of chunks which will be processed on the
+          * next update cycle.
+          *
+          * @return The number of awake chunks.
+          */
 
-                  else if ((l == AIR || l == EARTH || l == SAND) &&
-                           (r == AIR || r == EARTH || r == SAND))
-                     dest = rnd.nextBoolean() ? il : ir;
+      public int getAwakeChunkCount()
+      {
+         return chunks.getAwakeCount();
+      }
+         /**
+          * Return the total number of chunks the world is divided into.
+          *
+          * @return The number of chunks.
+          */
 
-                     // if air only down left, go left
+      public int getChunkCount()
+      {
+         return chunks.getCount();
+      }
+         /**
+          * Paint world onto provided graphics.
+          *
+          * @param g graphics to paint world onto
+          */
 
-                  else if (l == AIR || l == EARTH || l == SAND)
-                     dest = il;
+      public void paint(Graphics2D g)
+      {
+         render();
+         g.drawImage(this, 0, 0, null);
+      }
+         /** 
+          * Update the world state.  If the world is split into more
+          * than one band, the even bands are updated in parallel, then
+          * the odd ones.  Only chunks which are awake are processed.
+          *
+          * @see #setBands(int)
+          * @see Kernel#update(int, int)
+          */
+      
+      public void update()
+      {
+         long start = System.nanoTime();
+         int n = getEffectiveBands();
 
-                     // if air only down right, go right
+            // in the simple case just update all rows here
 
-                  else if (r == AIR || r == EARTH || r == SAND)
-                     dest = ir;
+         if (kernels.length < n)
+            createKernels(n);
 
-                     // the case where water flows out two pixels
-                  
-                  else
-                  {
-                        // get items 2 pixels on either side of this one
-
-                     int ill = ip - 2;
-                     int irr = ip + 2;
-                     int ll = x < 2         ? ROCK : pixels[ill];
-                     int rr = x > width - 3 ? ROCK : pixels[irr];
-
-                        // if air on both sides, pick one
-
-                     if (ll == AIR && rr == AIR)
-                        dest = rnd.nextBoolean() ? irr : ill;
-                     
-                        // if air only right right, go right right
-                     
-                     else if (rr == AIR)
-                        dest = irr;
-                     
-                        // if air only left left, go left left
-
-                     else if (ll == AIR)
-                        dest = ill;
-                  }
-               }
-                  // if it's water
+            // seed the kernel of each band for this tick
 
-               else if (p == WATER)
-               {
-                     // compute indices for up left and up right
+         long tickSeed = seed + tick * 0x9E3779B97F4A7C15L;
+         for (int i = 0; i < n; ++i)
+            kernels[i].rnd.setSeed(tickSeed + i);
 
-                  int iul = iuc - 1;
-                  int iur = iuc + 1;
+         if (n <= 1)
+            kernels[0].update(0, height - 1);
 
-                     // get pixels for each index
+            // otherwise update the even bands then the odd ones, bands
+            // in the same phase are seperated by a whole band and so
+            // never touch the same pixels
 
-                  int ul = atTop || atLeft  ? ROCK : pixels[iul];
-                  int ur = atTop || atRight ? ROCK : pixels[iur];
+         else
+         {
+            if (bandsAction == null || bandsAction.count != n)
+               bandsAction = new BandsAction(n);
+            bandsAction.reinitialize();
+            BAND_POOL.invoke(bandsAction);
+         }
+            // establish which chunks to process next time
 
-                     // if there is sand/earth above, erode that
+         settle();
+         ++tick;
 
-                  if (uc == EARTH || uc == SAND)
-                     dest = iuc;                     
+            // hand the new frame to the recorder
 
-                     // if pixles up left and up right sand/water
+         Recorder r = recorder;
+         if (r != null)
+            r.capture(this, tick);
+         tickLatency.record(System.nanoTime() - start);
+      }
+         /**
+          * Record the world with a recorder, which is handed the cells
+          * at the end of every update from then on.
+          *
+          * @param recorder recorder to record with, or null to stop
+          *  recording
+          */
 
-                  else if ((ul == EARTH || ul == SAND) && 
-                           (ur == EARTH || ur == SAND))
-                     dest = rnd.nextBoolean() ? iul : iur;
+      public void setRecorder(Recorder recorder)
+      {
+         this.recorder = recorder;
+      }
+         /** @return The recorder recording the world, or null. */
 
-                     // if air underneath, go down
-                  
-                  else if (dc == AIR || dc == OIL)
-                     dest = idc;
+      public Recorder getRecorder()
+      {
+         return recorder;
+      }
+         /**
+          * Return the histogram of the time taken by each update.  It
+          * is recorded by the thread updating the world.
+          *
+          * @return The update time histogram.
+          */
 
-                     // if air on both sides below, pick one
+      public LatencyHistogram getTickLatency()
+      {
+         return tickLatency;
+      }
+         /**
+          * Return a snapshot of what the rules of each element have
+          * done since this world was created.  Taken during an update
+          * the counts may be slightly out of step with each other.
+          *
+          * @return The counts for each element.
+          */
 
-                  else if ((dl == AIR || dl == OIL) && (dr == AIR || dr == OIL))
-                     dest = rnd.nextBoolean() ? idl : idr;
+      public ElementCounts getElementCounts()
+      {
+         ElementCounts counts = new ElementCounts();
+         for (Kernel k: kernels)
+            counts.add(k);
+         return counts;
+      }
+         /**
+          * Set the chances of things happening in this world, in place
+          * of the usual {@link #FIRE_CHANCE_IN}, {@link
+          * #WATER_CHANCE_IN}, {@link #PLANT_CHANCE_IN} and {@link
+          * #SAND_CHANCE_IN}, so that worlds which differ only in these
+          * may be compared.
+          *
+          * @param fireChanceIn chance in X that fire will spread
+          * @param waterChanceIn chance in X that a water source spouts
+          * @param plantChanceIn chance in X that plant will grow
+          * @param sandChanceIn chance in X that a sand source spouts
+          */
 
-                     // if air only down left, go left
+      public void setChances(int fireChanceIn, int waterChanceIn,
+                             int plantChanceIn, int sandChanceIn)
+      {
+         rules = Rule.createRules(Math.max(1, fireChanceIn),
+                                  Math.max(1, waterChanceIn),
+                                  Math.max(1, plantChanceIn),
+                                  Math.max(1, sandChanceIn));
+      }
+         /**
+          * Count the cells of each element in the world.
+          *
+          * @param counts array to count into, or null or an array of
+          *  the wrong length to create a new one
+          * @return The number of cells of each element, indexed by
+          *  element id.
+          */
 
-                  else if (dl == AIR || dl == OIL)
-                     dest = idl;
+      public int[] countCells(int[] counts)
+      {
+         if (counts == null || counts.length != PALETTE.length)
+            counts = new int[PALETTE.length];
+         else
+            Arrays.fill(counts, 0);
+         for (byte c: cells)
+            ++counts[c];
+         return counts;
+      }
+         /**
+          * Set the number of horizontal bands the world is split into
+          * on each update.  Bands are updated in parallel, 1 updates
+          * the world serially.
+          *
+          * @param bands number of bands to split world into
+          * @see #getEffectiveBands()
+          */
 
-                     // if air only down right, go right
+      public void setBands(int bands)
+      {
+         this.bands = Math.max(1, bands);
+      }
+         /**
+          * Return the number of bands requested by {@link #setBands}.
+          *
+          * @return The requested number of bands.
+          */
 
-                  else if (dr == AIR || dr == OIL)
-                     dest = idr;
+      public int getBands()
+      {
+         return bands;
+      }
+         /**
+          * Return the number of bands actually used to update the
+          * world.  This may be less than requested if the world is
+          * too short to give each band {@link #MIN_BAND_HEIGHT} rows.
+          *
+          * @return The number of bands used on each update.
+          */
 
-                     // if air on both sides below, pick one
+      public int getEffectiveBands()
+      {
+         return Math.max(1, Math.min(bands, height / MIN_BAND_HEIGHT));
+      }
+         /**
+          * Create a kernel for each band, up to a given number.
+          *
+          * @param count number of kernels to create
+          */
 
-                  else if ((l == AIR || l == EARTH || l == SAND) &&
-                           (r == AIR || r == EARTH || r == SAND))
-                     dest = rnd.nextBoolean() ? il : ir;
+      protected void createKernels(int count)
+      {
+            // keep existing kernels, and with them their counts
 
-                     // if air only down left, go left
+         Kernel[] kernels = Arrays.copyOf(this.kernels, count);
+         for (int i = this.kernels.length; i < count; ++i)
+            kernels[i] = new Kernel(this);
+         this.kernels = kernels;
+      }
+         /**
+          * Update the even bands in parallel, then the odd ones.
+          */
 
-                  else if (l == AIR || l == EARTH || l == SAND)
-                     dest = il;
+      protected class BandsAction extends RecursiveAction
+      {
+         private static final long serialVersionUID = 1L;
 
-                     // if air only down right, go right
+         final int count;
+         final BandAction[] even;
+         final BandAction[] odd;
 
-                  else if (r == AIR || r == EARTH || r == SAND)
-                     dest = ir;
+         BandsAction(int count)
+         {
+            this.count = count;
+            even = createPhase(0);
+            odd = createPhase(1);
+         }
+         BandAction[] createPhase(int phase)
+         {
+            BandAction[] actions = new BandAction[(count - phase + 1) / 2];
+            for (int i = 0; i < actions.length; ++i)
+               actions[i] = new BandAction(count, phase + 2 * i);
+            return actions;
+         }
+         protected void compute()
+         {
+            invokePhase(even);
+            invokePhase(odd);
+         }
+         void invokePhase(BandAction[] actions)
+         {
+            for (BandAction action: actions)
+               action.reinitialize();
+            invokeAll(actions);
+         }
+      }
+         /**
+          * Update the rows of a single band.
+          */
 
-                     // the case where water flows out two pixels
-                  
-                  else
-                  {
-                        // get items 2 pixels on either side of this one
-
-                     int ill = ip - 2;
-                     int irr = ip + 2;
-                     int ll = x < 2         ? ROCK : pixels[ill];
-                     int rr = x > width - 3 ? ROCK : pixels[irr];
-
-                        // if air on both sides, pick one
-
-                     if (ll == AIR && rr == AIR)
-                        dest = rnd.nextBoolean() ? irr : ill;
-                     
-                        // if air only right right, go right right
-                     
-                     else if (rr == AIR)
-                        dest = irr;
-                     
-                        // if air only left left, go left left
-
-                     else if (ll == AIR)
-                        dest = ill;
-                  }
-               }
-                  // all other elements behave like sand
+      protected class BandAction extends RecursiveAction
+      {
+         private static final long serialVersionUID = 1L;
 
-               else
-               {
-                     // if air underneath, go down
-               
-                  if (dc == AIR || dc == WATER)
-                     dest = idc;
+         final Kernel kernel;
+         final int    top;
+         final int    bottom;
 
-                     // if air on both sides below, pick one
+         BandAction(int count, int band)
+         {
+            kernel = kernels[band];
+            top = band * height / count;
+            bottom = (band + 1) * height / count - 1;
+         }
+         protected void compute()
+         {
+            kernel.update(top, bottom);
+         }
+      }
+         /**
+          * Finds the bounds of the content in a block of rows,
+          * splitting it in two while it is large enough.  Bounds are
+          * left empty, top below bottom, if the block has no content.
+          */
 
-                  else if ((dl == AIR || dl == WATER) && 
-                           (dr == AIR || dr == WATER))
-                     dest = rnd.nextBoolean() ? idl : idr;
+      protected class BoundsScan extends RecursiveAction
+      {
+         private static final long serialVersionUID = 1L;
 
-                     // if air only down left, go left
+         final ByteBuffer buffer;
+         final byte       el;
+         final long       pattern;
+         final int        from;
+         final int        to;
+         int top = Integer.MAX_VALUE, bottom = -1;
+         int left = Integer.MAX_VALUE, right = -1;
 
-                  else if (dl == AIR || dl == WATER)
-                     dest = idl;
+         BoundsScan(ByteBuffer buffer, byte el, int from, int to)
+         {
+            this.buffer = buffer;
+            this.el = el;
+            this.pattern = (el & 0xffL) * 0x0101010101010101L;
+            this.from = from;
+            this.to = to;
+         }
+         protected void compute()
+         {
+               // split large blocks, and merge what the halves found
 
-                     // if air only down right, go right
+            if ((long)(to - from) * width >= 2 * MIN_SCAN_BLOCK)
+            {
+               int middle = (from + to) >>> 1;
+               BoundsScan a = new BoundsScan(buffer, el, from, middle);
+               BoundsScan b = new BoundsScan(buffer, el, middle, to);
+               invokeAll(a, b);
+               top = Math.min(a.top, b.top);
+               bottom = Math.max(a.bottom, b.bottom);
+               left = Math.min(a.left, b.left);
+               right = Math.max(a.right, b.right);
+               return;
+            }
+               // find the first content in each row, then the last,
+               // looking only beyond the right most found so far
 
-                  else if (dr == AIR || dr == WATER)
-                     dest = idr;
-               }
-                  // if a change is requried, swap pixles
+            for (int y = from; y < to; ++y)
+            {
+               int start = y * width;
+               int first = firstContent(start, start + width);
+               if (first < 0)
+                  continue;
+               top = Math.min(top, y);
+               bottom = y;
+               left = Math.min(left, first - start);
+               int last = lastContent(Math.max(first, start + right + 1),
+                                      start + width);
+               if (last >= 0)
+                  right = last - start;
+            }
+         }
+            /**
+             * Find the first cell in a range which is content.
+             *
+             * @return The index of the cell, or -1 if there is none.
+             */
 
-               try
-               {
-                  if (dest != NO_CHANGE)
-                  {
-                     if (pixels[ip] == WATER_SOURCE)
-                        out.println("swap1 WS & " + Element.lookup(pixels[dest]));
-                     if (pixels[dest] == WATER_SOURCE)
-                        out.println("swap2 WS & " + Element.lookup(pixels[ip]));
+         int firstContent(int i, int end)
+         {
+            for (; i + 8 <= end; i += 8)
+               if (buffer.getLong(i) != pattern)
+                  break;
+            for (; i < end; ++i)
+               if (cells[i] != el)
+                  return i;
+            return -1;
+         }
+            /**
+             * Find the last cell in a range which is content.
+             *
+             * @return The index of the cell, or -1 if there is none.
+             */
 
-                     pixels[ip] = pixels[dest];
-                     pixels[dest] = p;
-                  }
-               }
-               catch (Exception ex)
-               {
-                  ex.printStackTrace();
-                  out.println("     X: " + x);
-                  out.println("     Y: " + y);
-                  out.println("Source: " + Element.lookup(p));
-                  out.println("Source: " + Element.lookup(pixels[ip]));
-                  out.println("  Dest: " + Element.lookup(pixels[dest]));
-                  
-               }
-            }
+         int lastContent(int begin, int i)
+         {
+            for (; i - 8 >= begin; i -= 8)
+               if (buffer.getLong(i - 8) != pattern)
+                  break;
+            for (--i; i >= begin; --i)
+               if (cells[i] != el)
+                  return i;
+            return -1;
          }
       }
          /**
@@ -1165,7 +1466,10 @@ public class World extends BufferedImage implements Transferable
          throws UnsupportedFlavorException, IOException
       {
          if (flavor == DataFlavor.imageFlavor)
+         {
+            render();
             return this;
+         }
 
          return null;
       }
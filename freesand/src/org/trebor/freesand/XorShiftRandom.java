@@ -0,0 +1,125 @@
+/*
+ *
+ * FreeSand is a pure java implementation of a cellular automata
+ * simulation inspired by falling sand like games.
+ *
+ * Copyright (C) 2007 Robert B. Harris (freesand@trebor.org)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.trebor.freesand;
+
+import java.util.Random;
+
+   /**
+    * XorShiftRandom is a fast xorshift64* random number generator.
+    * Unlike {@link Random} it is not thread safe, there is no atomic
+    * update of the seed, so each thread must have its own instance.
+    * The same seed always produces the same sequence of numbers.
+    */
+
+@SuppressWarnings("serial")
+public class XorShiftRandom extends Random
+{
+         // globals
+
+
+         /** current state of the generator, never zero */
+
+      private long state;
+
+         /**
+          * Construct a generator with a given seed.
+          *
+          * @param seed seed of the generator
+          */
+
+      public XorShiftRandom(long seed)
+      {
+         super(seed);
+      }
+         /**
+          * Set the seed of the generator.  The seed is scrambled with
+          * a SplitMix64 step so that similar seeds produce unrelated
+          * sequences.
+          *
+          * @param seed new seed of the generator
+          */
+
+      public void setSeed(long seed)
+      {
+         long z = seed + 0x9E3779B97F4A7C15L;
+         z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+         z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+         z = z ^ (z >>> 31);
+         state = z == 0 ? 0x9E3779B97F4A7C15L : z;
+      }
+         /**
+          * Return the next pseudorandom long.
+          *
+          * @return The next pseudorandom long.
+          */
+
+      public long nextLong()
+      {
+         long x = state;
+         x ^= x >>> 12;
+         x ^= x << 25;
+         x ^= x >>> 27;
+         state = x;
+         return x * 0x2545F4914F6CDD1DL;
+      }
+         /**
+          * Return the next pseudorandom int between 0 (inclusive) and
+          * bound (exclusive).  This scales rather than rejecting
+          * values, the bias is below one part in 2^32 for small
+          * bounds.
+          *
+          * @param bound upper bound of the returned value
+          * @return The next pseudorandom int in range.
+          */
+
+      public int nextInt(int bound)
+      {
+         if (bound <= 0)
+            throw new IllegalArgumentException("bound must be positive");
+         return (int)(((nextLong() >>> 32) * bound) >>> 32);
+      }
+         /**
+          * Return the next pseudorandom boolean.
+          *
+          * @return The next pseudorandom boolean.
+          */
+
+      public boolean nextBoolean()
+      {
+         return nextLong() < 0;
+      }
+         /**
+          * Return the next pseudorandom bits, this supports the other
+          * methods of {@link Random}.
+          *
+          * @param bits number of random bits
+          * @return The random bits in the low bits of an int.
+          */
+
+      protected int next(int bits)
+      {
+         return (int)(nextLong() >>> (64 - bits));
+      }
+}